@@ -0,0 +1,99 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * BenchmarkImages
+ *
+ * Synthetic images generated at benchmark setup, so that benchmarks run offline
+ * and are reproducible : smooth gradients plus seeded noise, encoded as JPEG
+ * at a typical camera resolution to exercise decoding and resizing.
+ */
+public class BenchmarkImages
+{
+    public static final int WIDTH = 640;
+    public static final int HEIGHT = 480;
+    public static final long SEED = 42;
+
+    /**
+     * Write synthetic images
+     * @param directory The target directory, created if needed
+     * @param count The number of images
+     * @return The image files
+     * @throws IOException if an image can't be written
+     */
+    public static List<File> write( File directory , int count ) throws IOException
+    {
+        FileUtils.forceMkdir( directory );
+        Random random = new Random( SEED );
+        List<File> files = new ArrayList<>( count );
+        for( int n = 0 ; n < count ; n++ )
+        {
+            BufferedImage image = new BufferedImage( WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB );
+            int phase = random.nextInt( 256 );
+            for( int y = 0 ; y < HEIGHT ; y++ )
+            {
+                for( int x = 0 ; x < WIDTH ; x++ )
+                {
+                    int r = ( x * 255 / WIDTH + phase + random.nextInt( 32 )) & 0xFF;
+                    int g = ( y * 255 / HEIGHT + random.nextInt( 32 )) & 0xFF;
+                    int b = ( ( x + y ) * 255 / ( WIDTH + HEIGHT ) + random.nextInt( 32 )) & 0xFF;
+                    image.setRGB( x, y, ( r << 16 ) | ( g << 8 ) | b );
+                }
+            }
+            File file = new File( directory, "image-" + n + ".jpg" );
+            ImageIO.write( image, "jpg", file );
+            files.add( file );
+        }
+        return files;
+    }
+
+    /**
+     * @return the model parameters used by the benchmarks
+     */
+    public static ModelParameters modelParameters()
+    {
+        ModelParameters parameters = new ModelParameters();
+        parameters.setHeight( 150 );
+        parameters.setWidth( 150 );
+        parameters.setChannels( 3 );
+        parameters.setIterations( 1 );
+        parameters.setSeed( SEED );
+        return parameters;
+    }
+
+    /**
+     * @param prefix The prefix of the directory name
+     * @return a new temporary directory
+     * @throws IOException if the directory can't be created
+     */
+    public static File tempDirectory( String prefix ) throws IOException
+    {
+        File file = File.createTempFile( prefix, "" );
+        FileUtils.forceDelete( file );
+        FileUtils.forceMkdir( file );
+        return file;
+    }
+}
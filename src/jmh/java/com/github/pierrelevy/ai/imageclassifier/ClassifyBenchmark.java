@@ -0,0 +1,115 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ClassifyBenchmark
+ *
+ * End to end classification of an image file :
+ *  - predict : what App.predict does, model restore + decode + scale + forward pass
+ *  - classify : the same with the model kept in memory (serve / predict-batch)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 5 )
+@Measurement( iterations = 5, time = 5 )
+@Fork( 1 )
+public class ClassifyBenchmark
+{
+    private static final int NUM_LABELS = 10;
+    private static final int IMAGE_COUNT = 16;
+
+    @Param( { "lenet", "alexnet", "alexnet-gap", "compact" } )
+    public String network;
+
+    private File directory;
+    private List<File> files;
+    private String modelPath;
+    private ModelParameters parameters;
+    private ImageClassifier classifier;
+    private int next;
+
+    @Setup( Level.Trial )
+    public void setup() throws IOException
+    {
+        directory = BenchmarkImages.tempDirectory( "classify" );
+        files = BenchmarkImages.write( directory, IMAGE_COUNT );
+        parameters = BenchmarkImages.modelParameters();
+        MultiLayerNetwork model = NetworkFactory.getNetwork( network, parameters, NUM_LABELS );
+        model.init();
+        File modelFile = new File( directory, "model.bin" );
+        ModelSerializer.writeModel( model, modelFile, true );
+        ModelNormalizer.save( modelFile, ModelNormalizer.create() );
+        modelPath = modelFile.getAbsolutePath();
+        classifier = ImageClassifier.load( modelPath, parameters );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws IOException
+    {
+        classifier.close();
+        FileUtils.deleteDirectory( directory );
+    }
+
+    private File nextFile()
+    {
+        next = ( next + 1 ) % files.size();
+        return files.get( next );
+    }
+
+    @Benchmark
+    public INDArray predict() throws IOException
+    {
+        ImageClassifier restored = ImageClassifier.load( modelPath, parameters );
+        try
+        {
+            return restored.classify( nextFile() );
+        }
+        finally
+        {
+            restored.close();
+        }
+    }
+
+    @Benchmark
+    public INDArray classify() throws IOException
+    {
+        return classifier.classify( nextFile() );
+    }
+}
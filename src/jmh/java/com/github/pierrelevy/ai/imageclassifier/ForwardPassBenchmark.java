@@ -0,0 +1,75 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.concurrent.TimeUnit;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ForwardPassBenchmark
+ *
+ * network.output for the registered architectures at several batch
+ * sizes. Divide the score by the batch size to get the time per image.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 5 )
+@Measurement( iterations = 5, time = 5 )
+@Fork( 1 )
+public class ForwardPassBenchmark
+{
+    private static final int NUM_LABELS = 10;
+
+    @Param( { "lenet", "alexnet", "alexnet-gap", "compact" } )
+    public String network;
+
+    @Param( { "1", "8", "32", "128" } )
+    public int batchSize;
+
+    private MultiLayerNetwork model;
+    private INDArray input;
+
+    @Setup( Level.Trial )
+    public void setup()
+    {
+        ModelParameters parameters = BenchmarkImages.modelParameters();
+        model = NetworkFactory.getNetwork( network, parameters, NUM_LABELS );
+        model.init();
+        Nd4j.getRandom().setSeed( BenchmarkImages.SEED );
+        input = Nd4j.rand( new int[] { batchSize, parameters.getChannels(), parameters.getHeight(), parameters.getWidth() } );
+    }
+
+    @Benchmark
+    public INDArray output()
+    {
+        return model.output( input, false );
+    }
+}
@@ -0,0 +1,116 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.datavec.image.loader.NativeImageLoader;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PreprocessingBenchmark
+ *
+ * Decode + resize of an image file with NativeImageLoader.asMatrix, and
+ * scaling with the model normalizer. The full preprocessing of an image is
+ * compared with the ImagePreprocessor fast path, which decodes into a slot of
+ * a preallocated batch with scaling fused in the copy.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class PreprocessingBenchmark
+{
+    private static final int IMAGE_COUNT = 16;
+
+    private File directory;
+    private List<File> files;
+    private NativeImageLoader loader;
+    private DataNormalization scaler;
+    private INDArray decoded;
+    private ImagePreprocessor preprocessor;
+    private INDArray batch;
+    private int next;
+
+    @Setup( Level.Trial )
+    public void setup() throws IOException
+    {
+        directory = BenchmarkImages.tempDirectory( "preprocessing" );
+        files = BenchmarkImages.write( directory, IMAGE_COUNT );
+        ModelParameters parameters = BenchmarkImages.modelParameters();
+        loader = new NativeImageLoader( parameters.getHeight(), parameters.getWidth(), parameters.getChannels() );
+        scaler = ModelNormalizer.create();
+        decoded = loader.asMatrix( files.get( 0 ));
+        preprocessor = new ImagePreprocessor( parameters, scaler );
+        batch = preprocessor.createBatch( IMAGE_COUNT );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws IOException
+    {
+        FileUtils.deleteDirectory( directory );
+    }
+
+    @Benchmark
+    public INDArray decodeResize() throws IOException
+    {
+        next = ( next + 1 ) % files.size();
+        return loader.asMatrix( files.get( next ));
+    }
+
+    @Benchmark
+    public INDArray decodeResizeScale() throws IOException
+    {
+        next = ( next + 1 ) % files.size();
+        INDArray image = loader.asMatrix( files.get( next ));
+        scaler.transform( image );
+        return image;
+    }
+
+    @Benchmark
+    public INDArray preprocessorSlot() throws IOException
+    {
+        next = ( next + 1 ) % files.size();
+        preprocessor.load( files.get( next ), batch, next );
+        return batch;
+    }
+
+    @Benchmark
+    public INDArray scale()
+    {
+        INDArray image = decoded.dup();
+        scaler.transform( image );
+        return image;
+    }
+}
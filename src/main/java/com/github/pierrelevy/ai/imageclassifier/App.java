@@ -19,16 +19,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.ResourceBundle;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Logger;
+import org.datavec.api.split.FileSplit;
 import org.datavec.image.loader.NativeImageLoader;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.util.ModelSerializer;
-import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
-import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
 
 /**
  * Image Recognition App
@@ -38,36 +39,145 @@ public class App
 {
     private static final String MODEL_BUNDLE = "conf/model.properties";
     private static final String TRAINER_BUNDLE = "conf/trainer.properties";
+    private static final String SERVER_BUNDLE = "conf/server.properties";
+    private static final String TUNER_BUNDLE = "conf/tuner.properties";
 
     static Logger log = Logger.getRootLogger();
     
     private static final String KEY_HEIGHT = "height";
     private static final String KEY_WIDTH = "width";
     private static final String KEY_CHANNELS = "channels";
+    private static final String KEY_NETWORK = "network";
+    private static final String KEY_INFERENCE_MODEL = "inferenceModel";
+    private static final String KEY_CALIBRATION_SAMPLES = "calibrationSamples";
+    private static final String KEY_CALIBRATION_TOLERANCE = "calibrationTolerance";
+    private static final String KEY_LEARNING_RATE = "learningRate";
+    private static final String KEY_L2 = "l2";
+    private static final String KEY_DENSE_SIZE = "denseSize";
     private static final int DEFAULT_HEIGHT = 100;
     private static final int DEFAULT_WIDTH = 100;
     private static final int DEFAULT_CHANNELS = 3;
+    private static final String DEFAULT_NETWORK = NetworkRegistry.ALEXNET;
+    private static final int DEFAULT_CALIBRATION_SAMPLES = 200;
+    private static final double DEFAULT_CALIBRATION_TOLERANCE = 0.01;
     private static final long SEED = 42;
 
+    private static final String KEY_ARCHITECTURES = "architectures";
+    private static final String KEY_LEARNING_RATES = "learningRates";
+    private static final String KEY_DENSE_SIZES = "denseSizes";
+    private static final String KEY_TRIALS = "trials";
+    private static final String KEY_CONCURRENCY = "concurrency";
+    private static final String KEY_CPU_BUDGET = "cpuBudget";
+    private static final String KEY_MIN_BUDGET = "minBudget";
+    private static final String KEY_MAX_BUDGET = "maxBudget";
+    private static final String KEY_REDUCTION = "reduction";
+    private static final String KEY_RESULTS_PATH = "resultsPath";
+    private static final String DEFAULT_ARCHITECTURES = NetworkRegistry.LENET;
+    private static final String DEFAULT_LEARNING_RATES = "1e-5:1e-2";
+    private static final String DEFAULT_L2_RANGE = "1e-5:1e-2";
+    private static final String DEFAULT_DENSE_SIZES = "500";
+    private static final int DEFAULT_TRIALS = 27;
+    private static final int DEFAULT_CONCURRENCY = 2;
+    private static final int DEFAULT_CPU_BUDGET = 0;
+    private static final int DEFAULT_MIN_BUDGET = 10;
+    private static final int DEFAULT_MAX_BUDGET = 270;
+    private static final int DEFAULT_REDUCTION = 3;
+    private static final String DEFAULT_RESULTS_PATH = "tune/results.tsv";
+
     private static final int iterations = 1;
     private static final String KEY_EPOCHS = "epochs";
     private static final String KEY_NUM_SAMPLES = "numSamples";
     private static final String KEY_BATCH_SIZE = "batchSize";
     private static final String KEY_DATA_PATH = "dataPath";
+    private static final String KEY_PACK_PATH = "packPath";
+    private static final String KEY_INDEX_PATH = "indexPath";
+    private static final String KEY_WORKERS = "workers";
+    private static final String KEY_PREFETCH_DEPTH = "prefetchDepth";
+    private static final String KEY_AUGMENTATION = "augmentation";
+    private static final String KEY_PARALLEL_WORKERS = "parallelWorkers";
+    private static final String KEY_AVERAGING_FREQUENCY = "averagingFrequency";
+    private static final String KEY_METRICS_PATH = "metricsPath";
+    private static final String KEY_METRICS_PORT = "metricsPort";
+    private static final String KEY_CHECKPOINT_PATH = "checkpointPath";
+    private static final String KEY_CHECKPOINT_FREQUENCY = "checkpointFrequency";
+    private static final String KEY_CHECKPOINT_INTERVAL = "checkpointInterval";
+    private static final String KEY_CHECKPOINT_KEEP = "checkpointKeep";
+    private static final String KEY_COORDINATOR_PORT = "coordinatorPort";
+    private static final String KEY_MIN_WORKERS = "minWorkers";
+    private static final String KEY_WORKER_TIMEOUT = "workerTimeout";
+    private static final String KEY_VALIDATION_SPLIT = "validationSplit";
+    private static final String KEY_VALIDATION_FREQUENCY = "validationFrequency";
+    private static final String KEY_PATIENCE = "patience";
+    private static final String KEY_LEARNING_RATE_CUT = "learningRateCut";
+    private static final String KEY_MAX_LEARNING_RATE_CUTS = "maxLearningRateCuts";
+    private static final String KEY_BEST_MODEL_PATH = "bestModelPath";
+    private static final String KEY_FEATURE_CACHE_PATH = "featureCachePath";
     private static final int DEFAULT_EPOCHS = 2;
     private static final int DEFAULT_NUM_SAMPLES = 10;
     private static final int DEFAULT_BATCH_SIZE = 20;
     private static final String DEFAULT_DATA_PATH = "data";
+    private static final String DEFAULT_PACK_PATH = "";
+    private static final String DEFAULT_INDEX_PATH = "";
+    private static final int DEFAULT_WORKERS = 2;
+    private static final int DEFAULT_PREFETCH_DEPTH = 4;
+    private static final String DEFAULT_AUGMENTATION = "flip:0.5,warp:0.25";
+    private static final int DEFAULT_PARALLEL_WORKERS = 1;
+    private static final int DEFAULT_AVERAGING_FREQUENCY = 3;
+    private static final String DEFAULT_METRICS_PATH = "metrics";
+    private static final int DEFAULT_METRICS_PORT = 0;
+    private static final String DEFAULT_CHECKPOINT_PATH = "checkpoints";
+    private static final int DEFAULT_CHECKPOINT_FREQUENCY = 100;
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 30;
+    private static final int DEFAULT_CHECKPOINT_KEEP = 3;
+    private static final int DEFAULT_COORDINATOR_PORT = 9300;
+    private static final int DEFAULT_MIN_WORKERS = 1;
+    private static final int DEFAULT_WORKER_TIMEOUT = 600;
+    private static final int WORKER_CONNECT_ATTEMPTS = 30;
+    private static final double DEFAULT_VALIDATION_SPLIT = 0.0;
+    private static final int DEFAULT_VALIDATION_FREQUENCY = 0;
+    private static final int DEFAULT_PATIENCE = 5;
+    private static final double DEFAULT_LEARNING_RATE_CUT = 0.1;
+    private static final int DEFAULT_MAX_LEARNING_RATE_CUTS = 2;
+    private static final String DEFAULT_BEST_MODEL_PATH = "";
+    private static final String DEFAULT_FEATURE_CACHE_PATH = "";
+    private static final String OPTION_RESUME = "--resume";
     private static final double SPLIT_TRAIN_TEST = 0.8;
     private static final int LISTENER_FREQUENCY = 1;
     private static final int NUM_CORE = 2;
     private static final boolean save = true;
     private static final boolean uiserver = false;
+
+    private static final String KEY_HOST = "host";
+    private static final String KEY_PORT = "port";
+    private static final String KEY_THREADS = "threads";
+    private static final String KEY_WARMUP = "warmup";
+    private static final String KEY_STATS_INTERVAL = "statsInterval";
+    private static final String KEY_MAX_BATCH_SIZE = "maxBatchSize";
+    private static final String KEY_MAX_WAIT = "maxWait";
+    private static final String KEY_TOP_K = "topK";
+    private static final String KEY_REPLICAS = "replicas";
+    private static final String KEY_CACHE_ENTRIES = "cacheEntries";
+    private static final String KEY_CACHE_MEMORY = "cacheMemory";
+    private static final String KEY_RELOAD_INTERVAL = "reloadInterval";
+    private static final String DEFAULT_HOST = "localhost";
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_WARMUP = 5;
+    private static final int DEFAULT_STATS_INTERVAL = 60;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 32;
+    private static final int DEFAULT_MAX_WAIT = 5;
+    private static final int DEFAULT_TOP_K = 5;
+    private static final int DEFAULT_REPLICAS = 1;
+    private static final int DEFAULT_CACHE_ENTRIES = 0;
+    private static final int DEFAULT_CACHE_MEMORY = 64;
+    private static final int DEFAULT_RELOAD_INTERVAL = 0;
+    private static final String DEFAULT_PREDICTIONS_PATH = "predictions.csv";
+    private static final int DEFAULT_NUM_LABELS = 10;
     
 
     public static void main(String[] args) throws IOException
     {
-        if( args.length < 2 )
+        if( args.length < 1 || ( args.length < 2 && !args[0].equals( "serve" ) && !args[0].equals( "networks" ) && !args[0].equals( "export" ) ) )
         {
            error();
         }
@@ -77,22 +187,128 @@ public class App
         Properties modelProperties = getProperties( MODEL_BUNDLE );
         Properties trainerProperties = getProperties( TRAINER_BUNDLE );
         ModelParameters modelParameters = loadModelParameters( modelProperties );
+        // Model used by predict, predict-batch and serve : the trained one or an exported one
+        String inferencePath = getString( modelProperties , KEY_INFERENCE_MODEL , "" );
+        if( inferencePath.isEmpty() )
+        {
+            inferencePath = modelPath;
+        }
 
         if( args[0].equals( "train" ) )
         {
             String dataPath = args[1];
-            int numLabels = new File( dataPath).listFiles().length;
+            int numLabels = countLabels( dataPath , trainerProperties );
+
+            TrainerParameters trainerParameters = loadTrainerParameter( trainerProperties , numLabels );
+            displayTrainerParameters( trainerParameters , numLabels );
+
+            displayModelParameters( modelParameters );
+            boolean resume = args.length > 2 && args[2].equals( OPTION_RESUME );
+            train(dataPath, modelPath , trainerParameters , modelParameters , resume );
+        }
+        else if( args[0].equals( "coordinate" ) )
+        {
+            String dataPath = args[1];
+            int numLabels = countLabels( dataPath , trainerProperties );
 
             TrainerParameters trainerParameters = loadTrainerParameter( trainerProperties , numLabels );
+            if( args.length > 2 )
+            {
+                trainerParameters.setMinWorkers( Integer.parseInt( args[2] ));
+            }
             displayTrainerParameters( trainerParameters , numLabels );
+            displayModelParameters( modelParameters );
+            coordinate( modelPath , trainerParameters , modelParameters );
+        }
+        else if( args[0].equals( "worker" ) )
+        {
+            String[] address = args[1].split( ":" );
+            int port = ( address.length > 1 ) ? Integer.parseInt( address[1] ) : getInt( trainerProperties , KEY_COORDINATOR_PORT , DEFAULT_COORDINATOR_PORT );
+            new TrainingWorker( address[0] , port , WORKER_CONNECT_ATTEMPTS ).run();
+        }
+        else if( args[0].equals( "finetune" ) )
+        {
+            String dataPath = args[1];
+            int numLabels = countLabels( dataPath , trainerProperties );
+
+            TrainerParameters trainerParameters = loadTrainerParameter( trainerProperties , numLabels );
+            trainerParameters.setPathData( dataPath );
+            displayTrainerParameters( trainerParameters , numLabels );
+            displayModelParameters( modelParameters );
+            String basePath = ( args.length > 2 ) ? args[2] : modelPath;
+            String outputPath = FilenameUtils.removeExtension( modelPath ) + "-finetuned.bin";
+            fineTune( basePath , outputPath , trainerParameters , modelParameters );
+        }
+        else if( args[0].equals( "tune" ) )
+        {
+            String dataPath = args[1];
+            int numLabels = countLabels( dataPath , trainerProperties );
+
+            TrainerParameters trainerParameters = loadTrainerParameter( trainerProperties , numLabels );
+            trainerParameters.setPathData( dataPath );
+            displayModelParameters( modelParameters );
+            HyperparameterTuner tuner = new HyperparameterTuner( loadTunerParameters( getProperties( TUNER_BUNDLE ) ) , trainerParameters , modelParameters );
+            HyperparameterTuner.Trial best = tuner.run();
+            log.info( "Best trial : " + best );
+        }
+        else if( args[0].equals( "pack" ) )
+        {
+            String dataPath = args[1];
+            int numLabels = countLabels( dataPath , trainerProperties );
 
+            TrainerParameters trainerParameters = loadTrainerParameter( trainerProperties , numLabels );
+            if( trainerParameters.getPackPath().isEmpty() )
+            {
+                log.error( "No " + KEY_PACK_PATH + " defined in " + TRAINER_BUNDLE );
+                System.exit( 1 );
+            }
             displayModelParameters( modelParameters );
-            train(dataPath, modelPath , trainerParameters , modelParameters );
+            Trainer.pack( trainerParameters , modelParameters );
         }
         else if( args[0].equals( "predict" ) )
         {
-            predict(modelPath , args[1] , modelParameters );
+            int topK = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : DEFAULT_TOP_K;
+            predict(inferencePath , args[1] , topK , modelParameters );
         } 
+        else if( args[0].equals( "predict-batch" ) )
+        {
+            ServerParameters serverParameters = loadServerParameters( getProperties( SERVER_BUNDLE ) );
+            String outputPath = ( args.length > 2 ) ? args[2] : DEFAULT_PREDICTIONS_PATH;
+            predictBatch( inferencePath , args[1] , outputPath , serverParameters , modelParameters );
+        }
+        else if( args[0].equals( "evaluate" ) )
+        {
+            if( args.length < 3 )
+            {
+                error();
+            }
+            ServerParameters serverParameters = loadServerParameters( getProperties( SERVER_BUNDLE ) );
+            evaluate( args[1] , args[2] , serverParameters , modelParameters );
+        }
+        else if( args[0].equals( "quantize" ) )
+        {
+            QuantizedModel.Precision precision = QuantizedModel.Precision.valueOf( args[1].toUpperCase() );
+            String outputPath = ( args.length > 2 ) ? args[2] : FilenameUtils.removeExtension( modelPath ) + "-" + args[1].toLowerCase() + ".bin";
+            quantize( modelPath , outputPath , precision , trainerProperties , modelProperties , modelParameters );
+        }
+        else if( args[0].equals( "export" ) )
+        {
+            String outputPath = ( args.length > 1 ) ? args[1] : FilenameUtils.removeExtension( modelPath ) + "-inference.bin";
+            export( modelPath , outputPath , getString( trainerProperties , KEY_DATA_PATH , DEFAULT_DATA_PATH ) , modelParameters );
+        }
+        else if( args[0].equals( "networks" ) )
+        {
+            networks( modelParameters , args.length > 1 ? Integer.parseInt( args[1] ) : DEFAULT_NUM_LABELS );
+        }
+        else if( args[0].equals( "serve" ) )
+        {
+            ServerParameters serverParameters = loadServerParameters( getProperties( SERVER_BUNDLE ) );
+            if( args.length > 1 )
+            {
+                serverParameters.setPort( Integer.parseInt( args[1] ));
+            }
+            serve( inferencePath , serverParameters , modelParameters );
+        }
         else
         {
             error();
@@ -101,47 +317,189 @@ public class App
     
     private static void error( )
     {
-            System.out.println( "Syntaxe : \ntrain <data root directory>\nor\npredict <image file>\n");
+            System.out.println( "Syntaxe : \ntrain <data root directory> [--resume]\nor\nfinetune <data root directory> [base model]\nor\ntune <data root directory>\nor\ncoordinate <data root directory> [min workers]\nor\nworker <coordinator host[:port]>\nor\npack <data root directory>\nor\npredict <image file> [top k]\nor\npredict-batch <image directory|file list> [output .csv|.jsonl]\nor\nevaluate <model> <data root directory>\nor\nserve [port]\nor\nexport [output]\nor\nquantize <fp16|int8> [output]\nor\nnetworks [label count]\n");
             System.exit( 1 );
     }
 
-    public static void train( String dataPath , String modelPath , TrainerParameters trainerParameters , ModelParameters modelParameters ) throws IOException
+    public static void train( String dataPath , String modelPath , TrainerParameters trainerParameters , ModelParameters modelParameters , boolean resume ) throws IOException
     {
         
-        MultiLayerNetwork network = Trainer.train( NetworkFactory.NETWORK_LENET , trainerParameters , modelParameters);
+        DataNormalization scaler = ModelNormalizer.create();
+        Checkpoint checkpoint = null;
+        if( resume )
+        {
+            checkpoint = Trainer.latestCheckpoint( trainerParameters );
+            if( checkpoint == null )
+            {
+                log.warn( "No checkpoint found in '" + trainerParameters.getCheckpointPath() + "', starting a new training" );
+            }
+            else
+            {
+                scaler = checkpoint.restoreNormalizer();
+            }
+        }
+        List<String> labels = new ArrayList<>();
+        MultiLayerNetwork network = Trainer.train( modelParameters.getNetwork() , trainerParameters , modelParameters , scaler , labels , checkpoint );
         
         if (save) {
             log.info("Save model....");
             ModelSerializer.writeModel(network, modelPath , true);
+            ModelNormalizer.save( new File( modelPath ) , scaler );
+            ModelLabels.save( new File( modelPath ) , labels );
         }
         log.info("****************Example finished********************");
     }
     
-    static void predict( String modelPath , String imagePath , ModelParameters parameters ) throws IOException
+    static void coordinate( String modelPath , TrainerParameters trainerParameters , ModelParameters modelParameters ) throws IOException
+    {
+        DataNormalization scaler = ModelNormalizer.create();
+        List<String> labels = new ArrayList<>();
+        MultiLayerNetwork network = Trainer.trainDistributed( modelParameters.getNetwork() , trainerParameters , modelParameters , scaler , labels );
+
+        log.info("Save model....");
+        ModelSerializer.writeModel(network, modelPath , true);
+        ModelNormalizer.save( new File( modelPath ) , scaler );
+        ModelLabels.save( new File( modelPath ) , labels );
+    }
+
+    static void fineTune( String basePath , String outputPath , TrainerParameters trainerParameters , ModelParameters modelParameters ) throws IOException
+    {
+        File baseFile = new File( basePath );
+        DataNormalization scaler = ModelNormalizer.restore( baseFile );
+        List<String> labels = new ArrayList<>();
+        MultiLayerNetwork network = FineTuner.fineTune( baseFile , trainerParameters , modelParameters , scaler , labels );
+
+        log.info("Save model....");
+        ModelSerializer.writeModel(network, outputPath , true);
+        ModelNormalizer.save( new File( outputPath ) , scaler );
+        ModelLabels.save( new File( outputPath ) , labels );
+        log.info( "Fine-tuned model written to " + outputPath + " (set inferenceModel in model.properties to use it)" );
+    }
+
+    static void predict( String modelPath , String imagePath , int topK , ModelParameters parameters ) throws IOException
     {
         log.info("**************** Loading model ********************");
-        MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork( modelPath );
-        File file = new File( imagePath );
-        NativeImageLoader loader = new NativeImageLoader( parameters.getHeight(), parameters.getWidth(), parameters.getChannels() );
-        INDArray image = loader.asMatrix(file);
-        DataNormalization scaler = new ImagePreProcessingScaler(0, 1);
-        scaler.transform(image);
-        INDArray output = network.output(image);
-        INDArray labels = network.getLabels();
+        ImageClassifier classifier = ImageClassifier.load( modelPath , parameters );
+        List<Prediction> predictions = classifier.predict( new File( imagePath ) , topK );
+        classifier.close();
 
 
         log.info("## The FILE CHOSEN WAS " + imagePath );
         log.info("## The Neural Nets Prediction ##");
-        log.info("## list of probabilities per label ##");
-        if( labels != null )
+        log.info("## top " + predictions.size() + " labels with their probability ##");
+        for( Prediction prediction : predictions )
         {
-            log.info( labels.toString() );
+            log.info( prediction.toString() );
         }
-        log.info("## List of Labels in Order## ");
-        log.info( output.toString() );            
+    }
 
-   
-        
+    static void export( String modelPath , String outputPath , String dataPath , ModelParameters parameters ) throws IOException
+    {
+        log.info("**************** Loading model ********************");
+        File modelFile = new File( modelPath );
+        long start = System.currentTimeMillis();
+        MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork( modelFile );
+        long restoreTime = System.currentTimeMillis() - start;
+        DataNormalization scaler = ModelNormalizer.restore( modelFile );
+        List<String> labels = ModelLabels.restore( modelFile );
+        if( labels == null )
+        {
+            // Models saved before the labels were stored : same order as the training
+            labels = DatasetPacker.labels( new FileSplit( new File( dataPath ) , NativeImageLoader.ALLOWED_FORMATS ) );
+        }
+
+        File outputFile = new File( outputPath );
+        InferenceModel.write( outputFile , network , scaler , parameters , labels );
+        start = System.currentTimeMillis();
+        InferenceModel.read( outputFile );
+        long loadTime = System.currentTimeMillis() - start;
+
+        log.info( "Inference model " + outputPath + " : " + ( outputFile.length() / 1024 ) + "KB, loaded in " + loadTime + "ms ("
+                + modelPath + " : " + ( modelFile.length() / 1024 ) + "KB, restored in " + restoreTime + "ms)" );
+        log.info( "Labels : " + labels );
+    }
+
+    static void quantize( String modelPath , String outputPath , QuantizedModel.Precision precision , Properties trainerProperties ,
+            Properties modelProperties , ModelParameters parameters ) throws IOException
+    {
+        log.info("**************** Loading model ********************");
+        File modelFile = new File( modelPath );
+        MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork( modelFile );
+        DataNormalization scaler = ModelNormalizer.restore( modelFile );
+        List<String> labels = ModelLabels.restore( modelFile );
+
+        String dataPath = getString( trainerProperties , KEY_DATA_PATH , DEFAULT_DATA_PATH );
+        int samples = getInt( modelProperties , KEY_CALIBRATION_SAMPLES , DEFAULT_CALIBRATION_SAMPLES );
+        double tolerance = Double.parseDouble( getString( modelProperties , KEY_CALIBRATION_TOLERANCE , String.valueOf( DEFAULT_CALIBRATION_TOLERANCE )));
+        ModelQuantizer quantizer = new ModelQuantizer( network , scaler , labels , parameters , dataPath , samples , parameters.getSeed() );
+        ModelQuantizer.Report report = quantizer.export( new File( outputPath ) , quantizer.calibrate( precision , tolerance ) );
+
+        log.info( "Quantized model " + outputPath + " : " + ( new File( outputPath ).length() / 1024 ) + "KB (" + modelPath + " : "
+                + ( modelFile.length() / 1024 ) + "KB)" );
+        log.info( "Accuracy report, " + report );
+    }
+
+    static void networks( ModelParameters parameters , int numLabels )
+    {
+        System.out.println( "Architectures for " + parameters.getWidth() + "x" + parameters.getHeight() + "x" + parameters.getChannels()
+                + " images and " + numLabels + " labels :" );
+        for( NetworkArchitecture architecture : NetworkRegistry.list() )
+        {
+            MultiLayerNetwork network = architecture.build( parameters , numLabels );
+            network.init();
+            System.out.println( NetworkSummary.of( architecture.getName() , network , parameters ).toLine() + "  " + architecture.getDescription() );
+        }
+    }
+
+    static void predictBatch( String modelPath , String input , String outputPath , ServerParameters serverParameters , ModelParameters parameters ) throws IOException
+    {
+        log.info("**************** Loading model ********************");
+        ImageClassifier classifier = ImageClassifier.load( modelPath , parameters , serverParameters );
+        classifier.warmup( serverParameters.getWarmup() );
+
+        BatchPredictor predictor = new BatchPredictor( classifier , serverParameters.getThreads() , serverParameters.getMaxBatchSize() , serverParameters.getTopK() );
+        predictor.run( input , outputPath );
+        classifier.close();
+        if( classifier.getCache() != null )
+        {
+            log.info( "Prediction cache : " + classifier.getCache() );
+        }
+        log.info( "Predictions written to " + outputPath );
+    }
+
+    static void evaluate( String modelPath , String dataPath , ServerParameters serverParameters , ModelParameters parameters ) throws IOException
+    {
+        log.info("**************** Loading model ********************");
+        // No prediction cache : every image goes through the model
+        ImageClassifier classifier = ImageClassifier.load( modelPath , parameters , serverParameters.getReplicas() ,
+                serverParameters.getMaxBatchSize() , serverParameters.getMaxWait() );
+        classifier.warmup( serverParameters.getWarmup() );
+
+        ModelEvaluator evaluator = new ModelEvaluator( classifier , serverParameters.getThreads() , serverParameters.getMaxBatchSize() );
+        ModelEvaluator.Report report = evaluator.run( new File( dataPath ) );
+        classifier.close();
+        log.info( report.toString() );
+    }
+
+    static void serve( String modelPath , ServerParameters serverParameters , ModelParameters parameters ) throws IOException
+    {
+        log.info("**************** Loading model ********************");
+        ImageClassifier classifier = ImageClassifier.load( modelPath , parameters , serverParameters );
+        classifier.warmup( serverParameters.getWarmup() );
+
+        // The model file is loaded again when rewritten (training) or on POST /admin/reload
+        ModelReloader reloader = new ModelReloader( classifier , modelPath , parameters , serverParameters );
+        final PredictionServer server = new PredictionServer( reloader , serverParameters );
+        server.start();
+        Runtime.getRuntime().addShutdownHook( new Thread()
+        {
+            @Override
+            public void run()
+            {
+                server.stop();
+                log.info( "Final stats : " + server.getLatency().toString() );
+            }
+        });
     }
     
     private static ModelParameters loadModelParameters( Properties modelProperties ) throws IOException
@@ -152,6 +510,11 @@ public class App
         parameters.setHeight( getInt( modelProperties , KEY_HEIGHT , DEFAULT_HEIGHT ));
         parameters.setWidth( getInt( modelProperties , KEY_WIDTH , DEFAULT_WIDTH ));
         parameters.setChannels( getInt( modelProperties , KEY_CHANNELS , DEFAULT_CHANNELS ));
+        parameters.setNetwork( getString( modelProperties , KEY_NETWORK , DEFAULT_NETWORK ));
+        // Hyperparameters, 0 or missing for the architecture defaults
+        parameters.setLearningRate( Double.parseDouble( getString( modelProperties , KEY_LEARNING_RATE , "0" )));
+        parameters.setL2( Double.parseDouble( getString( modelProperties , KEY_L2 , "0" )));
+        parameters.setDenseSize( Integer.parseInt( getString( modelProperties , KEY_DENSE_SIZE , "0" )));
         parameters.setIterations(iterations);
         parameters.setSeed(SEED);
         
@@ -186,6 +549,15 @@ public class App
         return nReturn;
     }
     
+    /**
+     * Count the labels of a data directory from its index, updated on the way
+     */
+    private static int countLabels( String dataPath , Properties trainerProperties ) throws IOException
+    {
+        String indexPath = getString( trainerProperties , KEY_INDEX_PATH , DEFAULT_INDEX_PATH );
+        return DatasetIndex.scan( new File( dataPath ) , indexPath.isEmpty() ? null : new File( indexPath ) ).getLabels().size();
+    }
+
     private static TrainerParameters loadTrainerParameter( Properties trainerProperties , int numLabels ) throws IOException
     {
         TrainerParameters parameters = new TrainerParameters();
@@ -197,6 +569,29 @@ public class App
         parameters.setEpochs( getInt( trainerProperties , KEY_EPOCHS , DEFAULT_EPOCHS ) );
         parameters.setListenerFreq( LISTENER_FREQUENCY );
         parameters.setSplitTrainTest( SPLIT_TRAIN_TEST );
+        parameters.setPackPath( getString( trainerProperties , KEY_PACK_PATH , DEFAULT_PACK_PATH ));
+        parameters.setIndexPath( getString( trainerProperties , KEY_INDEX_PATH , DEFAULT_INDEX_PATH ));
+        parameters.setWorkers( getInt( trainerProperties , KEY_WORKERS , DEFAULT_WORKERS ));
+        parameters.setPrefetchDepth( getInt( trainerProperties , KEY_PREFETCH_DEPTH , DEFAULT_PREFETCH_DEPTH ));
+        parameters.setAugmentation( getString( trainerProperties , KEY_AUGMENTATION , DEFAULT_AUGMENTATION ));
+        parameters.setParallelWorkers( getInt( trainerProperties , KEY_PARALLEL_WORKERS , DEFAULT_PARALLEL_WORKERS ));
+        parameters.setAveragingFrequency( getInt( trainerProperties , KEY_AVERAGING_FREQUENCY , DEFAULT_AVERAGING_FREQUENCY ));
+        parameters.setMetricsPath( getString( trainerProperties , KEY_METRICS_PATH , DEFAULT_METRICS_PATH ));
+        parameters.setMetricsPort( getInt( trainerProperties , KEY_METRICS_PORT , DEFAULT_METRICS_PORT ));
+        parameters.setCheckpointPath( getString( trainerProperties , KEY_CHECKPOINT_PATH , DEFAULT_CHECKPOINT_PATH ));
+        parameters.setCheckpointFrequency( getInt( trainerProperties , KEY_CHECKPOINT_FREQUENCY , DEFAULT_CHECKPOINT_FREQUENCY ));
+        parameters.setCheckpointInterval( getInt( trainerProperties , KEY_CHECKPOINT_INTERVAL , DEFAULT_CHECKPOINT_INTERVAL ));
+        parameters.setCheckpointKeep( getInt( trainerProperties , KEY_CHECKPOINT_KEEP , DEFAULT_CHECKPOINT_KEEP ));
+        parameters.setCoordinatorPort( getInt( trainerProperties , KEY_COORDINATOR_PORT , DEFAULT_COORDINATOR_PORT ));
+        parameters.setMinWorkers( getInt( trainerProperties , KEY_MIN_WORKERS , DEFAULT_MIN_WORKERS ));
+        parameters.setWorkerTimeout( getInt( trainerProperties , KEY_WORKER_TIMEOUT , DEFAULT_WORKER_TIMEOUT ));
+        parameters.setValidationSplit( Double.parseDouble( getString( trainerProperties , KEY_VALIDATION_SPLIT , String.valueOf( DEFAULT_VALIDATION_SPLIT ))));
+        parameters.setValidationFrequency( getInt( trainerProperties , KEY_VALIDATION_FREQUENCY , DEFAULT_VALIDATION_FREQUENCY ));
+        parameters.setPatience( getInt( trainerProperties , KEY_PATIENCE , DEFAULT_PATIENCE ));
+        parameters.setLearningRateCut( Double.parseDouble( getString( trainerProperties , KEY_LEARNING_RATE_CUT , String.valueOf( DEFAULT_LEARNING_RATE_CUT ))));
+        parameters.setMaxLearningRateCuts( getInt( trainerProperties , KEY_MAX_LEARNING_RATE_CUTS , DEFAULT_MAX_LEARNING_RATE_CUTS ));
+        parameters.setBestModelPath( getString( trainerProperties , KEY_BEST_MODEL_PATH , DEFAULT_BEST_MODEL_PATH ));
+        parameters.setFeatureCachePath( getString( trainerProperties , KEY_FEATURE_CACHE_PATH , DEFAULT_FEATURE_CACHE_PATH ));
         parameters.setnCores( NUM_CORE );
         parameters.setUIServer( uiserver );
         parameters.setNumLabels( numLabels );
@@ -205,6 +600,45 @@ public class App
 
     }
     
+    private static ServerParameters loadServerParameters( Properties serverProperties )
+    {
+        ServerParameters parameters = new ServerParameters();
+
+        parameters.setHost( getString( serverProperties , KEY_HOST , DEFAULT_HOST ));
+        parameters.setPort( getInt( serverProperties , KEY_PORT , DEFAULT_PORT ));
+        parameters.setThreads( getInt( serverProperties , KEY_THREADS , DEFAULT_THREADS ));
+        parameters.setWarmup( getInt( serverProperties , KEY_WARMUP , DEFAULT_WARMUP ));
+        parameters.setStatsInterval( getInt( serverProperties , KEY_STATS_INTERVAL , DEFAULT_STATS_INTERVAL ));
+        parameters.setMaxBatchSize( getInt( serverProperties , KEY_MAX_BATCH_SIZE , DEFAULT_MAX_BATCH_SIZE ));
+        parameters.setMaxWait( getInt( serverProperties , KEY_MAX_WAIT , DEFAULT_MAX_WAIT ));
+        parameters.setTopK( getInt( serverProperties , KEY_TOP_K , DEFAULT_TOP_K ));
+        parameters.setReplicas( getInt( serverProperties , KEY_REPLICAS , DEFAULT_REPLICAS ));
+        parameters.setCacheEntries( getInt( serverProperties , KEY_CACHE_ENTRIES , DEFAULT_CACHE_ENTRIES ));
+        parameters.setCacheMemory( getInt( serverProperties , KEY_CACHE_MEMORY , DEFAULT_CACHE_MEMORY ));
+        parameters.setReloadInterval( getInt( serverProperties , KEY_RELOAD_INTERVAL , DEFAULT_RELOAD_INTERVAL ));
+
+        return parameters;
+    }
+    
+    private static TunerParameters loadTunerParameters( Properties tunerProperties )
+    {
+        TunerParameters parameters = new TunerParameters();
+
+        parameters.setArchitectures( getString( tunerProperties , KEY_ARCHITECTURES , DEFAULT_ARCHITECTURES ));
+        parameters.setLearningRates( getString( tunerProperties , KEY_LEARNING_RATES , DEFAULT_LEARNING_RATES ));
+        parameters.setL2( getString( tunerProperties , KEY_L2 , DEFAULT_L2_RANGE ));
+        parameters.setDenseSizes( getString( tunerProperties , KEY_DENSE_SIZES , DEFAULT_DENSE_SIZES ));
+        parameters.setTrials( getInt( tunerProperties , KEY_TRIALS , DEFAULT_TRIALS ));
+        parameters.setConcurrency( getInt( tunerProperties , KEY_CONCURRENCY , DEFAULT_CONCURRENCY ));
+        parameters.setCpuBudget( getInt( tunerProperties , KEY_CPU_BUDGET , DEFAULT_CPU_BUDGET ));
+        parameters.setMinBudget( getInt( tunerProperties , KEY_MIN_BUDGET , DEFAULT_MIN_BUDGET ));
+        parameters.setMaxBudget( getInt( tunerProperties , KEY_MAX_BUDGET , DEFAULT_MAX_BUDGET ));
+        parameters.setReduction( getInt( tunerProperties , KEY_REDUCTION , DEFAULT_REDUCTION ));
+        parameters.setResultsPath( getString( tunerProperties , KEY_RESULTS_PATH , DEFAULT_RESULTS_PATH ));
+
+        return parameters;
+    }
+
     private static void displayTrainerParameters( TrainerParameters parameters , int numLabels )
     {
         System.out.println( "=================================================================" );
@@ -215,7 +649,19 @@ public class App
         System.out.println( "Sample count per category  : " + parameters.getNumExamples() );
         System.out.println( "Sample count per batch     : " + parameters.getBatchSize() );
         System.out.println( "Epoch count                : " + parameters.getEpochs() );
-        int numIterations = (int) ((parameters.getEpochs() * parameters.getNumExamples() * 4 * numLabels / parameters.getBatchSize()) * parameters.getSplitTrainTest());
+        System.out.println( "Decode workers             : " + parameters.getWorkers() );
+        System.out.println( "Prefetched batches         : " + parameters.getPrefetchDepth() );
+        System.out.println( "Augmentation               : " + parameters.getAugmentation() );
+        System.out.println( "Parallel training workers  : " + parameters.getParallelWorkers() );
+        if( parameters.getValidationFrequency() > 0 )
+        {
+            System.out.println( "Early stopping             : validation on " + ( parameters.getValidationSplit() * 100 ) + "% of the train data every "
+                    + parameters.getValidationFrequency() + " iterations, patience " + parameters.getPatience() );
+        }
+        System.out.println( "Metrics files              : " + parameters.getMetricsPath() );
+        System.out.println( "Checkpoints                : " + parameters.getCheckpointPath() + " (every " + parameters.getCheckpointFrequency()
+                + " minibatches or " + parameters.getCheckpointInterval() + "mn, keep " + parameters.getCheckpointKeep() + ")" );
+        int numIterations = (int) ((parameters.getEpochs() * parameters.getNumExamples() * numLabels / parameters.getBatchSize()) * parameters.getSplitTrainTest());
         System.out.println( "Iteration count            : " + numIterations );
         System.out.println( "=================================================================" );
     }
@@ -227,6 +673,7 @@ public class App
         System.out.println( "=================================================================" );
         System.out.println( "Image size                 : " + parameters.getWidth() + "x" + parameters.getHeight() );
         System.out.println( "Color channels count       : " + parameters.getChannels() );
+        System.out.println( "Network                    : " + parameters.getNetwork() );
         System.out.println( "=================================================================" );
     }
 
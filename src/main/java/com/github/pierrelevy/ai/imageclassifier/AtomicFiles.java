@@ -0,0 +1,53 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * AtomicFiles
+ *
+ * Files written aside then moved over the target, so that a reader never
+ * sees a partially written file and a failed write leaves the previous one.
+ */
+final class AtomicFiles
+{
+    private AtomicFiles()
+    {
+    }
+
+    /**
+     * Move a written file over the target, atomically when the file system supports it
+     * @param source The written file
+     * @param target The target file
+     * @throws IOException if the file can't be moved
+     */
+    static void move( File source , File target ) throws IOException
+    {
+        try
+        {
+            Files.move( source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch( AtomicMoveNotSupportedException e )
+        {
+            Files.move( source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        }
+    }
+}
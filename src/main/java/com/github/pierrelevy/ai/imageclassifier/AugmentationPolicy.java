@@ -0,0 +1,188 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.datavec.image.transform.CropImageTransform;
+import org.datavec.image.transform.FlipImageTransform;
+import org.datavec.image.transform.ImageTransform;
+import org.datavec.image.transform.RotateImageTransform;
+import org.datavec.image.transform.ScaleImageTransform;
+import org.datavec.image.transform.WarpImageTransform;
+
+/**
+ * AugmentationPolicy
+ *
+ * List of image transforms with the probability to apply each of them to an
+ * image. The remaining probability leaves the image unchanged. The policy is
+ * read from a specification such as "flip:0.5,warp:0.25".
+ */
+public class AugmentationPolicy
+{
+    public static final String FLIP = "flip";
+    public static final String WARP = "warp";
+    public static final String ROTATE = "rotate";
+    public static final String CROP = "crop";
+    public static final String SCALE = "scale";
+
+    private static final List<String> TRANSFORMS = Arrays.asList( FLIP, WARP, ROTATE, CROP, SCALE );
+
+    private static final float WARP_DELTA = 42;
+    private static final float ROTATE_ANGLE = 15;
+    private static final int CROP_PIXELS = 10;
+    private static final float SCALE_DELTA = 10;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Double> probabilities = new ArrayList<>();
+
+    /**
+     * Parse a policy
+     * @param spec Comma separated list of transform:probability
+     * @return The policy
+     * @throws IllegalArgumentException if a transform is unknown, a probability is missing or
+     * not a number between 0 and 1, or the probabilities sum over 1
+     */
+    public static AugmentationPolicy parse( String spec )
+    {
+        AugmentationPolicy policy = new AugmentationPolicy();
+        if( spec == null || spec.trim().isEmpty() )
+        {
+            return policy;
+        }
+        double total = 0;
+        for( String item : spec.split( "," ))
+        {
+            String[] parts = item.trim().split( ":" );
+            String name = parts[0].trim();
+            if( !TRANSFORMS.contains( name ))
+            {
+                throw new IllegalArgumentException( "Unknown augmentation '" + name + "', expected one of " + TRANSFORMS + " : " + spec );
+            }
+            if( parts.length != 2 )
+            {
+                throw new IllegalArgumentException( "Expected " + name + ":probability : " + spec );
+            }
+            double probability;
+            try
+            {
+                probability = Double.parseDouble( parts[1].trim() );
+            }
+            catch( NumberFormatException e )
+            {
+                throw new IllegalArgumentException( "Invalid probability for " + name + " '" + parts[1].trim() + "' : " + spec, e );
+            }
+            if( !( probability >= 0.0 && probability <= 1.0 ))
+            {
+                throw new IllegalArgumentException( "Probability for " + name + " must be between 0 and 1 : " + spec );
+            }
+            policy.names.add( name );
+            policy.probabilities.add( probability );
+            total += probability;
+        }
+        if( total > 1.0 + 1e-6 )
+        {
+            throw new IllegalArgumentException( "Augmentation probabilities sum to " + total + " : " + spec );
+        }
+        return policy;
+    }
+
+    /**
+     * @return true if no transform is ever applied
+     */
+    public boolean isEmpty()
+    {
+        return names.isEmpty();
+    }
+
+    /**
+     * Transforms are not thread safe, so each decode worker gets its own augmenter
+     * @param seed The seed of the augmenter random generator
+     * @return A new augmenter
+     */
+    public Augmenter newAugmenter( long seed )
+    {
+        return new Augmenter( new Random( seed ));
+    }
+
+    private static ImageTransform create( String name , Random random )
+    {
+        switch( name )
+        {
+            case FLIP:
+                return new FlipImageTransform( random );
+            case WARP:
+                return new WarpImageTransform( random, WARP_DELTA );
+            case ROTATE:
+                return new RotateImageTransform( random, ROTATE_ANGLE );
+            case CROP:
+                return new CropImageTransform( random, CROP_PIXELS );
+            case SCALE:
+                return new ScaleImageTransform( random, SCALE_DELTA );
+            default:
+                throw new IllegalArgumentException( "Unknown augmentation : " + name );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for( int i = 0 ; i < names.size() ; i++ )
+        {
+            sb.append( ( i > 0 ) ? ", " : "" ).append( names.get( i )).append( ':' ).append( probabilities.get( i ));
+        }
+        return ( sb.length() == 0 ) ? "none" : sb.toString();
+    }
+
+    /**
+     * Samples a transform per image
+     */
+    public class Augmenter
+    {
+        private final Random random;
+        private final ImageTransform[] transforms;
+
+        private Augmenter( Random random )
+        {
+            this.random = random;
+            this.transforms = new ImageTransform[names.size()];
+            for( int i = 0 ; i < transforms.length ; i++ )
+            {
+                transforms[i] = create( names.get( i ), random );
+            }
+        }
+
+        /**
+         * @return the transform to apply to the next image, or null to leave it unchanged
+         */
+        public ImageTransform sample()
+        {
+            double draw = random.nextDouble();
+            for( int i = 0 ; i < transforms.length ; i++ )
+            {
+                draw -= probabilities.get( i );
+                if( draw < 0 )
+                {
+                    return transforms[i];
+                }
+            }
+            return null;
+        }
+    }
+}
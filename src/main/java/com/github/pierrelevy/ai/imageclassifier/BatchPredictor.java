@@ -0,0 +1,218 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * BatchPredictor
+ *
+ * Classifies all the images of a directory tree or of a file list with a
+ * single model load, through an ImageBatchPipeline : images are decoded and
+ * resized by a pool of workers, straight into the batch tensor, each worker
+ * submitting its batch to the shared inference engine.
+ * Results are streamed as CSV or JSONL (depending on the output extension)
+ * as soon as each batch completes. With a prediction cache, images already
+ * classified by the same model are answered without being decoded.
+ */
+public class BatchPredictor
+{
+    private static final Logger log = LoggerFactory.getLogger( BatchPredictor.class );
+
+    private final ImageClassifier classifier;
+    private final ImageBatchPipeline pipeline;
+    private final int topK;
+    private final AtomicLong predicted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param classifier The classifier
+     * @param workers The number of decode workers
+     * @param batchSize The number of images decoded by a worker per batch
+     * @param topK The number of labels reported per image
+     */
+    public BatchPredictor( ImageClassifier classifier , int workers , int batchSize , int topK )
+    {
+        this.classifier = classifier;
+        this.pipeline = new ImageBatchPipeline( classifier.getPreprocessor(), workers, batchSize );
+        this.topK = Math.max( 1, topK );
+    }
+
+    /**
+     * Classify all the images
+     * @param input A directory walked recursively, or a text file listing one image path per line
+     * @param output The output file (.jsonl for JSON lines, CSV otherwise)
+     * @return The number of images classified
+     * @throws IOException if the input can't be read or the output can't be written
+     */
+    public long run( String input , String output ) throws IOException
+    {
+        final boolean json = output.toLowerCase( Locale.ROOT ).endsWith( ".jsonl" );
+        long start = System.currentTimeMillis();
+
+        try( final Writer writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( output ), StandardCharsets.UTF_8 )))
+        {
+            if( !json )
+            {
+                writer.write( "path,labels,probabilities\n" );
+            }
+            pipeline.run( new File( input ), new ImageBatchPipeline.BatchHandler()
+            {
+                @Override
+                public void process( List<File> files )
+                {
+                    classify( files, writer, json );
+                }
+            });
+        }
+
+        long elapsed = Math.max( 1, System.currentTimeMillis() - start );
+        log.info( "Classified " + predicted.get() + " images in " + elapsed + "ms (" + ( predicted.get() * 1000 / elapsed ) + " images/s), "
+                + ( failed.get() + pipeline.getFailed() ) + " failures" );
+        return predicted.get();
+    }
+
+    private void classify( List<File> files , Writer writer , boolean json )
+    {
+        StringBuilder sb = new StringBuilder();
+        CachedLoader loader = new CachedLoader( sb, json );
+        List<File> decoded = new ArrayList<>( files.size() );
+        INDArray batch = pipeline.decode( files, loader, decoded );
+        try
+        {
+            if( batch != null )
+            {
+                INDArray output = classifier.output( batch );
+                for( int i = 0 ; i < decoded.size() ; i++ )
+                {
+                    INDArray row = output.getRow( i );
+                    sb.append( format( decoded.get( i ), row, json ));
+                    if( loader.cache != null )
+                    {
+                        loader.cache.put( loader.encodings.get( i ), classifier.getVersion(), row.dup().data().asFloat() );
+                    }
+                }
+            }
+        }
+        catch( RuntimeException e )
+        {
+            log.error( "Batch of " + decoded.size() + " images failed : " + e.getMessage() );
+            failed.addAndGet( decoded.size() );
+            decoded.clear();
+        }
+        try
+        {
+            synchronized( writer )
+            {
+                writer.write( sb.toString() );
+            }
+            predicted.addAndGet( decoded.size() + loader.hits );
+        }
+        catch( IOException e )
+        {
+            log.error( "Unable to write the predictions of " + ( decoded.size() + loader.hits ) + " images : " + e.getMessage() );
+            failed.addAndGet( decoded.size() + loader.hits );
+        }
+    }
+
+    private String format( File file , INDArray row , boolean json )
+    {
+        List<Prediction> best = Prediction.topK( row, classifier.getLabels(), topK );
+        StringBuilder labels = new StringBuilder();
+        StringBuilder probabilities = new StringBuilder();
+        for( int i = 0 ; i < best.size() ; i++ )
+        {
+            String separator = json ? "," : ";";
+            if( i > 0 )
+            {
+                labels.append( separator );
+                probabilities.append( separator );
+            }
+            String label = best.get( i ).getLabel();
+            labels.append( json ? "\"" + escape( label ) + "\"" : label.replace( "\"", "\"\"" ));
+            probabilities.append( String.format( Locale.US, "%.6f", best.get( i ).getProbability() ));
+        }
+        String path = file.getPath();
+        if( json )
+        {
+            return "{\"path\":\"" + escape( path ) + "\",\"labels\":[" + labels
+                    + "],\"probabilities\":[" + probabilities + "]}\n";
+        }
+        return "\"" + path.replace( "\"", "\"\"" ) + "\",\"" + labels + "\"," + probabilities + "\n";
+    }
+
+    private static String escape( String value )
+    {
+        return value.replace( "\\", "\\\\" ).replace( "\"", "\\\"" );
+    }
+
+    /**
+     * Answers the images already classified from the prediction cache, the
+     * others are decoded into the batch
+     */
+    private class CachedLoader implements ImageBatchPipeline.ImageLoader
+    {
+        private final ImagePreprocessor preprocessor = classifier.getPreprocessor();
+        private final PredictionCache cache = classifier.getCache();
+        private final List<byte[]> encodings = new ArrayList<>();
+        private final StringBuilder sb;
+        private final boolean json;
+        private int hits;
+
+        CachedLoader( StringBuilder sb , boolean json )
+        {
+            this.sb = sb;
+            this.json = json;
+        }
+
+        @Override
+        public boolean load( File file , INDArray batch , int slot ) throws IOException
+        {
+            if( cache == null )
+            {
+                preprocessor.load( file, batch, slot );
+                return true;
+            }
+            byte[] encoded = Files.readAllBytes( file.toPath() );
+            float[] cached = cache.get( encoded, classifier.getVersion() );
+            if( cached != null )
+            {
+                sb.append( format( file, Nd4j.create( cached ), json ));
+                hits++;
+                return false;
+            }
+            preprocessor.load( encoded, batch, slot );
+            encodings.add( encoded );
+            return true;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * BatchingInferenceEngine
+ *
+ * Queues incoming images and coalesces them into a single NCHW batch, up to a
+ * max batch size or until the oldest queued image has waited max wait time.
+ * Requests are never split : one that doesn't fit starts the next batch, and
+ * one larger than the max batch size runs alone. One forward pass is run per batch and the output rows are scattered back to
+ * the callers.
+ *
+ * Several network replicas sharing the same weights can serve the queue, each
+ * on its own thread : an idle replica takes the next batch, so the load goes
+ * to the least busy replica.
+ */
+public class BatchingInferenceEngine
+{
+    private static final Logger log = LoggerFactory.getLogger( BatchingInferenceEngine.class );
+    private static final long POLL_TIMEOUT_MS = 100;
+    private static final long WARMUP_WAIT_MS = 60000;
+
+    private final MultiLayerNetwork network;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong imageCount = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * Constructor
+     * @param network The network
+     * @param maxBatchSize The max number of images per forward pass
+     * @param maxWaitMillis The max time the oldest queued image waits for a batch to fill
+     */
+    public BatchingInferenceEngine( MultiLayerNetwork network , int maxBatchSize , long maxWaitMillis )
+    {
+        this( network , 1 , maxBatchSize , maxWaitMillis );
+    }
+
+    /**
+     * Constructor
+     * @param network The network
+     * @param replicas The number of network replicas running forward passes concurrently
+     * @param maxBatchSize The max number of images per forward pass
+     * @param maxWaitMillis The max time the oldest queued image waits for a batch to fill
+     */
+    public BatchingInferenceEngine( MultiLayerNetwork network , int replicas , int maxBatchSize , long maxWaitMillis )
+    {
+        this.network = network;
+        this.maxBatchSize = Math.max( 1, maxBatchSize );
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos( maxWaitMillis );
+        for( int i = 0 ; i < Math.max( 1, replicas ) ; i++ )
+        {
+            final MultiLayerNetwork replica = ( i == 0 ) ? network : replicate( network );
+            Thread worker = new Thread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    loop( replica );
+                }
+            }, "inference-replica-" + i );
+            worker.setDaemon( true );
+            workers.add( worker );
+        }
+        for( Thread worker : workers )
+        {
+            worker.start();
+        }
+    }
+
+    /**
+     * Build a replica sharing the parameters of the network. Layers keep their
+     * own activations, so replicas can run forward passes concurrently while
+     * the weights are stored once.
+     */
+    private static MultiLayerNetwork replicate( MultiLayerNetwork network )
+    {
+        MultiLayerNetwork replica = new MultiLayerNetwork( network.getLayerWiseConfigurations().clone() );
+        replica.init( network.params(), false );
+        return replica;
+    }
+
+    /**
+     * Run the network on normalized images. Blocks until the batch containing
+     * these images has been processed.
+     * @param images One or more normalized images (NCHW)
+     * @return The output rows matching the input images
+     */
+    public INDArray output( INDArray images )
+    {
+        if( !running )
+        {
+            throw new IllegalStateException( "Inference engine is shut down" );
+        }
+        Request request = new Request( images );
+        queue.add( request );
+        if( !running && queue.remove( request ))
+        {
+            // Shut down meanwhile, the drain may be over : nobody else will answer this request
+            throw new IllegalStateException( "Inference engine is shut down" );
+        }
+        try
+        {
+            request.done.await();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while waiting for inference", e );
+        }
+        if( request.error != null )
+        {
+            throw new IllegalStateException( "Inference failed", request.error );
+        }
+        return request.result;
+    }
+
+    /**
+     * Run forward passes on every replica thread, native workspaces being per
+     * thread. One request is queued per replica and, after its pass, each
+     * replica waits for the others to have taken theirs, so that no replica can
+     * take two of them.
+     * @param images Normalized images (NCHW)
+     * @param passes The number of passes per replica
+     */
+    public void warmup( INDArray images , int passes )
+    {
+        for( int pass = 0 ; pass < passes ; pass++ )
+        {
+            CountDownLatch taken = new CountDownLatch( workers.size() );
+            List<Request> requests = new ArrayList<>( workers.size() );
+            for( int i = 0 ; i < workers.size() ; i++ )
+            {
+                Request request = new Request( images, taken );
+                requests.add( request );
+                queue.add( request );
+            }
+            for( Request request : requests )
+            {
+                if( !running && queue.remove( request ))
+                {
+                    throw new IllegalStateException( "Inference engine is shut down" );
+                }
+                try
+                {
+                    request.done.await();
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException( "Interrupted while warming up", e );
+                }
+                if( request.error != null )
+                {
+                    throw new IllegalStateException( "Warmup failed", request.error );
+                }
+            }
+        }
+    }
+
+    private static void awaitWarmup( CountDownLatch taken )
+    {
+        try
+        {
+            if( !taken.await( WARMUP_WAIT_MS, TimeUnit.MILLISECONDS ))
+            {
+                log.warn( "Warmup : not every replica took a warmup pass within " + WARMUP_WAIT_MS + "ms" );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop accepting requests. Queued requests are processed before the worker exits.
+     */
+    public void shutdown()
+    {
+        running = false;
+        try
+        {
+            for( Thread worker : workers )
+            {
+                worker.join();
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        Request request;
+        while( ( request = queue.poll() ) != null )
+        {
+            request.error = new IllegalStateException( "Inference engine is shut down" );
+            request.done.countDown();
+        }
+    }
+
+    /**
+     * @return the network
+     */
+    public MultiLayerNetwork getNetwork()
+    {
+        return network;
+    }
+
+    /**
+     * @return the number of network replicas
+     */
+    public int getReplicas()
+    {
+        return workers.size();
+    }
+
+    /**
+     * @return the max batch size
+     */
+    public int getMaxBatchSize()
+    {
+        return maxBatchSize;
+    }
+
+    /**
+     * @return the average number of images per forward pass
+     */
+    public double getAverageBatchSize()
+    {
+        long batches = batchCount.get();
+        return ( batches == 0 ) ? 0.0 : (double) imageCount.get() / batches;
+    }
+
+    /**
+     * @return a JSON summary of the batching statistics
+     */
+    public String toJson()
+    {
+        return "{\"replicas\":" + workers.size() + ",\"batches\":" + batchCount.get() + ",\"images\":" + imageCount.get()
+                + ",\"averageBatchSize\":" + getAverageBatchSize() + "}";
+    }
+
+    private void loop( MultiLayerNetwork replica )
+    {
+        List<Request> batch = new ArrayList<>();
+        // A request that would overflow the batch starts the next one of this replica
+        Request held = null;
+        while( running || !queue.isEmpty() || held != null )
+        {
+            try
+            {
+                Request first = ( held != null ) ? held : queue.poll( POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+                held = null;
+                if( first == null )
+                {
+                    continue;
+                }
+                batch.add( first );
+                int rows = first.rows;
+                long deadline = first.enqueued + maxWaitNanos;
+                // Warmup requests run alone, one per replica
+                while( rows < maxBatchSize && first.taken == null )
+                {
+                    long wait = deadline - System.nanoTime();
+                    Request next = ( wait > 0 ) ? queue.poll( wait, TimeUnit.NANOSECONDS ) : queue.poll();
+                    if( next == null )
+                    {
+                        break;
+                    }
+                    if( rows + next.rows > maxBatchSize || next.taken != null )
+                    {
+                        held = next;
+                        break;
+                    }
+                    batch.add( next );
+                    rows += next.rows;
+                }
+                process( replica, batch, rows );
+                if( first.taken != null )
+                {
+                    awaitWarmup( first.taken );
+                }
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+        log.info( Thread.currentThread().getName() + " stopped : " + toJson() );
+    }
+
+    private void process( MultiLayerNetwork replica , List<Request> batch , int rows )
+    {
+        if( batch.get( 0 ).taken != null )
+        {
+            batch.get( 0 ).taken.countDown();
+        }
+        try
+        {
+            INDArray input;
+            if( batch.size() == 1 )
+            {
+                input = batch.get( 0 ).images;
+            }
+            else
+            {
+                INDArray[] images = new INDArray[batch.size()];
+                for( int i = 0 ; i < images.length ; i++ )
+                {
+                    images[i] = batch.get( i ).images;
+                }
+                input = Nd4j.concat( 0, images );
+            }
+            INDArray output = replica.output( input, false );
+            batchCount.incrementAndGet();
+            imageCount.addAndGet( rows );
+
+            int offset = 0;
+            for( Request request : batch )
+            {
+                request.result = output.get( NDArrayIndex.interval( offset, offset + request.rows ), NDArrayIndex.all() ).dup();
+                offset += request.rows;
+                request.done.countDown();
+            }
+        }
+        catch( Throwable e )
+        {
+            // Errors too (out of memory, native failures) : the callers must not wait forever and the replica keeps serving
+            log.error( "Inference failed for a batch of " + rows + " images : " + e );
+            for( Request request : batch )
+            {
+                if( request.done.getCount() > 0 )
+                {
+                    request.error = e;
+                    request.done.countDown();
+                }
+            }
+        }
+    }
+
+    private static class Request
+    {
+        private final INDArray images;
+        private final int rows;
+        private final long enqueued = System.nanoTime();
+        private final CountDownLatch done = new CountDownLatch( 1 );
+        // Warmup only : counted down when a replica takes the request
+        private final CountDownLatch taken;
+        private volatile INDArray result;
+        private volatile Throwable error;
+
+        Request( INDArray images )
+        {
+            this( images, null );
+        }
+
+        Request( INDArray images , CountDownLatch taken )
+        {
+            this.images = images;
+            this.rows = images.size( 0 );
+            this.taken = taken;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+
+/**
+ * Checkpoint
+ *
+ * A training checkpoint in the checkpoint directory :
+ *  - checkpoint-&lt;batches&gt;.zip        : the network with its updater state and normalizer (ModelSerializer)
+ *  - checkpoint-&lt;batches&gt;.properties : the training position (epoch, minibatch, seed, ...)
+ *
+ * The properties file is written last, a checkpoint without it is incomplete
+ * and ignored.
+ */
+public class Checkpoint
+{
+    private static final String PREFIX = "checkpoint-";
+    private static final String MODEL_EXTENSION = ".zip";
+    private static final String PROPERTIES_EXTENSION = ".properties";
+    private static final String TMP_EXTENSION = ".tmp";
+
+    private static final String KEY_BATCHES = "batches";
+    private static final String KEY_EPOCH = "epoch";
+    private static final String KEY_BATCH_IN_EPOCH = "batchInEpoch";
+    private static final String KEY_BATCHES_PER_EPOCH = "batchesPerEpoch";
+    private static final String KEY_BATCH_SIZE = "batchSize";
+    private static final String KEY_SEED = "seed";
+    private static final String KEY_TIMESTAMP = "timestamp";
+
+    private final File directory;
+    private final int batches;
+    private final int batchesPerEpoch;
+    private final int batchSize;
+    private final long seed;
+    private final long timestamp;
+
+    /**
+     * Constructor
+     * @param directory The checkpoint directory
+     * @param batches The number of minibatches trained since the start of the training
+     * @param batchesPerEpoch The number of minibatches per epoch
+     * @param batchSize The minibatch size
+     * @param seed The seed of the training random generator
+     * @param timestamp The creation time
+     */
+    public Checkpoint( File directory , int batches , int batchesPerEpoch , int batchSize , long seed , long timestamp )
+    {
+        this.directory = directory;
+        this.batches = batches;
+        this.batchesPerEpoch = Math.max( 1, batchesPerEpoch );
+        this.batchSize = batchSize;
+        this.seed = seed;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return the number of minibatches trained since the start of the training
+     */
+    public int getBatches()
+    {
+        return batches;
+    }
+
+    /**
+     * @return the number of completed epochs
+     */
+    public int getEpoch()
+    {
+        return batches / batchesPerEpoch;
+    }
+
+    /**
+     * @return the number of minibatches trained in the current epoch
+     */
+    public int getBatchInEpoch()
+    {
+        return batches % batchesPerEpoch;
+    }
+
+    /**
+     * @return the minibatch size
+     */
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * @return the seed of the training random generator
+     */
+    public long getSeed()
+    {
+        return seed;
+    }
+
+    /**
+     * @return the model file
+     */
+    public File getModelFile()
+    {
+        return new File( directory, PREFIX + batches + MODEL_EXTENSION );
+    }
+
+    /**
+     * @return the properties file
+     */
+    public File getPropertiesFile()
+    {
+        return new File( directory, PREFIX + batches + PROPERTIES_EXTENSION );
+    }
+
+    /**
+     * Write the checkpoint : model file first, then the properties, each
+     * written to a temporary file moved in place
+     * @param network The network, not modified while written
+     * @param normalizer The normalizer
+     * @throws IOException if the checkpoint can't be written
+     */
+    public void write( MultiLayerNetwork network , DataNormalization normalizer ) throws IOException
+    {
+        Files.createDirectories( directory.toPath() );
+        File model = getModelFile();
+        File tmp = new File( model.getPath() + TMP_EXTENSION );
+        ModelSerializer.writeModel( network, tmp, true );
+        ModelNormalizer.save( tmp, normalizer );
+        AtomicFiles.move( tmp, model );
+
+        Properties properties = new Properties();
+        properties.setProperty( KEY_BATCHES, String.valueOf( batches ));
+        properties.setProperty( KEY_EPOCH, String.valueOf( getEpoch() ));
+        properties.setProperty( KEY_BATCH_IN_EPOCH, String.valueOf( getBatchInEpoch() ));
+        properties.setProperty( KEY_BATCHES_PER_EPOCH, String.valueOf( batchesPerEpoch ));
+        properties.setProperty( KEY_BATCH_SIZE, String.valueOf( batchSize ));
+        properties.setProperty( KEY_SEED, String.valueOf( seed ));
+        properties.setProperty( KEY_TIMESTAMP, String.valueOf( timestamp ));
+        File file = getPropertiesFile();
+        tmp = new File( file.getPath() + TMP_EXTENSION );
+        try( OutputStream os = new FileOutputStream( tmp ))
+        {
+            properties.store( os, "Training checkpoint" );
+        }
+        AtomicFiles.move( tmp, file );
+    }
+
+    /**
+     * @return the network with its updater state
+     * @throws IOException if the model file can't be read
+     */
+    public MultiLayerNetwork restoreNetwork() throws IOException
+    {
+        return ModelSerializer.restoreMultiLayerNetwork( getModelFile(), true );
+    }
+
+    /**
+     * @return the normalizer fitted at the start of the training
+     */
+    public DataNormalization restoreNormalizer()
+    {
+        return ModelNormalizer.restore( getModelFile() );
+    }
+
+    /**
+     * Delete the checkpoint files
+     */
+    public void delete()
+    {
+        getPropertiesFile().delete();
+        getModelFile().delete();
+    }
+
+    /**
+     * Read a checkpoint properties file
+     * @param file The properties file
+     * @return The checkpoint
+     * @throws IOException if the file can't be read
+     */
+    public static Checkpoint read( File file ) throws IOException
+    {
+        Properties properties = new Properties();
+        try( InputStream is = new FileInputStream( file ))
+        {
+            properties.load( is );
+        }
+        try
+        {
+            return new Checkpoint( file.getParentFile(),
+                    Integer.parseInt( properties.getProperty( KEY_BATCHES )),
+                    Integer.parseInt( properties.getProperty( KEY_BATCHES_PER_EPOCH )),
+                    Integer.parseInt( properties.getProperty( KEY_BATCH_SIZE )),
+                    Long.parseLong( properties.getProperty( KEY_SEED )),
+                    Long.parseLong( properties.getProperty( KEY_TIMESTAMP )));
+        }
+        catch( NumberFormatException | NullPointerException e )
+        {
+            throw new IOException( "Invalid checkpoint " + file, e );
+        }
+    }
+
+    /**
+     * Complete checkpoints of a directory, oldest first
+     * @param directory The checkpoint directory
+     * @return The checkpoints
+     * @throws IOException if a checkpoint can't be read
+     */
+    public static List<Checkpoint> list( File directory ) throws IOException
+    {
+        List<Checkpoint> checkpoints = new ArrayList<>();
+        File[] files = directory.listFiles( new FilenameFilter()
+        {
+            @Override
+            public boolean accept( File dir , String name )
+            {
+                return name.startsWith( PREFIX ) && name.endsWith( PROPERTIES_EXTENSION );
+            }
+        });
+        if( files == null )
+        {
+            return checkpoints;
+        }
+        for( File file : files )
+        {
+            Checkpoint checkpoint = read( file );
+            if( checkpoint.getModelFile().isFile() )
+            {
+                checkpoints.add( checkpoint );
+            }
+        }
+        Collections.sort( checkpoints, new Comparator<Checkpoint>()
+        {
+            @Override
+            public int compare( Checkpoint c1 , Checkpoint c2 )
+            {
+                return Integer.compare( c1.batches, c2.batches );
+            }
+        });
+        return checkpoints;
+    }
+
+    /**
+     * @param directory The checkpoint directory
+     * @return the most recent complete checkpoint, or null if none
+     * @throws IOException if a checkpoint can't be read
+     */
+    public static Checkpoint latest( File directory ) throws IOException
+    {
+        List<Checkpoint> checkpoints = list( directory );
+        return checkpoints.isEmpty() ? null : checkpoints.get( checkpoints.size() - 1 );
+    }
+
+    @Override
+    public String toString()
+    {
+        return getModelFile() + " (epoch " + getEpoch() + ", minibatch " + getBatchInEpoch() + "/" + batchesPerEpoch + ")";
+    }
+}
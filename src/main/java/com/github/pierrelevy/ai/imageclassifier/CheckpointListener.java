@@ -0,0 +1,189 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CheckpointListener
+ *
+ * Writes a Checkpoint every N minibatches or M minutes. The training thread
+ * only clones the network (parameters and updater state), serialization runs
+ * on a background writer. If the previous checkpoint is still being written,
+ * the checkpoint is postponed to the next iteration instead of queuing
+ * another copy of the network. Only the most recent checkpoints are kept.
+ */
+public class CheckpointListener implements IterationListener
+{
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggerFactory.getLogger( CheckpointListener.class );
+    private static final long CLOSE_TIMEOUT_MINUTES = 10;
+
+    private final MultiLayerNetwork network;
+    private final DataNormalization normalizer;
+    private final File directory;
+    private final int frequency;
+    private final long intervalMillis;
+    private final int keep;
+    private final int callsPerBatch;
+    private final int batchesPerEpoch;
+    private final int batchSize;
+    private final long seed;
+    private final int startBatches;
+    private final transient ExecutorService writer;
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private boolean invoked;
+    private int calls;
+    private int lastBatches;
+    private long lastTime;
+
+    /**
+     * Constructor
+     * @param network The trained network (the master network with data parallel training)
+     * @param normalizer The normalizer stored with each checkpoint
+     * @param trainerParams The trainer parameters giving the directory, frequencies and retention
+     * @param callsPerBatch The number of iterationDone calls per minibatch (iterations x parallel workers)
+     * @param batchesPerEpoch The number of minibatches per epoch
+     * @param seed The seed of the training random generator
+     * @param startBatches The number of minibatches already trained when resuming, 0 otherwise
+     */
+    public CheckpointListener( MultiLayerNetwork network , DataNormalization normalizer , TrainerParameters trainerParams ,
+            int callsPerBatch , int batchesPerEpoch , long seed , int startBatches )
+    {
+        this.network = network;
+        this.normalizer = normalizer;
+        this.directory = new File( trainerParams.getCheckpointPath() );
+        this.frequency = trainerParams.getCheckpointFrequency();
+        this.intervalMillis = TimeUnit.MINUTES.toMillis( trainerParams.getCheckpointInterval() );
+        this.keep = Math.max( 1, trainerParams.getCheckpointKeep() );
+        this.callsPerBatch = Math.max( 1, callsPerBatch );
+        this.batchesPerEpoch = batchesPerEpoch;
+        this.batchSize = trainerParams.getBatchSize();
+        this.seed = seed;
+        this.startBatches = startBatches;
+        this.lastBatches = startBatches;
+        this.lastTime = System.currentTimeMillis();
+        this.writer = Executors.newSingleThreadExecutor( new ThreadFactory()
+        {
+            @Override
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "checkpoint-writer" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public boolean invoked()
+    {
+        return invoked;
+    }
+
+    @Override
+    public void invoke()
+    {
+        invoked = true;
+    }
+
+    @Override
+    public synchronized void iterationDone( Model model , int iteration )
+    {
+        calls++;
+        if( calls % callsPerBatch != 0 )
+        {
+            return;
+        }
+        int batches = startBatches + calls / callsPerBatch;
+        long now = System.currentTimeMillis();
+        boolean due = ( frequency > 0 && batches - lastBatches >= frequency )
+                || ( intervalMillis > 0 && now - lastTime >= intervalMillis );
+        if( due && writing.compareAndSet( false, true ))
+        {
+            lastBatches = batches;
+            lastTime = now;
+            submit( new Checkpoint( directory, batches, batchesPerEpoch, batchSize, seed, now ), network.clone() );
+        }
+    }
+
+    private void submit( final Checkpoint checkpoint , final MultiLayerNetwork copy )
+    {
+        writer.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    long start = System.currentTimeMillis();
+                    checkpoint.write( copy, normalizer );
+                    log.info( "Checkpoint " + checkpoint + " written in " + ( System.currentTimeMillis() - start ) + "ms" );
+                    prune();
+                }
+                catch( IOException | RuntimeException e )
+                {
+                    log.error( "Unable to write checkpoint " + checkpoint.getModelFile() + " : " + e.getMessage() );
+                }
+                finally
+                {
+                    writing.set( false );
+                }
+            }
+        });
+    }
+
+    private void prune() throws IOException
+    {
+        List<Checkpoint> checkpoints = Checkpoint.list( directory );
+        for( int i = 0 ; i < checkpoints.size() - keep ; i++ )
+        {
+            checkpoints.get( i ).delete();
+        }
+    }
+
+    /**
+     * Wait for the checkpoint being written, if any, and stop the writer
+     */
+    public void close()
+    {
+        writer.shutdown();
+        try
+        {
+            if( !writer.awaitTermination( CLOSE_TIMEOUT_MINUTES, TimeUnit.MINUTES ))
+            {
+                log.warn( "Checkpoint still being written after " + CLOSE_TIMEOUT_MINUTES + "mn" );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
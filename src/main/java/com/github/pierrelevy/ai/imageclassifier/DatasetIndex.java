@@ -0,0 +1,486 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FilenameUtils;
+import org.datavec.image.loader.NativeImageLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DatasetIndex
+ *
+ * Index of the images of a data directory tree : path, label (the parent
+ * directory name, as ParentPathLabelGenerator), size and modification time.
+ * The tree is walked in parallel, a fork/join task per directory. The index
+ * is saved to a file and reused by the next scans : a directory whose
+ * modification time is unchanged has the same entries, so it isn't listed
+ * again, only its sub directories are visited. Balanced train/test splits
+ * are sampled from the index.
+ *
+ * File layout (big endian) :
+ *  - magic, version, root path
+ *  - directory count, then for each : relative path, modification time,
+ *    sub directory names, image count, then for each : name, size, modification time
+ */
+public class DatasetIndex
+{
+    private static final Logger log = LoggerFactory.getLogger( DatasetIndex.class );
+    static final int MAGIC = 0x494D4458;  // "IMDX"
+    static final int VERSION = 1;
+    private static final String TMP_EXTENSION = ".tmp";
+
+    private final File root;
+    private final List<Directory> directories;
+    private final List<String> labels;
+    private final int[] labelIds;
+    private final int count;
+
+    private DatasetIndex( File root , List<Directory> directories )
+    {
+        this.root = root;
+        this.directories = directories;
+        TreeSet<String> names = new TreeSet<>();
+        int images = 0;
+        for( Directory directory : directories )
+        {
+            if( directory.names.length > 0 )
+            {
+                names.add( label( directory ));
+                images += directory.names.length;
+            }
+        }
+        this.labels = new ArrayList<>( names );
+        this.labelIds = new int[directories.size()];
+        for( int i = 0 ; i < labelIds.length ; i++ )
+        {
+            labelIds[i] = labels.indexOf( label( directories.get( i )));
+        }
+        this.count = images;
+    }
+
+    private String label( Directory directory )
+    {
+        return directory.path.isEmpty() ? root.getName() : new File( directory.path ).getName();
+    }
+
+    /**
+     * Scan a data directory, reusing the entries of the index file for the
+     * directories unchanged since it was written, then save the index
+     * @param root The data directory, one sub directory per label
+     * @param indexFile The index file, or null to scan everything without saving
+     * @return The index
+     * @throws IOException if the directory can't be walked
+     */
+    public static DatasetIndex scan( File root , File indexFile ) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        File canonical = root.getCanonicalFile();
+        if( !canonical.isDirectory() )
+        {
+            throw new IOException( "No data directory " + root );
+        }
+        Map<String, Directory> previous = new HashMap<>();
+        if( indexFile != null && indexFile.isFile() )
+        {
+            try
+            {
+                DatasetIndex index = read( indexFile );
+                if( index.root.equals( canonical ))
+                {
+                    for( Directory directory : index.directories )
+                    {
+                        previous.put( directory.path, directory );
+                    }
+                }
+            }
+            catch( IOException e )
+            {
+                log.warn( "Ignoring index " + indexFile + " : " + e.getMessage() );
+            }
+        }
+
+        Set<String> formats = new HashSet<>();
+        for( String format : NativeImageLoader.ALLOWED_FORMATS )
+        {
+            formats.add( format.toLowerCase( Locale.ROOT ));
+        }
+        Scan scan = new Scan( canonical.toPath(), previous, formats );
+        List<Directory> directories;
+        ForkJoinPool pool = new ForkJoinPool();
+        try
+        {
+            directories = pool.invoke( scan.new DirectoryTask( canonical.toPath(), "" ));
+        }
+        catch( RuntimeException e )
+        {
+            // Rethrown from another worker, ForkJoinTask wraps the exception of a subtask once more
+            for( Throwable cause = e.getCause() ; cause != null ; cause = cause.getCause() )
+            {
+                if( cause instanceof IOException )
+                {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        Collections.sort( directories );
+
+        DatasetIndex index = new DatasetIndex( canonical, directories );
+        log.info( "Indexed " + index.count + " images, " + index.labels.size() + " labels in " + directories.size() + " directories ("
+                + scan.listed.get() + " listed, " + scan.reused.get() + " unchanged) in " + ( System.currentTimeMillis() - start ) + "ms" );
+        if( indexFile != null && scan.listed.get() > 0 )
+        {
+            index.write( indexFile );
+        }
+        return index;
+    }
+
+    /**
+     * @return the label names, sorted, index i is the label id i
+     */
+    public List<String> getLabels()
+    {
+        return labels;
+    }
+
+    /**
+     * @return the number of images
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * Sample balanced splits, as BalancedPathFilter : the images of each label
+     * are shuffled, each label contributes as many images as the smallest one
+     * (capped so that the total stays within maxPaths), labels interleaved,
+     * then the sample is cut according to the weights.
+     * @param rng The random generator
+     * @param maxPaths The max number of images sampled, 0 for no limit
+     * @param weights The relative size of each split
+     * @return The locations of each split
+     */
+    public URI[][] sample( Random rng , int maxPaths , double... weights )
+    {
+        // Images per label as (directory, entry) pairs packed in a long
+        List<List<Long>> byLabel = new ArrayList<>();
+        for( int i = 0 ; i < labels.size() ; i++ )
+        {
+            byLabel.add( new ArrayList<Long>() );
+        }
+        for( int d = 0 ; d < directories.size() ; d++ )
+        {
+            int entries = directories.get( d ).names.length;
+            List<Long> images = ( entries > 0 ) ? byLabel.get( labelIds[d] ) : null;
+            for( int e = 0 ; e < entries ; e++ )
+            {
+                images.add( ( (long) d << 32 ) | e );
+            }
+        }
+        int perLabel = Integer.MAX_VALUE;
+        for( List<Long> images : byLabel )
+        {
+            Collections.shuffle( images, rng );
+            perLabel = Math.min( perLabel, images.size() );
+        }
+        if( byLabel.isEmpty() )
+        {
+            perLabel = 0;
+        }
+        else if( maxPaths > 0 && (long) perLabel * byLabel.size() > maxPaths )
+        {
+            perLabel = maxPaths / byLabel.size();
+        }
+        List<URI> sample = new ArrayList<>( perLabel * byLabel.size() );
+        for( int i = 0 ; i < perLabel ; i++ )
+        {
+            for( List<Long> images : byLabel )
+            {
+                long image = images.get( i );
+                sample.add( location( (int) ( image >>> 32 ), (int) image ));
+            }
+        }
+
+        double total = 0;
+        for( double weight : weights )
+        {
+            total += weight;
+        }
+        URI[][] splits = new URI[weights.length][];
+        int first = 0;
+        double cumulated = 0;
+        for( int i = 0 ; i < weights.length ; i++ )
+        {
+            cumulated += weights[i];
+            int last = ( i == weights.length - 1 ) ? sample.size() : (int) Math.round( sample.size() * cumulated / total );
+            splits[i] = sample.subList( first, last ).toArray( new URI[last - first] );
+            first = last;
+        }
+        return splits;
+    }
+
+    private URI location( int directory , int entry )
+    {
+        Directory dir = directories.get( directory );
+        File parent = dir.path.isEmpty() ? root : new File( root, dir.path );
+        return new File( parent, dir.names[entry] ).toURI();
+    }
+
+    /**
+     * Write the index to a temporary file moved in place
+     * @param file The index file
+     * @throws IOException if the file can't be written
+     */
+    public void write( File file ) throws IOException
+    {
+        File tmp = new File( file.getPath() + TMP_EXTENSION );
+        try( DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ))))
+        {
+            dos.writeInt( MAGIC );
+            dos.writeInt( VERSION );
+            dos.writeUTF( root.getPath() );
+            dos.writeInt( directories.size() );
+            for( Directory directory : directories )
+            {
+                dos.writeUTF( directory.path );
+                dos.writeLong( directory.modified );
+                dos.writeInt( directory.subdirectories.length );
+                for( String name : directory.subdirectories )
+                {
+                    dos.writeUTF( name );
+                }
+                dos.writeInt( directory.names.length );
+                for( int i = 0 ; i < directory.names.length ; i++ )
+                {
+                    dos.writeUTF( directory.names[i] );
+                    dos.writeLong( directory.sizes[i] );
+                    dos.writeLong( directory.times[i] );
+                }
+            }
+        }
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    /**
+     * Read an index file
+     * @param file The index file
+     * @return The index, as of its last scan
+     * @throws IOException if the file can't be read
+     */
+    public static DatasetIndex read( File file ) throws IOException
+    {
+        try( DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file ))))
+        {
+            if( dis.readInt() != MAGIC || dis.readInt() != VERSION )
+            {
+                throw new IOException( "Not a dataset index : " + file );
+            }
+            File root = new File( dis.readUTF() );
+            int count = dis.readInt();
+            List<Directory> directories = new ArrayList<>( count );
+            for( int d = 0 ; d < count ; d++ )
+            {
+                String path = dis.readUTF();
+                long modified = dis.readLong();
+                String[] subdirectories = new String[dis.readInt()];
+                for( int i = 0 ; i < subdirectories.length ; i++ )
+                {
+                    subdirectories[i] = dis.readUTF();
+                }
+                int entries = dis.readInt();
+                String[] names = new String[entries];
+                long[] sizes = new long[entries];
+                long[] times = new long[entries];
+                for( int i = 0 ; i < entries ; i++ )
+                {
+                    names[i] = dis.readUTF();
+                    sizes[i] = dis.readLong();
+                    times[i] = dis.readLong();
+                }
+                directories.add( new Directory( path, modified, subdirectories, names, sizes, times ));
+            }
+            return new DatasetIndex( root, directories );
+        }
+    }
+
+    /**
+     * A directory with its images, sorted by name
+     */
+    private static class Directory implements Comparable<Directory>
+    {
+        private final String path;
+        private final long modified;
+        private final String[] subdirectories;
+        private final String[] names;
+        private final long[] sizes;
+        private final long[] times;
+
+        Directory( String path , long modified , String[] subdirectories , String[] names , long[] sizes , long[] times )
+        {
+            this.path = path;
+            this.modified = modified;
+            this.subdirectories = subdirectories;
+            this.names = names;
+            this.sizes = sizes;
+            this.times = times;
+        }
+
+        @Override
+        public int compareTo( Directory other )
+        {
+            return path.compareTo( other.path );
+        }
+    }
+
+    /**
+     * State shared by the directory tasks of a scan
+     */
+    private static class Scan
+    {
+        private final Path root;
+        private final Map<String, Directory> previous;
+        private final Set<String> formats;
+        private final AtomicInteger listed = new AtomicInteger();
+        private final AtomicInteger reused = new AtomicInteger();
+
+        Scan( Path root , Map<String, Directory> previous , Set<String> formats )
+        {
+            this.root = root;
+            this.previous = previous;
+            this.formats = formats;
+        }
+
+        private class DirectoryTask extends RecursiveTask<List<Directory>>
+        {
+            private static final long serialVersionUID = 1L;
+            private final Path dir;
+            private final String path;
+
+            DirectoryTask( Path dir , String path )
+            {
+                this.dir = dir;
+                this.path = path;
+            }
+
+            @Override
+            protected List<Directory> compute()
+            {
+                Directory directory;
+                try
+                {
+                    directory = list();
+                }
+                catch( IOException e )
+                {
+                    throw new IllegalStateException( e.getMessage(), e );
+                }
+                List<DirectoryTask> tasks = new ArrayList<>( directory.subdirectories.length );
+                for( String name : directory.subdirectories )
+                {
+                    DirectoryTask task = new DirectoryTask( dir.resolve( name ), path.isEmpty() ? name : path + "/" + name );
+                    task.fork();
+                    tasks.add( task );
+                }
+                List<Directory> directories = new ArrayList<>();
+                directories.add( directory );
+                for( DirectoryTask task : tasks )
+                {
+                    directories.addAll( task.join() );
+                }
+                return directories;
+            }
+
+            private Directory list() throws IOException
+            {
+                long modified = Files.getLastModifiedTime( dir ).toMillis();
+                Directory known = previous.get( path );
+                if( known != null && known.modified == modified )
+                {
+                    // Same entries, the images themselves are not checked again
+                    reused.incrementAndGet();
+                    return known;
+                }
+                listed.incrementAndGet();
+                List<String> subdirectories = new ArrayList<>();
+                List<String> names = new ArrayList<>();
+                Map<String, BasicFileAttributes> attributes = new HashMap<>();
+                try( DirectoryStream<Path> stream = Files.newDirectoryStream( dir ))
+                {
+                    for( Path entry : stream )
+                    {
+                        BasicFileAttributes attrs = Files.readAttributes( entry, BasicFileAttributes.class );
+                        String name = entry.getFileName().toString();
+                        if( attrs.isDirectory() )
+                        {
+                            subdirectories.add( name );
+                        }
+                        else if( attrs.isRegularFile() && formats.contains( FilenameUtils.getExtension( name ).toLowerCase( Locale.ROOT )))
+                        {
+                            names.add( name );
+                            attributes.put( name, attrs );
+                        }
+                    }
+                }
+                // Sorted so that the same tree gives the same sample for a seed
+                Collections.sort( subdirectories );
+                Collections.sort( names );
+                long[] sizes = new long[names.size()];
+                long[] times = new long[names.size()];
+                for( int i = 0 ; i < sizes.length ; i++ )
+                {
+                    BasicFileAttributes attrs = attributes.get( names.get( i ));
+                    sizes[i] = attrs.size();
+                    times[i] = attrs.lastModifiedTime().toMillis();
+                }
+                return new Directory( path, modified, subdirectories.toArray( new String[subdirectories.size()] ),
+                        names.toArray( new String[names.size()] ), sizes, times );
+            }
+        }
+    }
+}
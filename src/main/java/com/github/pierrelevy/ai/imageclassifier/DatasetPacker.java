@@ -0,0 +1,191 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import org.datavec.api.split.InputSplit;
+import org.datavec.image.loader.NativeImageLoader;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DatasetPacker
+ *
+ * Decodes the images of a split once, at the model height/width/channels, into
+ * a compact binary file that can be memory mapped by PackedDataSetIterator.
+ *
+ * File layout (big endian) :
+ *  - header : magic, version, count, key (modified UTF-8), height, width,
+ *             channels, label count, label names (modified UTF-8)
+ *  - records : label index (int) followed by channels*height*width uint8
+ *              pixels in CHW order
+ */
+public class DatasetPacker
+{
+    private static final Logger log = LoggerFactory.getLogger( DatasetPacker.class );
+
+    static final int MAGIC = 0x494D4750;  // "IMGP"
+    static final int VERSION = 2;
+    static final int COUNT_OFFSET = 8;
+    private static final int WRITE_BUFFER_RECORDS = 64;
+
+    /**
+     * Label names, sorted, taken from the parent directory of each image
+     * (same convention as ParentPathLabelGenerator)
+     * @param splits The splits
+     * @return The sorted label names
+     */
+    public static List<String> labels( InputSplit... splits )
+    {
+        TreeSet<String> labels = new TreeSet<>();
+        for( InputSplit split : splits )
+        {
+            for( URI location : split.locations() )
+            {
+                labels.add( label( location ));
+            }
+        }
+        return new ArrayList<>( labels );
+    }
+
+    static String label( URI location )
+    {
+        return new File( location ).getParentFile().getName();
+    }
+
+    /**
+     * Pack a split
+     * @param split The split to pack
+     * @param labels The label names, the index in this list is the label index stored
+     * @param parameters The model parameters giving the image size
+     * @param key The identity of the split, checked by isPacked
+     * @param file The packed file to write
+     * @return The number of packed images
+     * @throws IOException if the file can't be written
+     */
+    public static int pack( InputSplit split , List<String> labels , ModelParameters parameters , String key , File file ) throws IOException
+    {
+        NativeImageLoader loader = new NativeImageLoader( parameters.getHeight(), parameters.getWidth(), parameters.getChannels() );
+        int imageSize = parameters.getChannels() * parameters.getHeight() * parameters.getWidth();
+        int recordSize = 4 + imageSize;
+        byte[] header = header( key, labels, parameters );
+        long start = System.currentTimeMillis();
+        int count = 0;
+
+        try( RandomAccessFile raf = new RandomAccessFile( file, "rw" ); FileChannel channel = raf.getChannel() )
+        {
+            raf.setLength( 0 );
+            channel.write( ByteBuffer.wrap( header ));
+            ByteBuffer buffer = ByteBuffer.allocate( recordSize * WRITE_BUFFER_RECORDS );
+
+            for( URI location : split.locations() )
+            {
+                int label = labels.indexOf( label( location ));
+                INDArray image;
+                try
+                {
+                    image = loader.asMatrix( new File( location ));
+                }
+                catch( IOException | RuntimeException e )
+                {
+                    log.warn( "Skipping " + location + " : " + e.getMessage() );
+                    continue;
+                }
+                if( buffer.remaining() < recordSize )
+                {
+                    flush( channel, buffer );
+                }
+                buffer.putInt( label );
+                float[] pixels = image.data().asFloat();
+                for( int i = 0 ; i < imageSize ; i++ )
+                {
+                    int value = Math.round( pixels[i] );
+                    buffer.put( (byte) Math.max( 0, Math.min( 255, value )));
+                }
+                count++;
+            }
+            flush( channel, buffer );
+
+            ByteBuffer countBuffer = ByteBuffer.allocate( 4 );
+            countBuffer.putInt( count ).flip();
+            channel.write( countBuffer, COUNT_OFFSET );
+        }
+        log.info( "Packed " + count + " images into " + file + " in " + ( System.currentTimeMillis() - start ) + "ms" );
+        return count;
+    }
+
+    private static byte[] header( String key , List<String> labels , ModelParameters parameters ) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream( baos );
+        dos.writeInt( MAGIC );
+        dos.writeInt( VERSION );
+        dos.writeInt( 0 );
+        dos.writeUTF( key );
+        dos.writeInt( parameters.getHeight() );
+        dos.writeInt( parameters.getWidth() );
+        dos.writeInt( parameters.getChannels() );
+        dos.writeInt( labels.size() );
+        for( String label : labels )
+        {
+            dos.writeUTF( label );
+        }
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    private static void flush( FileChannel channel , ByteBuffer buffer ) throws IOException
+    {
+        buffer.flip();
+        while( buffer.hasRemaining() )
+        {
+            channel.write( buffer );
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @param file The packed file
+     * @param key The identity of the split the file must have been packed from
+     * @return true if the file exists and is a complete packed dataset of this split
+     */
+    public static boolean isPacked( File file , String key )
+    {
+        if( !file.isFile() )
+        {
+            return false;
+        }
+        try( RandomAccessFile raf = new RandomAccessFile( file, "r" ))
+        {
+            return raf.length() >= 12 && raf.readInt() == MAGIC && raf.readInt() == VERSION && raf.readInt() > 0 && raf.readUTF().equals( key );
+        }
+        catch( IOException e )
+        {
+            return false;
+        }
+    }
+}
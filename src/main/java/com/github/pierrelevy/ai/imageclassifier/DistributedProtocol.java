@@ -0,0 +1,140 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DistributedProtocol
+ *
+ * Messages exchanged over TCP between the TrainingCoordinator and its
+ * TrainingWorkers, each starting with its type (big endian) :
+ *  - HELLO  worker to coordinator : magic, version, worker name
+ *  - CONFIG coordinator to worker : network configuration JSON, normalizer,
+ *           label names, image height, width, channels, seed, minibatch size,
+ *           decode workers, prefetch depth, augmentation
+ *  - WORK   coordinator to worker : round, parameters, image locations
+ *  - RESULT worker to coordinator : round, parameters, examples, fit time (ns), score
+ *  - STOP   coordinator to worker : training done
+ */
+final class DistributedProtocol
+{
+    static final int MAGIC = 0x494D4454;  // "IMDT"
+    static final int VERSION = 1;
+    static final int HELLO = 1;
+    static final int CONFIG = 2;
+    static final int WORK = 3;
+    static final int RESULT = 4;
+    static final int STOP = 5;
+
+    private DistributedProtocol()
+    {
+    }
+
+    static void writeFloats( DataOutputStream dos , float[] values ) throws IOException
+    {
+        dos.writeInt( values.length );
+        ByteBuffer buffer = ByteBuffer.allocate( values.length * 4 );
+        buffer.asFloatBuffer().put( values );
+        dos.write( buffer.array() );
+    }
+
+    static float[] readFloats( DataInputStream dis ) throws IOException
+    {
+        byte[] bytes = new byte[dis.readInt() * 4];
+        dis.readFully( bytes );
+        float[] values = new float[bytes.length / 4];
+        ByteBuffer.wrap( bytes ).asFloatBuffer().get( values );
+        return values;
+    }
+
+    static void writeText( DataOutputStream dos , String text ) throws IOException
+    {
+        byte[] bytes = text.getBytes( StandardCharsets.UTF_8 );
+        dos.writeInt( bytes.length );
+        dos.write( bytes );
+    }
+
+    static String readText( DataInputStream dis ) throws IOException
+    {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    static void writeStrings( DataOutputStream dos , List<String> values ) throws IOException
+    {
+        dos.writeInt( values.size() );
+        for( String value : values )
+        {
+            dos.writeUTF( value );
+        }
+    }
+
+    static List<String> readStrings( DataInputStream dis ) throws IOException
+    {
+        int count = dis.readInt();
+        List<String> values = new ArrayList<>( count );
+        for( int i = 0 ; i < count ; i++ )
+        {
+            values.add( dis.readUTF() );
+        }
+        return values;
+    }
+
+    static void writeObject( DataOutputStream dos , Object object ) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try( ObjectOutputStream oos = new ObjectOutputStream( baos ))
+        {
+            oos.writeObject( object );
+        }
+        dos.writeInt( baos.size() );
+        baos.writeTo( dos );
+    }
+
+    static Object readObject( DataInputStream dis ) throws IOException
+    {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully( bytes );
+        try( ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( bytes )))
+        {
+            return ois.readObject();
+        }
+        catch( ClassNotFoundException e )
+        {
+            throw new IOException( "Unknown class in message : " + e.getMessage(), e );
+        }
+    }
+
+    static void expect( int type , int expected ) throws IOException
+    {
+        if( type != expected )
+        {
+            throw new IOException( "Unexpected message " + type + ", expecting " + expected );
+        }
+    }
+}
@@ -0,0 +1,224 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.updater.UpdaterCreator;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EarlyStoppingListener
+ *
+ * Evaluates the network on a held-out validation slice every frequency
+ * iterations. When the accuracy has not improved for patience evaluations,
+ * the learning rate of every layer is multiplied by the cut factor (the
+ * updater is created again from the cut configuration), and after
+ * maxCuts cuts a further plateau stops the training (through the
+ * StoppableDataSetIterator being fitted). The parameters of the best
+ * evaluation are kept in memory, or written to a model file, and restored
+ * at the end by restoreBest().
+ */
+public class EarlyStoppingListener implements IterationListener
+{
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggerFactory.getLogger( EarlyStoppingListener.class );
+    private static final double MIN_IMPROVEMENT = 1e-4;
+
+    private final DataSetIterator validation;
+    private final StoppableDataSetIterator training;
+    private final int frequency;
+    private final int patience;
+    private final double cutFactor;
+    private final int maxCuts;
+    private final File bestFile;
+    private final int scheduled;
+    private boolean invoked;
+    private int iterations;
+    private double best = -1.0;
+    private int bestIteration;
+    private INDArray bestParams;
+    private int sinceBest;
+    private int cuts;
+
+    /**
+     * Constructor
+     * @param validation The validation data, with its normalizer set
+     * @param training The training data being fitted, stopped by this listener
+     * @param frequency The number of iterations between two evaluations
+     * @param patience The number of evaluations without improvement before a learning rate cut or the stop
+     * @param cutFactor The learning rate multiplier of a cut
+     * @param maxCuts The number of cuts before a plateau stops the training
+     * @param bestFile The file holding the best model, or null to keep its parameters in memory
+     * @param scheduled The number of iterations of the configured schedule
+     */
+    public EarlyStoppingListener( DataSetIterator validation , StoppableDataSetIterator training , int frequency , int patience ,
+            double cutFactor , int maxCuts , File bestFile , int scheduled )
+    {
+        this.validation = validation;
+        this.training = training;
+        this.frequency = Math.max( 1, frequency );
+        this.patience = Math.max( 1, patience );
+        this.cutFactor = cutFactor;
+        this.maxCuts = Math.max( 0, maxCuts );
+        this.bestFile = bestFile;
+        this.scheduled = scheduled;
+    }
+
+    @Override
+    public boolean invoked()
+    {
+        return invoked;
+    }
+
+    @Override
+    public void invoke()
+    {
+        invoked = true;
+    }
+
+    @Override
+    public void iterationDone( Model model , int iteration )
+    {
+        iterations++;
+        if( training.isStopped() || iterations % frequency != 0 )
+        {
+            return;
+        }
+        MultiLayerNetwork network = (MultiLayerNetwork) model;
+        validation.reset();
+        double accuracy = network.evaluate( validation ).accuracy();
+
+        if( accuracy > best + MIN_IMPROVEMENT )
+        {
+            log.info( String.format( Locale.US, "Iteration %d : validation accuracy %.4f, best so far", iterations, accuracy ));
+            best = accuracy;
+            bestIteration = iterations;
+            sinceBest = 0;
+            keep( network );
+        }
+        else if( ++sinceBest >= patience )
+        {
+            sinceBest = 0;
+            if( cuts < maxCuts )
+            {
+                cuts++;
+                double learningRate = cut( network );
+                log.info( String.format( Locale.US, "Iteration %d : validation accuracy %.4f, plateau since iteration %d, learning rate x%s, now %g (cut %d/%d)",
+                        iterations, accuracy, bestIteration, cutFactor, learningRate, cuts, maxCuts ));
+            }
+            else
+            {
+                log.info( String.format( Locale.US, "Iteration %d : validation accuracy %.4f, plateau since iteration %d, stopping",
+                        iterations, accuracy, bestIteration ));
+                training.stop();
+            }
+        }
+        else
+        {
+            log.info( String.format( Locale.US, "Iteration %d : validation accuracy %.4f (best %.4f at iteration %d)", iterations, accuracy, best, bestIteration ));
+        }
+    }
+
+    private void keep( MultiLayerNetwork network )
+    {
+        if( bestFile == null )
+        {
+            bestParams = network.params().dup();
+            return;
+        }
+        try
+        {
+            ModelSerializer.writeModel( network, bestFile, false );
+        }
+        catch( IOException e )
+        {
+            log.warn( "Unable to write the best model to " + bestFile + ", keeping it in memory : " + e.getMessage() );
+            bestParams = network.params().dup();
+        }
+    }
+
+    /**
+     * @return the learning rate of the first layer after the cut
+     */
+    private double cut( MultiLayerNetwork network )
+    {
+        for( Layer layer : network.getLayers() )
+        {
+            NeuralNetConfiguration conf = layer.conf();
+            for( String param : layer.paramTable().keySet() )
+            {
+                conf.setLearningRateByParam( param, conf.getLearningRateByParam( param ) * cutFactor );
+            }
+            conf.getLayer().setLearningRate( conf.getLayer().getLearningRate() * cutFactor );
+            conf.getLayer().setBiasLearningRate( conf.getLayer().getBiasLearningRate() * cutFactor );
+        }
+        // The updater takes the learning rates from the configuration when it is created :
+        // a new one is created from the cut configuration, keeping the momentum and moving averages
+        INDArray state = network.getUpdater().getStateViewArray();
+        Updater updater = UpdaterCreator.getUpdater( network );
+        if( state != null )
+        {
+            updater.setStateViewArray( network, state.dup(), false );
+        }
+        network.setUpdater( updater );
+        return network.getLayer( 0 ).conf().getLayer().getLearningRate();
+    }
+
+    /**
+     * Put the parameters of the best evaluation back into the network
+     * @param network The trained network
+     * @throws IOException if the best model file can't be read
+     */
+    public void restoreBest( MultiLayerNetwork network ) throws IOException
+    {
+        if( bestParams != null )
+        {
+            network.setParams( bestParams );
+        }
+        else if( bestFile != null && bestIteration > 0 )
+        {
+            network.setParams( ModelSerializer.restoreMultiLayerNetwork( bestFile, false ).params() );
+        }
+        else
+        {
+            return;
+        }
+        log.info( "Restored the parameters of iteration " + bestIteration );
+    }
+
+    /**
+     * @return the best validation accuracy, the iteration it was reached and the iterations saved on the schedule
+     */
+    public String summary()
+    {
+        int saved = Math.max( 0, scheduled - iterations );
+        return String.format( Locale.US, "best validation accuracy %.4f at iteration %d, %d learning rate cuts, %s after %d of %d scheduled iterations : %d saved (%.1f%%)",
+                best, bestIteration, cuts, training.isStopped() ? "stopped" : "completed", iterations, scheduled, saved,
+                ( scheduled > 0 ) ? 100.0 * saved / scheduled : 0.0 );
+    }
+}
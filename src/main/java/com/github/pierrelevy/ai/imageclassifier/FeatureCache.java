@@ -0,0 +1,171 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import org.deeplearning4j.nn.transferlearning.TransferLearningHelper;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * FeatureCache
+ *
+ * Runs the frozen layers of a network once over a dataset and writes their
+ * activations into a file memory mapped by FeatureDataSetIterator, so that
+ * the layers being fine-tuned are trained for all epochs without decoding
+ * an image or running a convolution again.
+ *
+ * File layout (big endian) :
+ *  - header : magic, version, count, key (modified UTF-8), rank and
+ *             dimensions of the features of one image, label count,
+ *             label names (modified UTF-8)
+ *  - records : label index (int) followed by the float features in C order
+ */
+public class FeatureCache
+{
+    private static final Logger log = LoggerFactory.getLogger( FeatureCache.class );
+
+    static final int MAGIC = 0x494D4746;  // "IMGF"
+    static final int VERSION = 1;
+    static final int COUNT_OFFSET = 8;
+    private static final int WRITE_BUFFER_RECORDS = 64;
+
+    /**
+     * Write the features of a dataset
+     * @param helper The helper holding the frozen layers
+     * @param iterator The dataset, with its normalizer set
+     * @param labels The label names, the index in this list is the label index stored
+     * @param key The identity of the frozen layers and data, checked by isCached
+     * @param file The file to write
+     * @return The number of images written
+     * @throws IOException if the file can't be written
+     */
+    public static int write( TransferLearningHelper helper , DataSetIterator iterator , List<String> labels , String key , File file ) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        int[] shape = null;
+        int featureSize = 0;
+
+        try( RandomAccessFile raf = new RandomAccessFile( file, "rw" ); FileChannel channel = raf.getChannel() )
+        {
+            raf.setLength( 0 );
+            ByteBuffer buffer = null;
+            while( iterator.hasNext() )
+            {
+                DataSet featurized = helper.featurize( iterator.next() );
+                INDArray features = featurized.getFeatures();
+                if( shape == null )
+                {
+                    shape = Arrays.copyOfRange( features.shape(), 1, features.rank() );
+                    featureSize = features.length() / features.size( 0 );
+                    channel.write( ByteBuffer.wrap( header( key, shape, labels )));
+                    buffer = ByteBuffer.allocate( ( 4 + featureSize * 4 ) * WRITE_BUFFER_RECORDS );
+                }
+                float[] values = features.dup( 'c' ).data().asFloat();
+                INDArray classes = Nd4j.argMax( featurized.getLabels(), 1 );
+                for( int i = 0 ; i < features.size( 0 ) ; i++ )
+                {
+                    if( buffer.remaining() < 4 + featureSize * 4 )
+                    {
+                        flush( channel, buffer );
+                    }
+                    buffer.putInt( classes.getInt( i ));
+                    buffer.asFloatBuffer().put( values, i * featureSize, featureSize );
+                    buffer.position( buffer.position() + featureSize * 4 );
+                    count++;
+                }
+            }
+            if( shape == null )
+            {
+                throw new IOException( "No image to cache in " + file );
+            }
+            flush( channel, buffer );
+
+            ByteBuffer countBuffer = ByteBuffer.allocate( 4 );
+            countBuffer.putInt( count ).flip();
+            channel.write( countBuffer, COUNT_OFFSET );
+        }
+        log.info( "Cached the features " + Arrays.toString( shape ) + " of " + count + " images into " + file + " in "
+                + ( System.currentTimeMillis() - start ) + "ms" );
+        return count;
+    }
+
+    private static byte[] header( String key , int[] shape , List<String> labels ) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream( baos );
+        dos.writeInt( MAGIC );
+        dos.writeInt( VERSION );
+        dos.writeInt( 0 );
+        dos.writeUTF( key );
+        dos.writeInt( shape.length );
+        for( int d : shape )
+        {
+            dos.writeInt( d );
+        }
+        dos.writeInt( labels.size() );
+        for( String label : labels )
+        {
+            dos.writeUTF( label );
+        }
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    private static void flush( FileChannel channel , ByteBuffer buffer ) throws IOException
+    {
+        buffer.flip();
+        while( buffer.hasRemaining() )
+        {
+            channel.write( buffer );
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @param file The cache file
+     * @param key The identity of the frozen layers and data
+     * @return true if the file exists, is complete and was written for this key
+     */
+    public static boolean isCached( File file , String key )
+    {
+        if( !file.isFile() )
+        {
+            return false;
+        }
+        try( RandomAccessFile raf = new RandomAccessFile( file, "r" ))
+        {
+            return raf.length() >= 12 && raf.readInt() == MAGIC && raf.readInt() == VERSION && raf.readInt() > 0 && raf.readUTF().equals( key );
+        }
+        catch( IOException e )
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * FeatureDataSetIterator
+ *
+ * Reads minibatches of features straight from a memory mapped file written
+ * by FeatureCache. Records are visited in a new random order at each reset
+ * when shuffling is enabled.
+ */
+public class FeatureDataSetIterator implements DataSetIterator
+{
+    private static final long serialVersionUID = 1L;
+
+    private final File file;
+    private final int batchSize;
+    private final int count;
+    private final int[] shape;
+    private final List<String> labels = new ArrayList<>();
+    private final int featureSize;
+    private final int recordSize;
+    private final int recordsPerSegment;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final int[] order;
+    private final Random rng;
+    private int cursor;
+    private DataSetPreProcessor preProcessor;
+
+    /**
+     * Constructor
+     * @param file The feature file
+     * @param batchSize The minibatch size
+     * @param rng The random generator used to shuffle records at each reset, or null to keep the file order
+     * @throws IOException if the file can't be mapped
+     */
+    public FeatureDataSetIterator( File file , int batchSize , Random rng ) throws IOException
+    {
+        this.file = file;
+        this.batchSize = batchSize;
+        this.rng = rng;
+
+        try( RandomAccessFile raf = new RandomAccessFile( file, "r" ); FileChannel channel = raf.getChannel() )
+        {
+            if( raf.readInt() != FeatureCache.MAGIC || raf.readInt() != FeatureCache.VERSION )
+            {
+                throw new IOException( "Not a feature file : " + file );
+            }
+            count = raf.readInt();
+            raf.readUTF();
+            shape = new int[raf.readInt() + 1];
+            int size = 1;
+            for( int i = 1 ; i < shape.length ; i++ )
+            {
+                shape[i] = raf.readInt();
+                size *= shape[i];
+            }
+            int numLabels = raf.readInt();
+            for( int i = 0 ; i < numLabels ; i++ )
+            {
+                labels.add( raf.readUTF() );
+            }
+            long dataOffset = raf.getFilePointer();
+
+            featureSize = size;
+            recordSize = 4 + featureSize * 4;
+            // A mapping is limited to 2GB, so records are mapped in segments
+            recordsPerSegment = Integer.MAX_VALUE / recordSize;
+            for( int first = 0 ; first < count ; first += recordsPerSegment )
+            {
+                int records = Math.min( recordsPerSegment, count - first );
+                segments.add( channel.map( FileChannel.MapMode.READ_ONLY, dataOffset + (long) first * recordSize, (long) records * recordSize ));
+            }
+        }
+
+        order = new int[count];
+        for( int i = 0 ; i < count ; i++ )
+        {
+            order[i] = i;
+        }
+        shuffle();
+    }
+
+    private void shuffle()
+    {
+        if( rng == null )
+        {
+            return;
+        }
+        for( int i = count - 1 ; i > 0 ; i-- )
+        {
+            int j = rng.nextInt( i + 1 );
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+    }
+
+    @Override
+    public DataSet next( int num )
+    {
+        if( !hasNext() )
+        {
+            throw new NoSuchElementException();
+        }
+        int n = Math.min( num, count - cursor );
+        float[] features = new float[n * featureSize];
+        INDArray labelArray = Nd4j.zeros( n, labels.size() );
+
+        for( int i = 0 ; i < n ; i++ )
+        {
+            int record = order[cursor + i];
+            ByteBuffer segment = segments.get( record / recordsPerSegment ).duplicate();
+            segment.position( ( record % recordsPerSegment ) * recordSize );
+            int label = segment.getInt();
+            segment.asFloatBuffer().get( features, i * featureSize, featureSize );
+            labelArray.putScalar( i, label, 1.0 );
+        }
+        cursor += n;
+
+        int[] batchShape = Arrays.copyOf( shape, shape.length );
+        batchShape[0] = n;
+        DataSet dataSet = new DataSet( Nd4j.create( features, batchShape, 'c' ), labelArray );
+        if( preProcessor != null )
+        {
+            preProcessor.preProcess( dataSet );
+        }
+        return dataSet;
+    }
+
+    @Override
+    public int totalExamples()
+    {
+        return count;
+    }
+
+    @Override
+    public int inputColumns()
+    {
+        return featureSize;
+    }
+
+    @Override
+    public int totalOutcomes()
+    {
+        return labels.size();
+    }
+
+    @Override
+    public boolean resetSupported()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported()
+    {
+        return true;
+    }
+
+    @Override
+    public void reset()
+    {
+        cursor = 0;
+        shuffle();
+    }
+
+    @Override
+    public int batch()
+    {
+        return batchSize;
+    }
+
+    @Override
+    public int cursor()
+    {
+        return cursor;
+    }
+
+    @Override
+    public int numExamples()
+    {
+        return count;
+    }
+
+    @Override
+    public void setPreProcessor( DataSetPreProcessor preProcessor )
+    {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor()
+    {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels()
+    {
+        return labels;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return cursor < count;
+    }
+
+    @Override
+    public DataSet next()
+    {
+        return next( batchSize );
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FeatureDataSetIterator[" + file + ", " + count + " images]";
+    }
+}
@@ -0,0 +1,192 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.datavec.api.split.InputSplit;
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.transferlearning.FineTuneConfiguration;
+import org.deeplearning4j.nn.transferlearning.TransferLearning;
+import org.deeplearning4j.nn.transferlearning.TransferLearningHelper;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * FineTuner
+ *
+ * Fine-tunes a trained model on a new dataset (possibly a new label set) :
+ * the convolution layers, up to the last one named cnn* and the pooling
+ * layers following it, are frozen, and only the remaining layers (ffn1, ffn2
+ * and output for AlexNet) are trained. The frozen layers are run once over
+ * the train and test splits, their activations cached in memory mapped
+ * files (see FeatureCache), and all epochs are fitted from the cache. The
+ * cache is reused while the base model and the splits don't change.
+ *
+ * Images are not augmented, the features of an image being computed once.
+ */
+public class FineTuner
+{
+    private static final Logger log = LoggerFactory.getLogger( FineTuner.class );
+    private static final String CACHE_TRAIN = ".train";
+    private static final String CACHE_TEST = ".test";
+    private static final String FROZEN_PREFIX = "cnn";
+    private static final double DEFAULT_LEARNING_RATE = 1e-3;
+
+    /**
+     * Fine-tune a model
+     * @param baseModel The trained model file
+     * @param trainerParams The trainer parameters
+     * @param modelParams The model parameters (learning rate of the fine tuning when set)
+     * @param scaler The normalizer of the base model, the frozen layers were trained with it
+     * @param labels Filled with the label names, index i is the label of output i, to be saved with the model
+     * @return The fine-tuned network
+     * @throws IOException if the model or the data can't be read, or the cache written
+     */
+    public static MultiLayerNetwork fineTune( File baseModel , TrainerParameters trainerParams , ModelParameters modelParams ,
+            DataNormalization scaler , List<String> labels ) throws IOException
+    {
+        log.info("Load data....");
+        Random rng = new Random( modelParams.getSeed() );
+        InputSplit[] inputSplit = Trainer.split( trainerParams , rng , false );
+        labels.clear();
+        labels.addAll( DatasetPacker.labels( inputSplit[0] , inputSplit[1] ));
+
+        log.info( "Load base model " + baseModel + "...." );
+        MultiLayerNetwork base = ModelSerializer.restoreMultiLayerNetwork( baseModel );
+        int frozenTill = frozenBoundary( base );
+        int outputLayer = base.getnLayers() - 1;
+
+        double learningRate = ( modelParams.getLearningRate() > 0 ) ? modelParams.getLearningRate() : DEFAULT_LEARNING_RATE;
+        TransferLearning.Builder builder = new TransferLearning.Builder( base )
+                .fineTuneConfiguration( new FineTuneConfiguration.Builder().seed( modelParams.getSeed() ).learningRate( learningRate ).build() )
+                .setFeatureExtractor( frozenTill );
+        List<String> baseLabels = ModelLabels.restore( baseModel );
+        if( !labels.equals( baseLabels ))
+        {
+            log.info( "New label set " + labels + " (base model : " + baseLabels + "), output layer reinitialized" );
+            builder.nOutReplace( outputLayer, labels.size(), WeightInit.XAVIER );
+        }
+        MultiLayerNetwork network = builder.build();
+        TransferLearningHelper helper = new TransferLearningHelper( network );
+        log.info( "Frozen layers 0.." + frozenTill + " (" + name( base, frozenTill ) + "), fine-tuning " + ( outputLayer - frozenTill )
+                + " layers with learning rate " + learningRate );
+
+        String key = baseModel.getCanonicalPath() + ":" + baseModel.lastModified() + ":" + frozenTill + ":" + modelParams.getHeight() + "x"
+                + modelParams.getWidth() + "x" + modelParams.getChannels() + ":" + labels;
+        File trainFile = cache( helper, inputSplit[0], labels, trainerParams, modelParams, scaler, key, CACHE_TRAIN );
+        File testFile = cache( helper, inputSplit[1], labels, trainerParams, modelParams, scaler, key, CACHE_TEST );
+
+        log.info("Train model....");
+        MultiLayerNetwork head = helper.unfrozenMLN();
+        head.setListeners( new ScoreIterationListener( trainerParams.getListenerFreq() ));
+        FeatureDataSetIterator trainIter = new FeatureDataSetIterator( trainFile, trainerParams.getBatchSize(), rng );
+        for( int epoch = 0 ; epoch < trainerParams.getEpochs() ; epoch++ )
+        {
+            long start = System.currentTimeMillis();
+            trainIter.reset();
+            while( trainIter.hasNext() )
+            {
+                helper.fitFeaturized( trainIter.next() );
+            }
+            log.info( "Epoch " + ( epoch + 1 ) + "/" + trainerParams.getEpochs() + " in " + ( System.currentTimeMillis() - start ) + "ms, score " + head.score() );
+        }
+
+        log.info("Evaluate model....");
+        Evaluation eval = head.evaluate( new FeatureDataSetIterator( testFile, trainerParams.getBatchSize(), null ));
+        log.info( eval.stats( true ));
+
+        // The head is a separate network, its parameters are put back behind the frozen layers
+        for( int i = 0 ; i < head.getnLayers() ; i++ )
+        {
+            network.getLayer( frozenTill + 1 + i ).setParams( head.getLayer( i ).params() );
+        }
+        return network;
+    }
+
+    /**
+     * @return the index of the last frozen layer : the last cnn* layer and the layers without parameters following it
+     */
+    static int frozenBoundary( MultiLayerNetwork network )
+    {
+        int last = -1;
+        for( int i = 0 ; i < network.getnLayers() ; i++ )
+        {
+            String name = name( network, i );
+            if( name != null && name.startsWith( FROZEN_PREFIX ))
+            {
+                last = i;
+            }
+        }
+        if( last < 0 )
+        {
+            throw new IllegalArgumentException( "No " + FROZEN_PREFIX + "* layer to freeze in the model" );
+        }
+        while( last + 2 < network.getnLayers() && network.getLayer( last + 1 ).numParams() == 0 )
+        {
+            last++;
+        }
+        return last;
+    }
+
+    private static String name( MultiLayerNetwork network , int layer )
+    {
+        return network.getLayer( layer ).conf().getLayer().getLayerName();
+    }
+
+    private static File cache( TransferLearningHelper helper , InputSplit split , List<String> labels , TrainerParameters trainerParams ,
+            ModelParameters modelParams , DataNormalization scaler , String key , String suffix ) throws IOException
+    {
+        String prefix = trainerParams.getFeatureCachePath();
+        File file;
+        if( prefix == null || prefix.isEmpty() )
+        {
+            file = File.createTempFile( "features", suffix );
+            file.deleteOnExit();
+        }
+        else
+        {
+            file = new File( prefix + suffix );
+        }
+        key = key + ":" + split.length() + ":" + Arrays.hashCode( split.locations() );
+        if( FeatureCache.isCached( file, key ))
+        {
+            log.info( "Using the cached features " + file );
+            return file;
+        }
+
+        PrefetchingDataSetIterator iterator = new PrefetchingDataSetIterator( split.locations(), labels, modelParams, trainerParams.getBatchSize(),
+                trainerParams.getWorkers(), trainerParams.getPrefetchDepth(), null, null );
+        iterator.setPreProcessor( scaler );
+        try
+        {
+            FeatureCache.write( helper, iterator, labels, key, file );
+        }
+        finally
+        {
+            iterator.shutdown();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,167 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Histogram
+ *
+ * Thread-safe recorder of durations (in nanoseconds). Percentiles are computed
+ * over the most recent samples kept in a fixed size ring buffer, while count,
+ * mean and rate are computed over all samples since creation or last reset.
+ */
+public class Histogram
+{
+    private static final int DEFAULT_CAPACITY = 10000;
+
+    private final long[] samples;
+    private int position;
+    private int size;
+    private long count;
+    private long total;
+    private long max;
+    private long start;
+
+    public Histogram()
+    {
+        this( DEFAULT_CAPACITY );
+    }
+
+    public Histogram( int capacity )
+    {
+        samples = new long[capacity];
+        start = System.nanoTime();
+    }
+
+    /**
+     * Record a duration
+     * @param nanos The duration in nanoseconds
+     */
+    public synchronized void record( long nanos )
+    {
+        samples[position] = nanos;
+        position = ( position + 1 ) % samples.length;
+        if( size < samples.length )
+        {
+            size++;
+        }
+        count++;
+        total += nanos;
+        if( nanos > max )
+        {
+            max = nanos;
+        }
+    }
+
+    /**
+     * @return the number of recorded samples
+     */
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the sum of all recorded durations in nanoseconds
+     */
+    public synchronized long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * @return the mean duration in milliseconds
+     */
+    public synchronized double getMeanMillis()
+    {
+        return ( count == 0 ) ? 0.0 : toMillis( total / count );
+    }
+
+    /**
+     * @return the max duration in milliseconds
+     */
+    public synchronized double getMaxMillis()
+    {
+        return toMillis( max );
+    }
+
+    /**
+     * Percentile of the recent samples
+     * @param percentile The percentile between 0 and 100
+     * @return The duration in milliseconds
+     */
+    public synchronized double getPercentileMillis( double percentile )
+    {
+        if( size == 0 )
+        {
+            return 0.0;
+        }
+        long[] sorted = Arrays.copyOf( samples, size );
+        Arrays.sort( sorted );
+        int index = (int) Math.ceil( percentile / 100.0 * size ) - 1;
+        index = Math.max( 0, Math.min( size - 1, index ));
+        return toMillis( sorted[index] );
+    }
+
+    /**
+     * @return the number of samples recorded per second since creation or last reset
+     */
+    public synchronized double getRate()
+    {
+        long elapsed = System.nanoTime() - start;
+        return ( elapsed <= 0 ) ? 0.0 : count * 1e9 / elapsed;
+    }
+
+    /**
+     * Clear all samples and restart the rate measurement
+     */
+    public synchronized void reset()
+    {
+        position = 0;
+        size = 0;
+        count = 0;
+        total = 0;
+        max = 0;
+        start = System.nanoTime();
+    }
+
+    /**
+     * @return a JSON summary of the histogram
+     */
+    public synchronized String toJson()
+    {
+        return String.format( Locale.US,
+                "{\"count\":%d,\"rate\":%.2f,\"mean\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"max\":%.3f}",
+                count, getRate(), getMeanMillis(), getPercentileMillis( 50 ), getPercentileMillis( 90 ),
+                getPercentileMillis( 99 ), getMaxMillis() );
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format( Locale.US,
+                "count=%d rate=%.2f/s mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+                count, getRate(), getMeanMillis(), getPercentileMillis( 50 ), getPercentileMillis( 90 ),
+                getPercentileMillis( 99 ), getMaxMillis() );
+    }
+
+    private static double toMillis( long nanos )
+    {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,524 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.datavec.api.split.InputSplit;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.nativeblas.NativeOpsHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HyperparameterTuner
+ *
+ * Searches the architecture, learning rate, L2 and dense layer size with
+ * asynchronous successive halving (ASHA, https://arxiv.org/abs/1810.05934).
+ * Trials are trained for minBudget minibatches in the first rung, and a
+ * trial is promoted to the next rung, trained up to reduction times more
+ * minibatches, as soon as its validation accuracy is in the top 1/reduction
+ * of the trials completed in its rung. Most trials are thus stopped after a
+ * few minibatches and only the best ones get the maxBudget. Trials are
+ * scored on the validation slice of the training data (validationSplit), the
+ * test split is left untouched for the evaluation of the final model.
+ *
+ * Concurrent trials share the CPU budget : each one gets its share of decode
+ * workers and the native math threads are limited to the rest. Every rung
+ * result is appended to the results file and the trial model written next to
+ * it, so a new run with the same file resumes the search : trials are
+ * sampled from the seed and their id, and promoted trials continue from
+ * their model. Trials interrupted in the middle of a rung are lost.
+ */
+public class HyperparameterTuner
+{
+    private static final Logger log = LoggerFactory.getLogger( HyperparameterTuner.class );
+    private static final String HEADER = "trial\trung\tminibatches\tarchitecture\tlearningRate\tl2\tdenseSize\taccuracy\tseconds";
+
+    private final TunerParameters tunerParams;
+    private final TrainerParameters trainerParams;
+    private final ModelParameters modelParams;
+    private final File resultsFile;
+    private final int[] budgets;
+    private final List<Map<Integer, Double>> scores = new ArrayList<>();
+    private final List<Set<Integer>> promoted = new ArrayList<>();
+    private final Map<Integer, Trial> trials = new HashMap<>();
+    private int nextTrial;
+    private int running;
+    private long trainedMinibatches;
+    private URI[] trainData;
+    private URI[] validationData;
+    private List<String> labels;
+    private DataNormalization normalizer;
+    private int decodeWorkers;
+
+    /**
+     * Constructor
+     * @param tunerParams The search space and budgets
+     * @param trainerParams The trainer parameters (data, minibatch size, augmentation)
+     * @param modelParams The model parameters, the base of each trial
+     */
+    public HyperparameterTuner( TunerParameters tunerParams , TrainerParameters trainerParams , ModelParameters modelParams )
+    {
+        this.tunerParams = tunerParams;
+        this.trainerParams = trainerParams;
+        this.modelParams = modelParams;
+        this.resultsFile = new File( tunerParams.getResultsPath() );
+
+        int reduction = Math.max( 2, tunerParams.getReduction() );
+        List<Integer> rungs = new ArrayList<>();
+        for( long budget = Math.max( 1, tunerParams.getMinBudget() ) ; budget <= tunerParams.getMaxBudget() ; budget *= reduction )
+        {
+            rungs.add( (int) budget );
+        }
+        if( rungs.isEmpty() )
+        {
+            rungs.add( Math.max( 1, tunerParams.getMaxBudget() ));
+        }
+        budgets = new int[rungs.size()];
+        for( int i = 0 ; i < budgets.length ; i++ )
+        {
+            budgets[i] = rungs.get( i );
+            scores.add( new HashMap<Integer, Double>() );
+            promoted.add( new HashSet<Integer>() );
+        }
+    }
+
+    /**
+     * Run the search until all trials are done
+     * @return The best trial, or null if none completed
+     * @throws IOException if the data or the results file can't be read
+     * @throws IllegalArgumentException if no validation slice is held out of the training data
+     */
+    public Trial run() throws IOException
+    {
+        if( trainerParams.getValidationSplit() <= 0.0 )
+        {
+            throw new IllegalArgumentException( "Trials are scored on the validation slice, set validationSplit above 0 in the trainer properties" );
+        }
+        Random rng = new Random( modelParams.getSeed() );
+        InputSplit[] inputSplit = Trainer.split( trainerParams , rng , true );
+        trainData = inputSplit[0].locations();
+        validationData = inputSplit[2].locations();
+        if( validationData.length == 0 )
+        {
+            throw new IllegalArgumentException( "The validation slice is empty, increase validationSplit or numExamples" );
+        }
+        labels = DatasetPacker.labels( inputSplit[0] , inputSplit[2] );
+        normalizer = ModelNormalizer.create();
+        PrefetchingDataSetIterator iterator = iterator( trainData , modelParams , null );
+        ModelNormalizer.fit( normalizer , iterator );
+        iterator.shutdown();
+
+        File directory = resultsFile.getAbsoluteFile().getParentFile();
+        if( !directory.isDirectory() && !directory.mkdirs() )
+        {
+            throw new IOException( "Unable to create " + directory );
+        }
+        resume();
+
+        int concurrency = Math.max( 1, tunerParams.getConcurrency() );
+        int cpus = ( tunerParams.getCpuBudget() > 0 ) ? tunerParams.getCpuBudget() : Runtime.getRuntime().availableProcessors();
+        int perTrial = Math.max( 1, cpus / concurrency );
+        decodeWorkers = Math.max( 1, perTrial / 4 );
+        NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads( Math.max( 1, perTrial - decodeWorkers ));
+        log.info( "Tuning " + tunerParams.getTrials() + " trials, " + concurrency + " at a time on " + cpus + " cores, rungs of "
+                + Arrays.toString( budgets ) + " minibatches" );
+
+        ExecutorService executor = Executors.newFixedThreadPool( concurrency );
+        for( int i = 0 ; i < concurrency ; i++ )
+        {
+            executor.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    work();
+                }
+            });
+        }
+        executor.shutdown();
+        try
+        {
+            while( !executor.awaitTermination( 1, TimeUnit.MINUTES ))
+            {
+                log.info( "Tuning : " + nextTrial + " trials started, " + trainedMinibatches + " minibatches trained" );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while tuning", e );
+        }
+        return report();
+    }
+
+    private void work()
+    {
+        Job job;
+        while( ( job = nextJob() ) != null )
+        {
+            long start = System.currentTimeMillis();
+            try
+            {
+                double accuracy = train( job );
+                complete( job, accuracy, ( System.currentTimeMillis() - start ) / 1000.0 );
+            }
+            catch( IOException | RuntimeException e )
+            {
+                log.error( "Trial " + job.trial + " failed in rung " + job.rung + " : " + e.getMessage(), e );
+                synchronized( this )
+                {
+                    running--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the next job, a promotion first, null when the search is over
+     */
+    private synchronized Job nextJob()
+    {
+        while( true )
+        {
+            Job job = promotion();
+            if( job == null && nextTrial < tunerParams.getTrials() )
+            {
+                Trial trial = Trial.sample( nextTrial++, tunerParams, modelParams.getSeed() );
+                trials.put( trial.id, trial );
+                job = new Job( trial, 0 );
+            }
+            if( job != null )
+            {
+                running++;
+                return job;
+            }
+            if( running == 0 )
+            {
+                return null;
+            }
+            try
+            {
+                // A running job may complete a rung and allow a promotion
+                wait();
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private Job promotion()
+    {
+        int reduction = Math.max( 2, tunerParams.getReduction() );
+        for( int rung = budgets.length - 2 ; rung >= 0 ; rung-- )
+        {
+            List<Map.Entry<Integer, Double>> ranked = ranked( rung );
+            for( int i = 0 ; i < ranked.size() / reduction ; i++ )
+            {
+                int id = ranked.get( i ).getKey();
+                if( promoted.get( rung ).add( id ))
+                {
+                    return new Job( trials.get( id ), rung + 1 );
+                }
+            }
+        }
+        return null;
+    }
+
+    private List<Map.Entry<Integer, Double>> ranked( int rung )
+    {
+        List<Map.Entry<Integer, Double>> ranked = new ArrayList<>( scores.get( rung ).entrySet() );
+        Collections.sort( ranked, new Comparator<Map.Entry<Integer, Double>>()
+        {
+            @Override
+            public int compare( Map.Entry<Integer, Double> a , Map.Entry<Integer, Double> b )
+            {
+                int c = Double.compare( b.getValue(), a.getValue() );
+                return ( c != 0 ) ? c : Integer.compare( a.getKey(), b.getKey() );
+            }
+        });
+        return ranked;
+    }
+
+    private double train( Job job ) throws IOException
+    {
+        ModelParameters params = job.trial.apply( modelParams );
+        MultiLayerNetwork network;
+        int done = 0;
+        if( job.rung == 0 )
+        {
+            network = NetworkFactory.getNetwork( job.trial.architecture, params, labels.size() );
+            network.init();
+        }
+        else
+        {
+            network = ModelSerializer.restoreMultiLayerNetwork( modelFile( job.trial.id, job.rung - 1 ), true );
+            done = budgets[job.rung - 1];
+        }
+
+        PrefetchingDataSetIterator train = iterator( trainData, params, new Random( modelParams.getSeed() * 31 + job.trial.id * 1000L + job.rung ));
+        try
+        {
+            for( int i = done ; i < budgets[job.rung] ; i++ )
+            {
+                if( !train.hasNext() )
+                {
+                    train.reset();
+                }
+                network.fit( train.next() );
+            }
+        }
+        finally
+        {
+            train.shutdown();
+        }
+
+        PrefetchingDataSetIterator validation = iterator( validationData, params, null );
+        double accuracy;
+        try
+        {
+            accuracy = network.evaluate( validation ).accuracy();
+        }
+        finally
+        {
+            validation.shutdown();
+        }
+
+        ModelSerializer.writeModel( network, modelFile( job.trial.id, job.rung ), true );
+        if( job.rung > 0 && !modelFile( job.trial.id, job.rung - 1 ).delete() )
+        {
+            log.warn( "Unable to delete " + modelFile( job.trial.id, job.rung - 1 ));
+        }
+        synchronized( this )
+        {
+            trainedMinibatches += budgets[job.rung] - done;
+        }
+        return accuracy;
+    }
+
+    private PrefetchingDataSetIterator iterator( URI[] locations , ModelParameters params , Random rng )
+    {
+        AugmentationPolicy augmentation = ( rng != null ) ? AugmentationPolicy.parse( trainerParams.getAugmentation() ) : null;
+        PrefetchingDataSetIterator iterator = new PrefetchingDataSetIterator( locations, labels, params, trainerParams.getBatchSize(),
+                Math.max( 1, decodeWorkers ), trainerParams.getPrefetchDepth(), augmentation, rng );
+        iterator.setPreProcessor( normalizer );
+        return iterator;
+    }
+
+    private File modelFile( int trial , int rung )
+    {
+        return new File( resultsFile.getAbsoluteFile().getParentFile(), "trial-" + trial + "-rung-" + rung + ".bin" );
+    }
+
+    private synchronized void complete( Job job , double accuracy , double seconds ) throws IOException
+    {
+        scores.get( job.rung ).put( job.trial.id, accuracy );
+        boolean header = !resultsFile.exists();
+        try( Writer writer = new OutputStreamWriter( new FileOutputStream( resultsFile, true ), StandardCharsets.UTF_8 ))
+        {
+            if( header )
+            {
+                writer.write( HEADER + "\n" );
+            }
+            writer.write( String.format( Locale.US, "%d\t%d\t%d\t%s\t%.4f\t%.1f%n", job.trial.id, job.rung, budgets[job.rung],
+                    job.trial.toTsv(), accuracy, seconds ));
+        }
+        log.info( "Trial " + job.trial + " rung " + job.rung + " (" + budgets[job.rung] + " minibatches) : accuracy " + String.format( Locale.US, "%.4f", accuracy ));
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * Reload the results of a previous run
+     */
+    private void resume() throws IOException
+    {
+        if( !resultsFile.exists() )
+        {
+            return;
+        }
+        int count = 0;
+        try( BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( resultsFile ), StandardCharsets.UTF_8 )))
+        {
+            String line;
+            while( ( line = reader.readLine() ) != null )
+            {
+                String[] fields = line.split( "\t" );
+                if( line.startsWith( "trial" ) || fields.length < 8 )
+                {
+                    continue;
+                }
+                int id = Integer.parseInt( fields[0] );
+                int rung = Integer.parseInt( fields[1] );
+                if( rung >= budgets.length || Integer.parseInt( fields[2] ) != budgets[rung] )
+                {
+                    throw new IOException( "The budgets changed since " + resultsFile + " was written, use another results file" );
+                }
+                trials.put( id, new Trial( id, fields[3], Double.parseDouble( fields[4] ), Double.parseDouble( fields[5] ), Integer.parseInt( fields[6] )));
+                scores.get( rung ).put( id, Double.parseDouble( fields[7] ));
+                if( rung > 0 )
+                {
+                    promoted.get( rung - 1 ).add( id );
+                }
+                nextTrial = Math.max( nextTrial, id + 1 );
+                count++;
+            }
+        }
+        // A promotion whose rung was not completed is lost with its trial
+        log.info( "Resuming from " + resultsFile + " : " + count + " results of " + trials.size() + " trials" );
+    }
+
+    private Trial report()
+    {
+        long exhaustive = (long) nextTrial * budgets[budgets.length - 1];
+        log.info( "Tuning done : " + trainedMinibatches + " minibatches trained in this run, "
+                + nextTrial + " trials, " + exhaustive + " minibatches for full runs of all of them" );
+        for( int rung = budgets.length - 1 ; rung >= 0 ; rung-- )
+        {
+            List<Map.Entry<Integer, Double>> ranked = ranked( rung );
+            if( ranked.isEmpty() )
+            {
+                continue;
+            }
+            StringBuilder sb = new StringBuilder( "Best trials of rung " + rung + " (" + budgets[rung] + " minibatches) :" );
+            for( int i = 0 ; i < Math.min( 5, ranked.size() ) ; i++ )
+            {
+                sb.append( String.format( Locale.US, "%n  %.4f  %s", ranked.get( i ).getValue(), trials.get( ranked.get( i ).getKey() )));
+            }
+            log.info( sb.toString() );
+            Trial best = trials.get( ranked.get( 0 ).getKey() );
+            log.info( "Best trial model : " + modelFile( best.id, rung ) + " (set network, learningRate, l2 and denseSize in model.properties to train it)" );
+            return best;
+        }
+        return null;
+    }
+
+    private static class Job
+    {
+        private final Trial trial;
+        private final int rung;
+
+        Job( Trial trial , int rung )
+        {
+            this.trial = trial;
+            this.rung = rung;
+        }
+    }
+
+    /**
+     * Hyperparameters of a trial
+     */
+    public static class Trial
+    {
+        private final int id;
+        private final String architecture;
+        private final double learningRate;
+        private final double l2;
+        private final int denseSize;
+
+        Trial( int id , String architecture , double learningRate , double l2 , int denseSize )
+        {
+            this.id = id;
+            this.architecture = architecture;
+            this.learningRate = learningRate;
+            this.l2 = l2;
+            this.denseSize = denseSize;
+        }
+
+        /**
+         * Sample a trial, the same one for a given seed and id
+         * @param id The trial id
+         * @param parameters The search space
+         * @param seed The seed
+         * @return The trial
+         */
+        static Trial sample( int id , TunerParameters parameters , long seed )
+        {
+            Random rng = new Random( seed * 7919 + id );
+            return new Trial( id, choose( parameters.getArchitectures(), rng ), logUniform( parameters.getLearningRates(), rng ),
+                    logUniform( parameters.getL2(), rng ), Integer.parseInt( choose( parameters.getDenseSizes(), rng )));
+        }
+
+        private static String choose( String values , Random rng )
+        {
+            String[] items = values.split( "," );
+            return items[rng.nextInt( items.length )].trim();
+        }
+
+        private static double logUniform( String range , Random rng )
+        {
+            String[] bounds = range.split( ":" );
+            double min = Math.log( Double.parseDouble( bounds[0].trim() ));
+            double max = Math.log( Double.parseDouble( bounds[bounds.length - 1].trim() ));
+            return Math.exp( min + rng.nextDouble() * ( max - min ));
+        }
+
+        /**
+         * @param base The model parameters
+         * @return a copy of the model parameters with the trial hyperparameters
+         */
+        public ModelParameters apply( ModelParameters base )
+        {
+            ModelParameters params = base.copy();
+            params.setNetwork( architecture );
+            params.setLearningRate( learningRate );
+            params.setL2( l2 );
+            params.setDenseSize( denseSize );
+            return params;
+        }
+
+        String toTsv()
+        {
+            return String.format( Locale.US, "%s\t%.6g\t%.6g\t%d", architecture, learningRate, l2, denseSize );
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( Locale.US, "#%d %s learningRate=%.3g l2=%.3g denseSize=%d", id, architecture, learningRate, l2, denseSize );
+        }
+    }
+}
@@ -0,0 +1,250 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FilenameUtils;
+import org.datavec.image.loader.NativeImageLoader;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ImageBatchPipeline
+ *
+ * Streams the images of a directory tree or of a file list in batches to a
+ * pool of workers, for the batch commands (BatchPredictor, ModelEvaluator).
+ * Each worker decodes its batch straight into the batch tensor and submits it
+ * to the shared inference engine, so that decoding of the next batches
+ * overlaps with the current forward pass.
+ */
+class ImageBatchPipeline
+{
+    private static final Logger log = LoggerFactory.getLogger( ImageBatchPipeline.class );
+    private static final int QUEUE_BATCHES_PER_WORKER = 2;
+
+    private final ImagePreprocessor preprocessor;
+    private final int workers;
+    private final int batchSize;
+    private final Set<String> formats = new HashSet<>();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Processes a batch of images, on a worker thread
+     */
+    interface BatchHandler
+    {
+        /**
+         * @param files The images of the batch
+         */
+        void process( List<File> files );
+    }
+
+    /**
+     * Loads an image into its slot of a batch
+     */
+    interface ImageLoader
+    {
+        /**
+         * @param file The image
+         * @param batch The batch tensor
+         * @param slot The slot of the image in the batch
+         * @return false if the image is skipped, the slot is given to the next image then
+         * @throws IOException if the image can't be read
+         */
+        boolean load( File file , INDArray batch , int slot ) throws IOException;
+    }
+
+    /**
+     * Constructor
+     * @param preprocessor The preprocessor of the model
+     * @param workers The number of decode workers
+     * @param batchSize The number of images decoded by a worker per batch
+     */
+    ImageBatchPipeline( ImagePreprocessor preprocessor , int workers , int batchSize )
+    {
+        this.preprocessor = preprocessor;
+        this.workers = Math.max( 1, workers );
+        this.batchSize = Math.max( 1, batchSize );
+        for( String format : NativeImageLoader.ALLOWED_FORMATS )
+        {
+            formats.add( format.toLowerCase( Locale.ROOT ));
+        }
+    }
+
+    /**
+     * Hand out all the images in batches and wait for them to be processed
+     * @param input A directory walked recursively, or a text file listing one image path per line
+     * @param handler The handler of the batches
+     * @throws IOException if the input can't be read, or if interrupted
+     */
+    void run( File input , final BatchHandler handler ) throws IOException
+    {
+        // Bounded queue + caller runs : the walker blocks instead of buffering the whole tree
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor( workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>( workers * QUEUE_BATCHES_PER_WORKER ), new ThreadPoolExecutor.CallerRunsPolicy() );
+        try
+        {
+            final List<File> chunk = new ArrayList<>( batchSize );
+            if( input.isDirectory() )
+            {
+                Files.walkFileTree( input.toPath(), new SimpleFileVisitor<Path>()
+                {
+                    @Override
+                    public FileVisitResult visitFile( Path path , BasicFileAttributes attrs )
+                    {
+                        if( attrs.isRegularFile() && isImage( path.toString() ))
+                        {
+                            add( chunk, path.toFile(), executor, handler );
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+            else
+            {
+                try( BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( input ), StandardCharsets.UTF_8 )))
+                {
+                    String line;
+                    while( ( line = reader.readLine() ) != null )
+                    {
+                        line = line.trim();
+                        if( !line.isEmpty() && isImage( line ))
+                        {
+                            add( chunk, new File( line ), executor, handler );
+                        }
+                    }
+                }
+            }
+            if( !chunk.isEmpty() )
+            {
+                submit( executor, new ArrayList<>( chunk ), handler );
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        awaitTermination( executor );
+    }
+
+    private boolean isImage( String path )
+    {
+        return formats.contains( FilenameUtils.getExtension( path ).toLowerCase( Locale.ROOT ));
+    }
+
+    private void add( List<File> chunk , File file , ThreadPoolExecutor executor , BatchHandler handler )
+    {
+        chunk.add( file );
+        if( chunk.size() == batchSize )
+        {
+            submit( executor, new ArrayList<>( chunk ), handler );
+            chunk.clear();
+        }
+    }
+
+    private static void submit( ThreadPoolExecutor executor , final List<File> files , final BatchHandler handler )
+    {
+        executor.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                handler.process( files );
+            }
+        });
+    }
+
+    private static void awaitTermination( ThreadPoolExecutor executor ) throws IOException
+    {
+        try
+        {
+            while( !executor.awaitTermination( 1, TimeUnit.MINUTES ))
+            {
+                log.info( "Waiting for " + executor.getActiveCount() + " batches to complete" );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while processing images", e );
+        }
+    }
+
+    /**
+     * Decode images straight into a batch tensor, the skipped and the failed ones leave no gap
+     * @param files The images
+     * @param loader The loader of each image
+     * @param decoded Receives the decoded images, in batch order
+     * @return The batch of the decoded images, or null if none was decoded
+     */
+    INDArray decode( List<File> files , ImageLoader loader , List<File> decoded )
+    {
+        INDArray batch = preprocessor.createBatch( files.size() );
+        for( File file : files )
+        {
+            try
+            {
+                if( loader.load( file, batch, decoded.size() ))
+                {
+                    decoded.add( file );
+                }
+            }
+            catch( IOException | RuntimeException e )
+            {
+                log.warn( "Unable to decode " + file + " : " + e.getMessage() );
+                failed.incrementAndGet();
+            }
+        }
+        if( decoded.isEmpty() )
+        {
+            return null;
+        }
+        if( decoded.size() < files.size() )
+        {
+            batch = batch.get( NDArrayIndex.interval( 0, decoded.size() ), NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.all() ).dup();
+        }
+        return batch;
+    }
+
+    /**
+     * @return the number of images that couldn't be decoded
+     */
+    long getFailed()
+    {
+        return failed.get();
+    }
+}
@@ -0,0 +1,362 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ImageClassifier
+ *
+ * Keeps a restored network in memory and classifies images with the same
+ * preprocessing as the trainer (decode and resize as NativeImageLoader, then
+ * the normalizer stored in the model). Images are decoded by an
+ * ImagePreprocessor, which reuses per-thread buffers and scales pixels while
+ * copying them to the network input. An optional PredictionCache answers
+ * images already classified by the same model version without decoding them.
+ */
+public class ImageClassifier
+{
+    private static final Logger log = LoggerFactory.getLogger( ImageClassifier.class );
+    private static final AtomicLong instances = new AtomicLong();
+
+    private final MultiLayerNetwork network;
+    private final BatchingInferenceEngine engine;
+    private final ModelParameters parameters;
+    private final DataNormalization scaler;
+    private final ImagePreprocessor preprocessor;
+    private final List<String> labels;
+    private final String version;
+    private volatile PredictionCache cache;
+
+    public ImageClassifier( MultiLayerNetwork network , final ModelParameters parameters )
+    {
+        this( network , ModelNormalizer.create() , parameters , 1 , 1 , 0 );
+    }
+
+    /**
+     * Constructor
+     * @param network The network
+     * @param scaler The normalizer used at training time
+     * @param parameters The model parameters
+     * @param replicas The number of network replicas running forward passes concurrently
+     * @param maxBatchSize The max number of concurrent requests coalesced in one forward pass
+     * @param maxWaitMillis The max time a request waits for its batch to fill
+     */
+    public ImageClassifier( MultiLayerNetwork network , DataNormalization scaler , final ModelParameters parameters , int replicas , int maxBatchSize , long maxWaitMillis )
+    {
+        this( network , scaler , parameters , null , replicas , maxBatchSize , maxWaitMillis );
+    }
+
+    /**
+     * Constructor
+     * @param network The network
+     * @param scaler The normalizer used at training time
+     * @param parameters The model parameters
+     * @param labels The label names, index i is the label of output i, or null if unknown
+     * @param replicas The number of network replicas running forward passes concurrently
+     * @param maxBatchSize The max number of concurrent requests coalesced in one forward pass
+     * @param maxWaitMillis The max time a request waits for its batch to fill
+     */
+    public ImageClassifier( MultiLayerNetwork network , DataNormalization scaler , final ModelParameters parameters , List<String> labels ,
+            int replicas , int maxBatchSize , long maxWaitMillis )
+    {
+        this( network , scaler , parameters , labels , null , replicas , maxBatchSize , maxWaitMillis );
+    }
+
+    /**
+     * Constructor
+     * @param network The network
+     * @param scaler The normalizer used at training time
+     * @param parameters The model parameters
+     * @param labels The label names, index i is the label of output i, or null if unknown
+     * @param version The model version, which keys the cached predictions, or null for a version unique to this instance
+     * @param replicas The number of network replicas running forward passes concurrently
+     * @param maxBatchSize The max number of concurrent requests coalesced in one forward pass
+     * @param maxWaitMillis The max time a request waits for its batch to fill
+     */
+    public ImageClassifier( MultiLayerNetwork network , DataNormalization scaler , final ModelParameters parameters , List<String> labels ,
+            String version , int replicas , int maxBatchSize , long maxWaitMillis )
+    {
+        this.network = network;
+        this.labels = labels;
+        this.version = ( version != null ) ? version : "instance-" + instances.incrementAndGet();
+        this.engine = new BatchingInferenceEngine( network , replicas , maxBatchSize , maxWaitMillis );
+        this.parameters = parameters;
+        this.scaler = scaler;
+        this.preprocessor = new ImagePreprocessor( parameters , scaler );
+    }
+
+    /**
+     * Restore a model file
+     * @param modelPath The model path
+     * @param parameters The model parameters
+     * @return The classifier
+     * @throws IOException if the model can't be read
+     */
+    public static ImageClassifier load( String modelPath , ModelParameters parameters ) throws IOException
+    {
+        return load( modelPath , parameters , 1 , 1 , 0 );
+    }
+
+    /**
+     * Restore a model file with the replicas and micro-batching settings of the server
+     * @param modelPath The model path
+     * @param parameters The model parameters
+     * @param serverParameters The server parameters
+     * @return The classifier
+     * @throws IOException if the model can't be read
+     */
+    public static ImageClassifier load( String modelPath , ModelParameters parameters , ServerParameters serverParameters ) throws IOException
+    {
+        ImageClassifier classifier = load( modelPath , parameters , serverParameters.getReplicas() , serverParameters.getMaxBatchSize() , serverParameters.getMaxWait() );
+        if( serverParameters.getCacheEntries() > 0 )
+        {
+            classifier.setCache( new PredictionCache( serverParameters.getCacheEntries() , serverParameters.getCacheMemory() * 1024L * 1024L ));
+        }
+        return classifier;
+    }
+
+    /**
+     * Restore a model file, written by ModelSerializer, a QuantizedModel or an
+     * InferenceModel, with network replicas and micro-batching of concurrent requests
+     * @param modelPath The model path
+     * @param parameters The model parameters
+     * @param replicas The number of network replicas running forward passes concurrently
+     * @param maxBatchSize The max number of concurrent requests coalesced in one forward pass
+     * @param maxWaitMillis The max time a request waits for its batch to fill
+     * @return The classifier
+     * @throws IOException if the model can't be read
+     */
+    public static ImageClassifier load( String modelPath , ModelParameters parameters , int replicas , int maxBatchSize , long maxWaitMillis ) throws IOException
+    {
+        log.info( "Loading model " + modelPath );
+        File file = new File( modelPath );
+        MultiLayerNetwork network;
+        DataNormalization scaler;
+        List<String> labels = null;
+        if( InferenceModel.isInferenceModel( file ))
+        {
+            InferenceModel model = InferenceModel.read( file );
+            network = model.getNetwork();
+            scaler = model.getNormalizer();
+            labels = model.getLabels();
+            // Images are resized to the input shape the model was exported with
+            parameters = model.withInputShape( parameters );
+        }
+        else if( QuantizedModel.isQuantized( file ))
+        {
+            QuantizedModel model = QuantizedModel.read( file );
+            network = model.getNetwork();
+            scaler = model.getNormalizer();
+            labels = model.getLabels();
+        }
+        else
+        {
+            network = ModelSerializer.restoreMultiLayerNetwork( file );
+            scaler = ModelNormalizer.restore( file );
+            labels = ModelLabels.restore( file );
+        }
+        // A new model file, or the same one rewritten, gets a new version
+        String version = file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified();
+        return new ImageClassifier( network , scaler , parameters , labels , version , replicas , maxBatchSize , maxWaitMillis );
+    }
+
+    /**
+     * Run a few forward passes, with a single image and with a full batch, so
+     * that native workspaces and BLAS threads are initialized before the first
+     * real request
+     * @param count The number of forward passes
+     */
+    public void warmup( int count )
+    {
+        INDArray single = Nd4j.zeros( new int[] { 1, parameters.getChannels(), parameters.getHeight(), parameters.getWidth() } );
+        INDArray batch = Nd4j.zeros( new int[] { engine.getMaxBatchSize(), parameters.getChannels(), parameters.getHeight(), parameters.getWidth() } );
+        long start = System.currentTimeMillis();
+        // Every replica runs count passes of each shape on its own thread
+        engine.warmup( single, count );
+        engine.warmup( batch, count );
+        log.info( "Warmup done in " + ( System.currentTimeMillis() - start ) + "ms" );
+    }
+
+    /**
+     * Classify an image file
+     * @param file The image file
+     * @return The probabilities per label
+     * @throws IOException if the image can't be decoded
+     */
+    public INDArray classify( File file ) throws IOException
+    {
+        if( cache != null )
+        {
+            return classify( Files.readAllBytes( file.toPath() ));
+        }
+        return engine.output( preprocessor.load( file ));
+    }
+
+    /**
+     * Classify an image file
+     * @param file The image file
+     * @param k The number of predictions
+     * @return The k most probable labels, most probable first
+     * @throws IOException if the image can't be decoded
+     */
+    public List<Prediction> predict( File file , int k ) throws IOException
+    {
+        return Prediction.topK( classify( file ), labels, k );
+    }
+
+    /**
+     * Classify images written in a batch by the preprocessor of this classifier
+     * @param batch The preprocessed images
+     * @return The probabilities per label, one row per image
+     */
+    public INDArray output( INDArray batch )
+    {
+        return engine.output( batch );
+    }
+
+    /**
+     * Classify an encoded image
+     * @param is The stream of the encoded image (JPEG, PNG, ...)
+     * @return The probabilities per label
+     * @throws IOException if the image can't be decoded
+     */
+    public INDArray classify( InputStream is ) throws IOException
+    {
+        return classify( IOUtils.toByteArray( is ));
+    }
+
+    /**
+     * Classify an encoded image, from the cache if enabled and the image was
+     * already classified by this model version
+     * @param encoded The encoded image (JPEG, PNG, ...)
+     * @return The probabilities per label
+     * @throws IOException if the image can't be decoded
+     */
+    public INDArray classify( byte[] encoded ) throws IOException
+    {
+        PredictionCache current = cache;
+        float[] cached = ( current != null ) ? current.get( encoded, version ) : null;
+        if( cached != null )
+        {
+            return Nd4j.create( cached );
+        }
+        INDArray batch = preprocessor.createBatch( 1 );
+        preprocessor.load( encoded, batch, 0 );
+        INDArray output = engine.output( batch );
+        if( current != null )
+        {
+            current.put( encoded, version, output.dup().data().asFloat() );
+        }
+        return output;
+    }
+
+    /**
+     * Classify decoded images. Concurrent calls are coalesced into batches.
+     * @param image One or more images as returned by NativeImageLoader (not normalized)
+     * @return The probabilities per label, one row per image
+     */
+    public INDArray classify( INDArray image )
+    {
+        scaler.transform( image );
+        return engine.output( image );
+    }
+
+    /**
+     * Stop the inference engine once queued requests are processed
+     */
+    public void close()
+    {
+        engine.shutdown();
+    }
+
+    /**
+     * @return the network
+     */
+    public MultiLayerNetwork getNetwork()
+    {
+        return network;
+    }
+
+    /**
+     * @return the preprocessor decoding images to the network input
+     */
+    public ImagePreprocessor getPreprocessor()
+    {
+        return preprocessor;
+    }
+
+    /**
+     * @return the model version, which keys the cached predictions
+     */
+    public String getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @return the prediction cache, or null if disabled
+     */
+    public PredictionCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * @param cache the prediction cache to use, or null to disable it
+     */
+    public void setCache( PredictionCache cache )
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the inference engine
+     */
+    public BatchingInferenceEngine getEngine()
+    {
+        return engine;
+    }
+
+    /**
+     * @return the model parameters
+     */
+    public ModelParameters getParameters()
+    {
+        return parameters;
+    }
+
+    /**
+     * @return the label names, index i is the label of output i, or null if the model doesn't store them
+     */
+    public List<String> getLabels()
+    {
+        return labels;
+    }
+}
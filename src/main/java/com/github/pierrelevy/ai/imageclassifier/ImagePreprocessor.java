@@ -0,0 +1,330 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import org.apache.commons.io.IOUtils;
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.bytedeco.javacpp.opencv_imgcodecs;
+import org.bytedeco.javacpp.opencv_imgproc;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+/**
+ * ImagePreprocessor
+ *
+ * Decodes and resizes images straight into a slot of a preallocated batch
+ * tensor, with the same result as NativeImageLoader.asMatrix (BGR channel
+ * order, CHW layout) followed by the normalizer. Each thread reuses its
+ * resized and color converted Mats and its pixel buffers, so the only
+ * allocation per image is the decoded Mat. When the normalizer is a fixed
+ * range ImagePreProcessingScaler, scaling is fused in the layout conversion
+ * pass; other normalizers are applied to the slot once written.
+ */
+public class ImagePreprocessor
+{
+    private final int height;
+    private final int width;
+    private final int channels;
+    private final int imageSize;
+    private final DataNormalization normalizer;
+    private final float scale;
+    private final float offset;
+    private final boolean fused;
+    private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>()
+    {
+        @Override
+        protected Workspace initialValue()
+        {
+            return new Workspace();
+        }
+    };
+
+    /**
+     * Constructor
+     * @param parameters The model parameters giving the image size
+     * @param normalizer The normalizer, or null to keep raw pixel values in [0,255]
+     */
+    public ImagePreprocessor( ModelParameters parameters , DataNormalization normalizer )
+    {
+        this.height = parameters.getHeight();
+        this.width = parameters.getWidth();
+        this.channels = parameters.getChannels();
+        this.imageSize = channels * height * width;
+        this.normalizer = normalizer;
+        if( normalizer == null || normalizer instanceof ImagePreProcessingScaler )
+        {
+            // The scaler is affine : its mapping is found by transforming 0 and 255
+            INDArray range = Nd4j.create( new float[] { 0f, 255f } );
+            if( normalizer != null )
+            {
+                normalizer.transform( range );
+            }
+            this.offset = range.getFloat( 0 );
+            this.scale = ( range.getFloat( 1 ) - offset ) / 255f;
+            this.fused = true;
+        }
+        else
+        {
+            this.offset = 0f;
+            this.scale = 1f;
+            this.fused = false;
+        }
+    }
+
+    /**
+     * @param size The number of images
+     * @return a new batch tensor of the model input shape
+     */
+    public INDArray createBatch( int size )
+    {
+        return Nd4j.create( new int[] { size, channels, height, width }, 'c' );
+    }
+
+    /**
+     * Decode an image file into a new single image batch
+     * @param file The image file
+     * @return The preprocessed image
+     * @throws IOException if the image can't be decoded
+     */
+    public INDArray load( File file ) throws IOException
+    {
+        INDArray batch = createBatch( 1 );
+        load( file, batch, 0 );
+        return batch;
+    }
+
+    /**
+     * Decode an encoded image into a new single image batch
+     * @param is The stream of the encoded image (JPEG, PNG, ...)
+     * @return The preprocessed image
+     * @throws IOException if the image can't be read or decoded
+     */
+    public INDArray load( InputStream is ) throws IOException
+    {
+        INDArray batch = createBatch( 1 );
+        load( IOUtils.toByteArray( is ), batch, 0 );
+        return batch;
+    }
+
+    /**
+     * Decode an image file into a slot of a batch
+     * @param file The image file
+     * @param batch The batch, as created by createBatch
+     * @param slot The index of the image in the batch
+     * @throws IOException if the image can't be decoded
+     */
+    public void load( File file , INDArray batch , int slot ) throws IOException
+    {
+        Mat image = opencv_imgcodecs.imread( file.getAbsolutePath(), readFlags() );
+        write( image, file.getPath(), batch, slot );
+    }
+
+    /**
+     * Decode an encoded image into a slot of a batch
+     * @param encoded The encoded image (JPEG, PNG, ...)
+     * @param batch The batch, as created by createBatch
+     * @param slot The index of the image in the batch
+     * @throws IOException if the image can't be decoded
+     */
+    public void load( byte[] encoded , INDArray batch , int slot ) throws IOException
+    {
+        Mat data = new Mat( encoded );
+        Mat image;
+        try
+        {
+            image = opencv_imgcodecs.imdecode( data, readFlags() );
+        }
+        finally
+        {
+            data.deallocate();
+        }
+        write( image, "image of " + encoded.length + " bytes", batch, slot );
+    }
+
+    /**
+     * Copy an image already decoded by NativeImageLoader (an augmented one)
+     * into a slot of a batch, with the same normalization
+     * @param image The image, as returned by NativeImageLoader.asMatrix
+     * @param batch The batch, as created by createBatch
+     * @param slot The index of the image in the batch
+     */
+    public void put( INDArray image , INDArray batch , int slot )
+    {
+        INDArray target = slot( batch, slot );
+        target.assign( image.reshape( 1, channels, height, width ));
+        if( fused )
+        {
+            target.muli( scale ).addi( offset );
+        }
+        else
+        {
+            normalizer.transform( target );
+        }
+    }
+
+    /**
+     * @return true if scaling is done in the layout conversion pass
+     */
+    public boolean isFused()
+    {
+        return fused;
+    }
+
+    private int readFlags()
+    {
+        // Decode straight to the target channels when OpenCV can, alpha is kept only when needed
+        switch( channels )
+        {
+            case 1:
+                return opencv_imgcodecs.IMREAD_GRAYSCALE;
+            case 3:
+                return opencv_imgcodecs.IMREAD_COLOR;
+            default:
+                return opencv_imgcodecs.IMREAD_UNCHANGED;
+        }
+    }
+
+    private INDArray slot( INDArray batch , int slot )
+    {
+        return batch.get( NDArrayIndex.interval( slot, slot + 1 ), NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.all() );
+    }
+
+    private void write( Mat image , String name , INDArray batch , int slot ) throws IOException
+    {
+        if( image == null || image.isNull() || image.empty() )
+        {
+            throw new IOException( "Unable to decode " + name );
+        }
+        if( batch.ordering() != 'c' || batch.data().dataType() != DataBuffer.Type.FLOAT || slot >= batch.size( 0 ))
+        {
+            throw new IllegalArgumentException( "Not a batch created by createBatch, or slot " + slot + " out of range" );
+        }
+        Workspace workspace = workspaces.get();
+        try
+        {
+            Mat pixels = workspace.convert( image );
+            if( pixels.depth() != opencv_core.CV_8U )
+            {
+                throw new IOException( "Unsupported pixel depth " + pixels.depth() + " : " + name );
+            }
+            workspace.layout();
+        }
+        finally
+        {
+            image.deallocate();
+        }
+
+        // Written in place in the batch memory, no intermediate INDArray
+        FloatBuffer target = batch.data().asNioFloat();
+        target.position( (int) batch.offset() + slot * imageSize );
+        target.put( workspace.values, 0, imageSize );
+        if( !fused )
+        {
+            normalizer.transform( slot( batch, slot ));
+        }
+    }
+
+    /**
+     * Per thread buffers
+     */
+    private class Workspace
+    {
+        private final Size size = new Size( width, height );
+        private final Mat resized = new Mat();
+        private final Mat converted = new Mat();
+        private final byte[] pixels = new byte[imageSize];
+        private final float[] values = new float[imageSize];
+        private Mat current;
+
+        /**
+         * Resize and convert the decoded image to the model channels, in the reused Mats
+         */
+        Mat convert( Mat image )
+        {
+            Mat source = image;
+            if( image.rows() != height || image.cols() != width )
+            {
+                opencv_imgproc.resize( image, resized, size );
+                source = resized;
+            }
+            int code = colorConversion( source.channels() );
+            if( code >= 0 )
+            {
+                opencv_imgproc.cvtColor( source, converted, code );
+                source = converted;
+            }
+            current = source;
+            return source;
+        }
+
+        /**
+         * Interleaved HWC bytes to planar CHW floats, scaled when fused
+         */
+        void layout()
+        {
+            int plane = height * width;
+            Mat source = current.isContinuous() ? current : current.clone();
+            source.data().get( pixels, 0, imageSize );
+            if( source != current )
+            {
+                source.deallocate();
+            }
+            for( int p = 0, i = 0 ; p < plane ; p++ )
+            {
+                for( int c = 0 ; c < channels ; c++, i++ )
+                {
+                    values[c * plane + p] = ( pixels[i] & 0xFF ) * scale + offset;
+                }
+            }
+            current = null;
+        }
+    }
+
+    private int colorConversion( int source )
+    {
+        if( source == channels )
+        {
+            return -1;
+        }
+        switch( channels * 10 + source )
+        {
+            case 13:
+                return opencv_imgproc.COLOR_BGR2GRAY;
+            case 14:
+                return opencv_imgproc.COLOR_BGRA2GRAY;
+            case 31:
+                return opencv_imgproc.COLOR_GRAY2BGR;
+            case 34:
+                return opencv_imgproc.COLOR_BGRA2BGR;
+            case 41:
+                return opencv_imgproc.COLOR_GRAY2BGRA;
+            case 43:
+                return opencv_imgproc.COLOR_BGR2BGRA;
+            default:
+                throw new IllegalArgumentException( "Unsupported conversion from " + source + " to " + channels + " channels" );
+        }
+    }
+}
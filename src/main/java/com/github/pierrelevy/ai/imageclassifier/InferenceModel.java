@@ -0,0 +1,290 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * InferenceModel
+ *
+ * Lean inference artifact : configuration, normalizer, input shape, label
+ * names and the flattened FP32 parameters, without updater state. The
+ * parameters are stored as one aligned little endian block that is memory
+ * mapped (copy on write) and used directly as the network parameters view,
+ * so loading doesn't copy or parse the weights.
+ *
+ * File layout :
+ *  - magic, version, header length (big endian ints)
+ *  - header : configuration JSON, normalizer (Java serialization), height,
+ *    width, channels, label names, parameter count
+ *  - padding to a 64 bytes boundary
+ *  - parameters : float32 little endian
+ */
+public class InferenceModel
+{
+    static final int MAGIC = 0x494D494D;  // "IMIM"
+    static final int VERSION = 1;
+    private static final int ALIGNMENT = 64;
+    private static final int WRITE_CHUNK = 1 << 20;
+    private static final String TMP_EXTENSION = ".tmp";
+
+    private final MultiLayerNetwork network;
+    private final DataNormalization normalizer;
+    private final ModelParameters inputShape;
+    private final List<String> labels;
+
+    private InferenceModel( MultiLayerNetwork network , DataNormalization normalizer , ModelParameters inputShape , List<String> labels )
+    {
+        this.network = network;
+        this.normalizer = normalizer;
+        this.inputShape = inputShape;
+        this.labels = labels;
+    }
+
+    /**
+     * @return the network
+     */
+    public MultiLayerNetwork getNetwork()
+    {
+        return network;
+    }
+
+    /**
+     * @return the normalizer
+     */
+    public DataNormalization getNormalizer()
+    {
+        return normalizer;
+    }
+
+    /**
+     * @return the label names, index i is the label of output i
+     */
+    public List<String> getLabels()
+    {
+        return labels;
+    }
+
+    /**
+     * The model parameters with the input shape of the artifact
+     * @param parameters The configured parameters (seed, iterations, network)
+     * @return A copy with the artifact height, width and channels
+     */
+    public ModelParameters withInputShape( ModelParameters parameters )
+    {
+        ModelParameters copy = new ModelParameters();
+        copy.setHeight( inputShape.getHeight() );
+        copy.setWidth( inputShape.getWidth() );
+        copy.setChannels( inputShape.getChannels() );
+        copy.setIterations( parameters.getIterations() );
+        copy.setSeed( parameters.getSeed() );
+        copy.setNetwork( parameters.getNetwork() );
+        return copy;
+    }
+
+    /**
+     * Write an artifact
+     * @param file The file
+     * @param network The network
+     * @param normalizer The normalizer
+     * @param parameters The model parameters giving the input shape
+     * @param labels The label names
+     * @throws IOException if the file can't be written
+     */
+    public static void write( File file , MultiLayerNetwork network , DataNormalization normalizer , ModelParameters parameters ,
+            List<String> labels ) throws IOException
+    {
+        float[] params = network.params().dup().data().asFloat();
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream( header );
+        writeBytes( dos, network.getLayerWiseConfigurations().toJson().getBytes( StandardCharsets.UTF_8 ));
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try( ObjectOutputStream oos = new ObjectOutputStream( serialized ))
+        {
+            oos.writeObject( normalizer );
+        }
+        writeBytes( dos, serialized.toByteArray() );
+        dos.writeInt( parameters.getHeight() );
+        dos.writeInt( parameters.getWidth() );
+        dos.writeInt( parameters.getChannels() );
+        dos.writeInt( labels.size() );
+        for( String label : labels )
+        {
+            dos.writeUTF( label );
+        }
+        dos.writeInt( params.length );
+        dos.flush();
+
+        // Written aside and moved in place : a server may have the current file mapped
+        File tmp = new File( file.getPath() + TMP_EXTENSION );
+        try( RandomAccessFile raf = new RandomAccessFile( tmp, "rw" ); FileChannel channel = raf.getChannel() )
+        {
+            raf.setLength( 0 );
+            ByteBuffer prefix = ByteBuffer.allocate( 12 );
+            prefix.putInt( MAGIC ).putInt( VERSION ).putInt( header.size() ).flip();
+            write( channel, prefix );
+            write( channel, ByteBuffer.wrap( header.toByteArray() ));
+
+            long offset = dataOffset( header.size() );
+            ByteBuffer data = ByteBuffer.allocate( WRITE_CHUNK * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+            channel.position( offset );
+            for( int first = 0 ; first < params.length ; first += WRITE_CHUNK )
+            {
+                int count = Math.min( WRITE_CHUNK, params.length - first );
+                data.clear();
+                data.asFloatBuffer().put( params, first, count );
+                data.limit( count * 4 );
+                write( channel, data );
+            }
+        }
+        AtomicFiles.move( tmp, file );
+    }
+
+    private static long dataOffset( int headerLength )
+    {
+        long end = 12 + headerLength;
+        return ( end + ALIGNMENT - 1 ) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static void writeBytes( DataOutputStream dos , byte[] bytes ) throws IOException
+    {
+        dos.writeInt( bytes.length );
+        dos.write( bytes );
+    }
+
+    private static void write( FileChannel channel , ByteBuffer buffer ) throws IOException
+    {
+        while( buffer.hasRemaining() )
+        {
+            channel.write( buffer );
+        }
+    }
+
+    /**
+     * Read an artifact, mapping the parameters
+     * @param file The file
+     * @return The model
+     * @throws IOException if the file can't be read
+     */
+    public static InferenceModel read( File file ) throws IOException
+    {
+        // A private mapping needs a channel opened for writing, although the file is never modified
+        boolean mappable = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN && file.canWrite();
+        try( RandomAccessFile raf = new RandomAccessFile( file, mappable ? "rw" : "r" ); FileChannel channel = raf.getChannel() )
+        {
+            if( raf.readInt() != MAGIC || raf.readInt() != VERSION )
+            {
+                throw new IOException( "Not an inference model : " + file );
+            }
+            byte[] header = new byte[raf.readInt()];
+            raf.readFully( header );
+            DataInputStream dis = new DataInputStream( new ByteArrayInputStream( header ));
+
+            MultiLayerConfiguration conf = MultiLayerConfiguration.fromJson( new String( readBytes( dis ), StandardCharsets.UTF_8 ));
+            DataNormalization normalizer;
+            try( ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( readBytes( dis ))))
+            {
+                normalizer = (DataNormalization) ois.readObject();
+            }
+            catch( ClassNotFoundException e )
+            {
+                throw new IOException( "Unable to read the normalizer of " + file, e );
+            }
+            ModelParameters inputShape = new ModelParameters();
+            inputShape.setHeight( dis.readInt() );
+            inputShape.setWidth( dis.readInt() );
+            inputShape.setChannels( dis.readInt() );
+            int labelCount = dis.readInt();
+            List<String> labels = new ArrayList<>( labelCount );
+            for( int i = 0 ; i < labelCount ; i++ )
+            {
+                labels.add( dis.readUTF() );
+            }
+            int length = dis.readInt();
+
+            long offset = dataOffset( header.length );
+            INDArray params;
+            if( mappable )
+            {
+                // Private mapping : pages are shared with the page cache and copied only if written
+                MappedByteBuffer mapped = channel.map( FileChannel.MapMode.PRIVATE, offset, (long) length * 4 );
+                mapped.order( ByteOrder.LITTLE_ENDIAN );
+                DataBuffer buffer = Nd4j.createBuffer( mapped, DataBuffer.Type.FLOAT, length );
+                params = Nd4j.create( buffer, new int[] { 1, length } );
+            }
+            else
+            {
+                float[] values = new float[length];
+                channel.map( FileChannel.MapMode.READ_ONLY, offset, (long) length * 4 ).order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer().get( values );
+                params = Nd4j.create( values, new int[] { 1, length } );
+            }
+
+            MultiLayerNetwork network = new MultiLayerNetwork( conf );
+            network.init( params, false );
+            return new InferenceModel( network, normalizer, inputShape, Collections.unmodifiableList( labels ));
+        }
+    }
+
+    private static byte[] readBytes( DataInputStream dis ) throws IOException
+    {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully( bytes );
+        return bytes;
+    }
+
+    /**
+     * @param file The file
+     * @return true if the file is an inference model artifact
+     */
+    public static boolean isInferenceModel( File file )
+    {
+        if( !file.isFile() )
+        {
+            return false;
+        }
+        try( RandomAccessFile raf = new RandomAccessFile( file, "r" ))
+        {
+            return raf.length() >= 12 && raf.readInt() == MAGIC;
+        }
+        catch( IOException e )
+        {
+            return false;
+        }
+    }
+}
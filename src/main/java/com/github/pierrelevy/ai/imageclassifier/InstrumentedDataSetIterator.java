@@ -0,0 +1,150 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.List;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+/**
+ * InstrumentedDataSetIterator
+ *
+ * Reports to a TrainingMetricsListener the time the training loop waits for
+ * each minibatch and its size. Asynchronous prefetching by the network is
+ * disabled so that the wait is measured in the training thread : wrap an
+ * AsyncDataSetIterator (or use an iterator that prefetches by itself).
+ */
+public class InstrumentedDataSetIterator implements DataSetIterator
+{
+    private static final long serialVersionUID = 1L;
+
+    private final DataSetIterator iterator;
+    private final TrainingMetricsListener listener;
+
+    /**
+     * Constructor
+     * @param iterator The wrapped iterator
+     * @param listener The listener receiving the waits
+     */
+    public InstrumentedDataSetIterator( DataSetIterator iterator , TrainingMetricsListener listener )
+    {
+        this.iterator = iterator;
+        this.listener = listener;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return iterator.hasNext();
+    }
+
+    @Override
+    public DataSet next()
+    {
+        long start = System.nanoTime();
+        DataSet dataSet = iterator.next();
+        listener.onData( System.nanoTime() - start, dataSet.numExamples() );
+        return dataSet;
+    }
+
+    @Override
+    public DataSet next( int num )
+    {
+        long start = System.nanoTime();
+        DataSet dataSet = iterator.next( num );
+        listener.onData( System.nanoTime() - start, dataSet.numExamples() );
+        return dataSet;
+    }
+
+    @Override
+    public int totalExamples()
+    {
+        return iterator.totalExamples();
+    }
+
+    @Override
+    public int inputColumns()
+    {
+        return iterator.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes()
+    {
+        return iterator.totalOutcomes();
+    }
+
+    @Override
+    public boolean resetSupported()
+    {
+        return iterator.resetSupported();
+    }
+
+    @Override
+    public boolean asyncSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public void reset()
+    {
+        iterator.reset();
+    }
+
+    @Override
+    public int batch()
+    {
+        return iterator.batch();
+    }
+
+    @Override
+    public int cursor()
+    {
+        return iterator.cursor();
+    }
+
+    @Override
+    public int numExamples()
+    {
+        return iterator.numExamples();
+    }
+
+    @Override
+    public void setPreProcessor( DataSetPreProcessor preProcessor )
+    {
+        iterator.setPreProcessor( preProcessor );
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor()
+    {
+        return iterator.getPreProcessor();
+    }
+
+    @Override
+    public List<String> getLabels()
+    {
+        return iterator.getLabels();
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,194 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MetricsRegistry
+ *
+ * Named duration histograms and gauges, dumped as JSON or CSV files or served
+ * on a local HTTP endpoint :
+ *  - GET /metrics      JSON
+ *  - GET /metrics.csv  CSV
+ */
+public class MetricsRegistry
+{
+    private static final Logger log = LoggerFactory.getLogger( MetricsRegistry.class );
+    private static final String CSV_HEADER = "metric,count,rate,mean,p50,p90,p99,max,value";
+
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+    private final Map<String, Double> gauges = new LinkedHashMap<>();
+    private HttpServer server;
+
+    /**
+     * Get or create a histogram
+     * @param name The metric name
+     * @return The histogram
+     */
+    public synchronized Histogram histogram( String name )
+    {
+        Histogram histogram = histograms.get( name );
+        if( histogram == null )
+        {
+            histogram = new Histogram();
+            histograms.put( name, histogram );
+        }
+        return histogram;
+    }
+
+    /**
+     * Set the current value of a gauge
+     * @param name The metric name
+     * @param value The value
+     */
+    public synchronized void gauge( String name , double value )
+    {
+        gauges.put( name, value );
+    }
+
+    /**
+     * @param name The metric name
+     * @return the current value of the gauge, or 0 if not set
+     */
+    public synchronized double getGauge( String name )
+    {
+        Double value = gauges.get( name );
+        return ( value == null ) ? 0.0 : value;
+    }
+
+    /**
+     * Clear the histograms samples, gauges keep their value
+     */
+    public synchronized void reset()
+    {
+        for( Histogram histogram : histograms.values() )
+        {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * @return all metrics as JSON, durations in milliseconds
+     */
+    public synchronized String toJson()
+    {
+        StringBuilder sb = new StringBuilder( "{\"histograms\":{" );
+        String separator = "";
+        for( Map.Entry<String, Histogram> entry : histograms.entrySet() )
+        {
+            sb.append( separator ).append( '"' ).append( entry.getKey() ).append( "\":" ).append( entry.getValue().toJson() );
+            separator = ",";
+        }
+        sb.append( "},\"gauges\":{" );
+        separator = "";
+        for( Map.Entry<String, Double> entry : gauges.entrySet() )
+        {
+            sb.append( separator ).append( '"' ).append( entry.getKey() ).append( "\":" ).append( String.format( Locale.US, "%.3f", entry.getValue() ));
+            separator = ",";
+        }
+        return sb.append( "}}" ).toString();
+    }
+
+    /**
+     * @return all metrics as CSV, one line per metric, durations in milliseconds
+     */
+    public synchronized String toCsv()
+    {
+        StringBuilder sb = new StringBuilder( CSV_HEADER ).append( '\n' );
+        for( Map.Entry<String, Histogram> entry : histograms.entrySet() )
+        {
+            Histogram h = entry.getValue();
+            sb.append( String.format( Locale.US, "%s,%d,%.2f,%.3f,%.3f,%.3f,%.3f,%.3f,\n",
+                    entry.getKey(), h.getCount(), h.getRate(), h.getMeanMillis(), h.getPercentileMillis( 50 ),
+                    h.getPercentileMillis( 90 ), h.getPercentileMillis( 99 ), h.getMaxMillis() ));
+        }
+        for( Map.Entry<String, Double> entry : gauges.entrySet() )
+        {
+            sb.append( String.format( Locale.US, "%s,,,,,,,,%.3f\n", entry.getKey(), entry.getValue() ));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the metrics to &lt;prefix&gt;.json and &lt;prefix&gt;.csv
+     * @param prefix The path prefix of the files
+     */
+    public void write( String prefix )
+    {
+        try
+        {
+            FileUtils.writeStringToFile( new File( prefix + ".json" ), toJson(), StandardCharsets.UTF_8 );
+            FileUtils.writeStringToFile( new File( prefix + ".csv" ), toCsv(), StandardCharsets.UTF_8 );
+        }
+        catch( IOException e )
+        {
+            log.warn( "Unable to write the metrics to " + prefix + " : " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Serve the metrics on a local endpoint
+     * @param port The port
+     * @throws IOException if the port can't be bound
+     */
+    public synchronized void serve( int port ) throws IOException
+    {
+        server = HttpServer.create( new InetSocketAddress( "localhost", port ), 0 );
+        server.createContext( "/metrics", new HttpHandler()
+        {
+            @Override
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                boolean csv = exchange.getRequestURI().getPath().endsWith( ".csv" );
+                byte[] bytes = ( csv ? toCsv() : toJson() ).getBytes( StandardCharsets.UTF_8 );
+                exchange.getResponseHeaders().set( "Content-Type", csv ? "text/csv" : "application/json" );
+                exchange.sendResponseHeaders( 200, bytes.length );
+                try( OutputStream os = exchange.getResponseBody() )
+                {
+                    os.write( bytes );
+                }
+            }
+        });
+        server.start();
+        log.info( "Metrics served on http://localhost:" + port + "/metrics" );
+    }
+
+    /**
+     * Stop the endpoint if started
+     */
+    public synchronized void stop()
+    {
+        if( server != null )
+        {
+            server.stop( 0 );
+            server = null;
+        }
+    }
+}
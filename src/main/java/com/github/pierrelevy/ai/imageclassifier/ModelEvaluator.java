@@ -0,0 +1,289 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.deeplearning4j.eval.Evaluation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ModelEvaluator
+ *
+ * Evaluates a model on a labelled directory tree (the label of an image is
+ * its parent directory name) streamed through the ImageBatchPipeline used by
+ * BatchPredictor. Each worker thread accumulates its own Evaluation, so
+ * memory only depends on the number of labels, and the confusion matrices
+ * are merged at the end. Throughput and per-image latency (from the start of
+ * its decoding to the output of its batch) are reported next to the
+ * evaluation statistics, overall and per label with the accuracy.
+ */
+public class ModelEvaluator
+{
+    private static final Logger log = LoggerFactory.getLogger( ModelEvaluator.class );
+    private static final int LATENCY_SAMPLES = 100000;
+    // Percentiles per label over the most recent samples only : 8 KB per label
+    private static final int LABEL_LATENCY_SAMPLES = 1000;
+
+    private final ImageClassifier classifier;
+    private final ImageBatchPipeline pipeline;
+    private final List<Evaluation> evaluations = Collections.synchronizedList( new ArrayList<Evaluation>() );
+    private final ThreadLocal<Evaluation> evaluation = new ThreadLocal<Evaluation>()
+    {
+        @Override
+        protected Evaluation initialValue()
+        {
+            Evaluation eval = new Evaluation( classifier.getLabels() );
+            evaluations.add( eval );
+            return eval;
+        }
+    };
+    private final Histogram latency = new Histogram( LATENCY_SAMPLES );
+    private final Histogram inference = new Histogram( LATENCY_SAMPLES );
+    private final AtomicLong evaluated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong unknown = new AtomicLong();
+    private final Histogram[] labelLatency;
+    private final AtomicLongArray labelImages;
+    private final AtomicLongArray labelCorrect;
+
+    /**
+     * Constructor
+     * @param classifier The classifier, its labels give the index of each directory name
+     * @param workers The number of decode workers
+     * @param batchSize The number of images decoded by a worker per batch
+     */
+    public ModelEvaluator( ImageClassifier classifier , int workers , int batchSize )
+    {
+        this.classifier = classifier;
+        this.pipeline = new ImageBatchPipeline( classifier.getPreprocessor(), workers, batchSize );
+        int numLabels = ( classifier.getLabels() != null ) ? classifier.getLabels().size() : 0;
+        this.labelLatency = new Histogram[numLabels];
+        for( int i = 0 ; i < numLabels ; i++ )
+        {
+            labelLatency[i] = new Histogram( LABEL_LATENCY_SAMPLES );
+        }
+        this.labelImages = new AtomicLongArray( numLabels );
+        this.labelCorrect = new AtomicLongArray( numLabels );
+    }
+
+    /**
+     * Evaluate the model on all the images of a directory tree
+     * @param root The data root directory, one sub directory per label
+     * @return The report
+     * @throws IOException if the directory can't be walked
+     */
+    public Report run( File root ) throws IOException
+    {
+        if( classifier.getLabels() == null )
+        {
+            throw new IOException( "The model has no label names, it can't be evaluated against directory names" );
+        }
+        if( !root.isDirectory() )
+        {
+            throw new IOException( "Not a directory : " + root );
+        }
+        long start = System.nanoTime();
+
+        pipeline.run( root, new ImageBatchPipeline.BatchHandler()
+        {
+            @Override
+            public void process( List<File> files )
+            {
+                evaluate( files );
+            }
+        });
+
+        Evaluation merged = new Evaluation( classifier.getLabels() );
+        synchronized( evaluations )
+        {
+            for( Evaluation eval : evaluations )
+            {
+                merged.merge( eval );
+            }
+        }
+        if( unknown.get() > 0 )
+        {
+            log.warn( unknown.get() + " images skipped : their directory is not a label of the model" );
+        }
+        long[] images = new long[labelImages.length()];
+        long[] correct = new long[labelCorrect.length()];
+        for( int i = 0 ; i < images.length ; i++ )
+        {
+            images[i] = labelImages.get( i );
+            correct[i] = labelCorrect.get( i );
+        }
+        return new Report( merged, evaluated.get(), failed.get() + pipeline.getFailed() + unknown.get(), System.nanoTime() - start,
+                latency, inference, classifier.getLabels(), images, correct, labelLatency );
+    }
+
+    private void evaluate( List<File> files )
+    {
+        LabelledLoader loader = new LabelledLoader();
+        List<File> decoded = new ArrayList<>( files.size() );
+        INDArray batch = pipeline.decode( files, loader, decoded );
+        if( batch == null )
+        {
+            return;
+        }
+        try
+        {
+            long start = System.nanoTime();
+            INDArray output = classifier.output( batch );
+            long end = System.nanoTime();
+            inference.record( end - start );
+
+            INDArray predicted = Nd4j.argMax( output, 1 );
+            INDArray expected = Nd4j.zeros( decoded.size(), output.columns() );
+            for( int i = 0 ; i < decoded.size() ; i++ )
+            {
+                int label = loader.classes.get( i );
+                long imageLatency = end - loader.starts.get( i );
+                expected.putScalar( i, label, 1.0 );
+                latency.record( imageLatency );
+                labelLatency[label].record( imageLatency );
+                labelImages.incrementAndGet( label );
+                if( predicted.getInt( i ) == label )
+                {
+                    labelCorrect.incrementAndGet( label );
+                }
+            }
+            evaluation.get().eval( expected, output );
+            evaluated.addAndGet( decoded.size() );
+        }
+        catch( RuntimeException e )
+        {
+            log.error( "Batch of " + decoded.size() + " images failed : " + e.getMessage() );
+            failed.addAndGet( decoded.size() );
+        }
+    }
+
+    /**
+     * Evaluation statistics, throughput and latency of a run
+     */
+    public static class Report
+    {
+        private final Evaluation evaluation;
+        private final long images;
+        private final long skipped;
+        private final long nanos;
+        private final Histogram latency;
+        private final Histogram inference;
+        private final List<String> labels;
+        private final long[] labelImages;
+        private final long[] labelCorrect;
+        private final Histogram[] labelLatency;
+
+        private Report( Evaluation evaluation , long images , long skipped , long nanos , Histogram latency , Histogram inference ,
+                List<String> labels , long[] labelImages , long[] labelCorrect , Histogram[] labelLatency )
+        {
+            this.evaluation = evaluation;
+            this.images = images;
+            this.skipped = skipped;
+            this.nanos = nanos;
+            this.latency = latency;
+            this.inference = inference;
+            this.labels = labels;
+            this.labelImages = labelImages;
+            this.labelCorrect = labelCorrect;
+            this.labelLatency = labelLatency;
+        }
+
+        /**
+         * @return the merged evaluation
+         */
+        public Evaluation getEvaluation()
+        {
+            return evaluation;
+        }
+
+        /**
+         * @return the images evaluated per second
+         */
+        public double getThroughput()
+        {
+            return ( nanos == 0 ) ? 0.0 : images * 1e9 / nanos;
+        }
+
+        /**
+         * @param label The label index
+         * @return the share of the images of this label classified as this label
+         */
+        public double getAccuracy( int label )
+        {
+            return ( labelImages[label] == 0 ) ? 0.0 : (double) labelCorrect[label] / labelImages[label];
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append( evaluation.stats( true )).append( "\n" );
+            sb.append( String.format( Locale.US, "Evaluated %d images in %.1fs : %.1f images/s, %d skipped%n", images, nanos / 1e9, getThroughput(), skipped ));
+            sb.append( "Per image latency : " ).append( latency ).append( "\n" );
+            sb.append( "Per batch inference : " ).append( inference ).append( "\n" );
+            sb.append( String.format( Locale.US, "%-24s %8s %9s %10s %10s %10s%n", "label", "images", "accuracy", "mean ms", "p50 ms", "p99 ms" ));
+            for( int i = 0 ; i < labels.size() ; i++ )
+            {
+                if( labelImages[i] == 0 )
+                {
+                    continue;
+                }
+                Histogram h = labelLatency[i];
+                sb.append( String.format( Locale.US, "%-24s %8d %8.2f%% %10.3f %10.3f %10.3f%n", labels.get( i ), labelImages[i], getAccuracy( i ) * 100,
+                        h.getMeanMillis(), h.getPercentileMillis( 50 ), h.getPercentileMillis( 99 )));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Loads the images whose directory is a label of the model, recording the
+     * label and the start of the decoding of each one
+     */
+    private class LabelledLoader implements ImageBatchPipeline.ImageLoader
+    {
+        private final ImagePreprocessor preprocessor = classifier.getPreprocessor();
+        private final List<String> labels = classifier.getLabels();
+        private final List<Integer> classes = new ArrayList<>();
+        private final List<Long> starts = new ArrayList<>();
+
+        @Override
+        public boolean load( File file , INDArray batch , int slot ) throws IOException
+        {
+            int label = labels.indexOf( DatasetPacker.label( file.toURI() ));
+            if( label < 0 )
+            {
+                unknown.incrementAndGet();
+                return false;
+            }
+            long start = System.nanoTime();
+            preprocessor.load( file, batch, slot );
+            classes.add( label );
+            starts.add( start );
+            return true;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ModelHandle
+ *
+ * Reference counted classifier. The reloader holds one reference while the
+ * classifier is the current one, and each request holds one while it runs.
+ * Once retired by a reload, the classifier is closed when the last request
+ * using it releases it, so in-flight batches finish on the model they
+ * started with. The cached predictions of a retired version can then be
+ * dropped, none being added any more. Closing drains the batching engine of the classifier, so it
+ * runs on a background thread rather than on the request thread that
+ * released the last reference.
+ */
+public class ModelHandle
+{
+    private static final Logger log = LoggerFactory.getLogger( ModelHandle.class );
+    private static final ExecutorService closer = Executors.newSingleThreadExecutor( new ThreadFactory()
+    {
+        @Override
+        public Thread newThread( Runnable r )
+        {
+            Thread thread = new Thread( r, "model-closer" );
+            thread.setDaemon( true );
+            return thread;
+        }
+    });
+
+    private final ImageClassifier classifier;
+    // The reference of the reloader, until retired
+    private final AtomicInteger references = new AtomicInteger( 1 );
+    private volatile boolean dropCached;
+
+    /**
+     * Constructor
+     * @param classifier The classifier
+     */
+    public ModelHandle( ImageClassifier classifier )
+    {
+        this.classifier = classifier;
+    }
+
+    /**
+     * Take a reference for a request
+     * @return false if the classifier is already closed
+     */
+    public boolean acquire()
+    {
+        while( true )
+        {
+            int count = references.get();
+            if( count == 0 )
+            {
+                return false;
+            }
+            if( references.compareAndSet( count, count + 1 ))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release a reference taken by acquire, or the reloader one by retire
+     */
+    public void release()
+    {
+        if( references.decrementAndGet() == 0 )
+        {
+            close();
+        }
+    }
+
+    /**
+     * Release the reloader reference : the classifier is closed as soon as no request uses it
+     */
+    public void retire()
+    {
+        retire( false );
+    }
+
+    /**
+     * Release the reloader reference : the classifier is closed as soon as no request uses it
+     * @param dropCached true to drop the cached predictions of its version once closed
+     */
+    public void retire( boolean dropCached )
+    {
+        this.dropCached = dropCached;
+        release();
+    }
+
+    private void close()
+    {
+        closer.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                classifier.close();
+                PredictionCache cache = classifier.getCache();
+                if( dropCached && cache != null )
+                {
+                    cache.invalidate( classifier.getVersion() );
+                }
+                log.info( "Model " + classifier.getVersion() + " closed" );
+            }
+        });
+    }
+
+    /**
+     * @return the classifier, valid between acquire and release
+     */
+    public ImageClassifier getClassifier()
+    {
+        return classifier;
+    }
+
+    /**
+     * @return the number of references held
+     */
+    public int getReferences()
+    {
+        return references.get();
+    }
+}
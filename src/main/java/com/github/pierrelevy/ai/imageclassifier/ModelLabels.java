@@ -0,0 +1,123 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ModelLabels
+ *
+ * Stores the label names, in the order of the network outputs, as an entry of
+ * a model file written by ModelSerializer (a zip file), so that predictions
+ * are named with the labels the network was trained with whatever the
+ * content of the data directory at prediction time.
+ */
+public class ModelLabels
+{
+    private static final Logger log = LoggerFactory.getLogger( ModelLabels.class );
+    static final String ENTRY = "labels.txt";
+    private static final String TMP_EXTENSION = ".tmp";
+
+    /**
+     * Store the labels in a model file, replacing the stored ones if any
+     * @param modelFile The model file
+     * @param labels The label names, one per network output
+     * @throws IOException if the model file can't be updated
+     */
+    public static void save( File modelFile , List<String> labels ) throws IOException
+    {
+        File tmp = new File( modelFile.getPath() + TMP_EXTENSION );
+        try( ZipFile zip = new ZipFile( modelFile ); ZipOutputStream zos = new ZipOutputStream( new FileOutputStream( tmp )))
+        {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while( entries.hasMoreElements() )
+            {
+                ZipEntry entry = entries.nextElement();
+                if( entry.getName().equals( ENTRY ))
+                {
+                    continue;
+                }
+                zos.putNextEntry( new ZipEntry( entry.getName() ));
+                try( InputStream is = zip.getInputStream( entry ))
+                {
+                    IOUtils.copy( is, zos );
+                }
+                zos.closeEntry();
+            }
+            StringBuilder sb = new StringBuilder();
+            for( String label : labels )
+            {
+                sb.append( label ).append( '\n' );
+            }
+            zos.putNextEntry( new ZipEntry( ENTRY ));
+            zos.write( sb.toString().getBytes( StandardCharsets.UTF_8 ));
+            zos.closeEntry();
+        }
+        Files.move( tmp.toPath(), modelFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    /**
+     * Restore the labels stored in a model file
+     * @param modelFile The model file
+     * @return The label names, or null for models saved before the labels were stored
+     */
+    public static List<String> restore( File modelFile )
+    {
+        try( ZipFile zip = new ZipFile( modelFile ))
+        {
+            ZipEntry entry = zip.getEntry( ENTRY );
+            if( entry != null )
+            {
+                List<String> labels = new ArrayList<>();
+                try( BufferedReader reader = new BufferedReader( new InputStreamReader( zip.getInputStream( entry ), StandardCharsets.UTF_8 )))
+                {
+                    String line;
+                    while( ( line = reader.readLine() ) != null )
+                    {
+                        if( !line.isEmpty() )
+                        {
+                            labels.add( line );
+                        }
+                    }
+                }
+                return labels;
+            }
+        }
+        catch( IOException e )
+        {
+            log.warn( "Unable to restore the labels of " + modelFile + " : " + e.getMessage() );
+        }
+        log.warn( "No labels stored in " + modelFile + ", predictions are named by label index" );
+        return null;
+    }
+}
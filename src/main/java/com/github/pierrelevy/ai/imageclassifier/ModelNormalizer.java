@@ -0,0 +1,97 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ModelNormalizer
+ *
+ * Creates the input normalizer, fits it at most once at training time and
+ * stores it in the model file, so that training, evaluation and prediction
+ * always use the same normalization.
+ */
+public class ModelNormalizer
+{
+    private static final Logger log = LoggerFactory.getLogger( ModelNormalizer.class );
+
+    /**
+     * @return the normalizer used for new models : pixels scaled from [0,255] to [0,1]
+     */
+    public static DataNormalization create()
+    {
+        return new ImagePreProcessingScaler(0, 1);
+    }
+
+    /**
+     * Fit the normalizer statistics if it needs any. Fixed range normalizers
+     * such as ImagePreProcessingScaler don't, so no scan of the data is done.
+     * @param normalizer The normalizer
+     * @param iterator The training data
+     */
+    public static void fit( DataNormalization normalizer , DataSetIterator iterator )
+    {
+        if( normalizer instanceof ImagePreProcessingScaler )
+        {
+            return;
+        }
+        log.info( "Fitting normalizer " + normalizer.getClass().getSimpleName() );
+        normalizer.fit( iterator );
+        iterator.reset();
+    }
+
+    /**
+     * Store the normalizer in a model file written by ModelSerializer
+     * @param modelFile The model file
+     * @param normalizer The normalizer
+     * @throws IOException if the model file can't be updated
+     */
+    public static void save( File modelFile , DataNormalization normalizer ) throws IOException
+    {
+        ModelSerializer.addNormalizerToModel( modelFile, normalizer );
+    }
+
+    /**
+     * Restore the normalizer stored in a model file. Models saved before the
+     * normalizer was stored get the default one.
+     * @param modelFile The model file
+     * @return The normalizer
+     */
+    public static DataNormalization restore( File modelFile )
+    {
+        try
+        {
+            DataNormalization normalizer = ModelSerializer.restoreNormalizerFromFile( modelFile );
+            if( normalizer != null )
+            {
+                return normalizer;
+            }
+        }
+        catch( Exception e )
+        {
+            log.warn( "Unable to restore the normalizer of " + modelFile + " : " + e.getMessage() );
+        }
+        log.warn( "No normalizer stored in " + modelFile + ", using the default one" );
+        return create();
+    }
+}
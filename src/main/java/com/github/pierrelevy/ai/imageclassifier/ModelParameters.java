@@ -26,6 +26,10 @@ public class ModelParameters
     private int channels;
     private int iterations;
     private long seed;
+    private String network;
+    private double learningRate;
+    private double l2;
+    private int denseSize;
 
     /**
      * @return the height
@@ -107,4 +111,86 @@ public class ModelParameters
     {
         this.iterations = iterations;
     }
+
+    /**
+     * @return the network architecture name (see NetworkRegistry)
+     */
+    public String getNetwork()
+    {
+        return network;
+    }
+
+    /**
+     * @param network the network to set
+     */
+    public void setNetwork(String network)
+    {
+        this.network = network;
+    }
+
+    /**
+     * @return the learningRate, 0 for the architecture default
+     */
+    public double getLearningRate()
+    {
+        return learningRate;
+    }
+
+    /**
+     * @param learningRate the learningRate to set
+     */
+    public void setLearningRate(double learningRate)
+    {
+        this.learningRate = learningRate;
+    }
+
+    /**
+     * @return the l2 regularization, 0 for the architecture default
+     */
+    public double getL2()
+    {
+        return l2;
+    }
+
+    /**
+     * @param l2 the l2 to set
+     */
+    public void setL2(double l2)
+    {
+        this.l2 = l2;
+    }
+
+    /**
+     * @return the denseSize, units of the dense layers, 0 for the architecture default
+     */
+    public int getDenseSize()
+    {
+        return denseSize;
+    }
+
+    /**
+     * @param denseSize the denseSize to set
+     */
+    public void setDenseSize(int denseSize)
+    {
+        this.denseSize = denseSize;
+    }
+
+    /**
+     * @return a copy of these parameters
+     */
+    public ModelParameters copy()
+    {
+        ModelParameters copy = new ModelParameters();
+        copy.height = height;
+        copy.width = width;
+        copy.channels = channels;
+        copy.iterations = iterations;
+        copy.seed = seed;
+        copy.network = network;
+        copy.learningRate = learningRate;
+        copy.l2 = l2;
+        copy.denseSize = denseSize;
+        return copy;
+    }
 }
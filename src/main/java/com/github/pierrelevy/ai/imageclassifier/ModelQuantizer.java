@@ -0,0 +1,237 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import org.datavec.api.split.FileSplit;
+import org.datavec.image.loader.NativeImageLoader;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ModelQuantizer
+ *
+ * Exports a QuantizedModel and reports its accuracy against the FP32 model on
+ * a calibration sample of the training images. For int8, the sample is also
+ * used to find the weight matrices too sensitive to be stored in int8 :
+ * a matrix whose quantization alone changes more than the tolerated share of
+ * the top-1 predictions is stored in FP16 instead.
+ */
+public class ModelQuantizer
+{
+    private static final Logger log = LoggerFactory.getLogger( ModelQuantizer.class );
+    private static final int BATCH_SIZE = 32;
+
+    private final MultiLayerNetwork network;
+    private final DataNormalization normalizer;
+    private final List<String> names;
+    private final INDArray features;
+    private final int[] labels;
+    private final INDArray reference;
+
+    /**
+     * Constructor
+     * @param network The FP32 network
+     * @param normalizer The normalizer of the network
+     * @param names The label names stored with the network, or null to take them from the data directory
+     * @param parameters The model parameters giving the image size
+     * @param dataPath The training data directory, one sub directory per label
+     * @param samples The number of calibration images
+     * @param seed The seed used to sample the images
+     * @throws IOException if no image can be read
+     */
+    public ModelQuantizer( MultiLayerNetwork network , DataNormalization normalizer , List<String> names , ModelParameters parameters ,
+            String dataPath , int samples , long seed ) throws IOException
+    {
+        this.network = network;
+        this.normalizer = normalizer;
+
+        FileSplit split = new FileSplit( new File( dataPath ), NativeImageLoader.ALLOWED_FORMATS, new Random( seed ));
+        this.names = ( names != null ) ? names : DatasetPacker.labels( split );
+        List<URI> locations = new ArrayList<>( Arrays.asList( split.locations() ));
+        Collections.shuffle( locations, new Random( seed ));
+
+        NativeImageLoader loader = new NativeImageLoader( parameters.getHeight(), parameters.getWidth(), parameters.getChannels() );
+        List<INDArray> images = new ArrayList<>();
+        List<Integer> indices = new ArrayList<>();
+        for( URI location : locations )
+        {
+            if( images.size() >= samples )
+            {
+                break;
+            }
+            try
+            {
+                images.add( loader.asMatrix( new File( location )));
+                indices.add( this.names.indexOf( DatasetPacker.label( location )));
+            }
+            catch( IOException | RuntimeException e )
+            {
+                log.warn( "Skipping " + location + " : " + e.getMessage() );
+            }
+        }
+        if( images.isEmpty() )
+        {
+            throw new IOException( "No calibration image in " + dataPath );
+        }
+        features = Nd4j.concat( 0, images.toArray( new INDArray[images.size()] ));
+        normalizer.transform( features );
+        labels = new int[indices.size()];
+        for( int i = 0 ; i < labels.length ; i++ )
+        {
+            labels[i] = indices.get( i );
+        }
+        reference = output( network );
+        log.info( "Calibration sample : " + labels.length + " images" );
+    }
+
+    private INDArray output( MultiLayerNetwork net )
+    {
+        List<INDArray> outputs = new ArrayList<>();
+        int count = features.size( 0 );
+        for( int first = 0 ; first < count ; first += BATCH_SIZE )
+        {
+            int last = Math.min( first + BATCH_SIZE, count );
+            INDArray batch = features.get( NDArrayIndex.interval( first, last ), NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.all() );
+            outputs.add( net.output( batch, false ));
+        }
+        return Nd4j.concat( 0, outputs.toArray( new INDArray[outputs.size()] ));
+    }
+
+    /**
+     * Choose the precision of each parameter
+     * @param precision The requested weights precision
+     * @param tolerance The max share of top-1 predictions a single int8 matrix may change
+     * @return The precision by parameter key
+     */
+    public Map<String, QuantizedModel.Precision> calibrate( QuantizedModel.Precision precision , double tolerance )
+    {
+        Map<String, QuantizedModel.Precision> precisions = QuantizedModel.precisions( network, precision );
+        if( precision != QuantizedModel.Precision.INT8 )
+        {
+            return precisions;
+        }
+        for( Map.Entry<String, QuantizedModel.Precision> entry : precisions.entrySet() )
+        {
+            if( entry.getValue() != QuantizedModel.Precision.INT8 )
+            {
+                continue;
+            }
+            MultiLayerNetwork copy = network.clone();
+            copy.setParam( entry.getKey(), QuantizedModel.roundTrip( network.getParam( entry.getKey() ), QuantizedModel.Precision.INT8 ));
+            Report report = compare( copy );
+            if( 1.0 - report.agreement > tolerance )
+            {
+                log.info( "Parameter " + entry.getKey() + " kept in FP16, int8 changes " + percent( 1.0 - report.agreement ) + " of the predictions" );
+                entry.setValue( QuantizedModel.Precision.FP16 );
+            }
+        }
+        return precisions;
+    }
+
+    /**
+     * Write the quantized model and compare it with the FP32 model
+     * @param file The quantized model file
+     * @param precisions The precision by parameter key
+     * @return The accuracy report
+     * @throws IOException if the model can't be written or read back
+     */
+    public Report export( File file , Map<String, QuantizedModel.Precision> precisions ) throws IOException
+    {
+        QuantizedModel.write( file, network, normalizer, names, precisions );
+        // Compare the model as it will be loaded
+        return compare( QuantizedModel.read( file ).getNetwork() );
+    }
+
+    private Report compare( MultiLayerNetwork quantized )
+    {
+        INDArray output = output( quantized );
+        Report report = new Report();
+        report.samples = labels.length;
+        double totalDiff = 0;
+        int agree = 0;
+        int correctReference = 0;
+        int correctQuantized = 0;
+        for( int i = 0 ; i < labels.length ; i++ )
+        {
+            INDArray expected = reference.getRow( i );
+            INDArray actual = output.getRow( i );
+            int expectedTop = Nd4j.argMax( expected, 1 ).getInt( 0 );
+            int actualTop = Nd4j.argMax( actual, 1 ).getInt( 0 );
+            agree += ( expectedTop == actualTop ) ? 1 : 0;
+            correctReference += ( expectedTop == labels[i] ) ? 1 : 0;
+            correctQuantized += ( actualTop == labels[i] ) ? 1 : 0;
+            INDArray diff = Transforms.abs( actual.sub( expected ));
+            totalDiff += diff.sumNumber().doubleValue() / diff.length();
+            report.maxDiff = Math.max( report.maxDiff, diff.maxNumber().doubleValue() );
+        }
+        report.agreement = (double) agree / labels.length;
+        report.referenceAccuracy = (double) correctReference / labels.length;
+        report.accuracy = (double) correctQuantized / labels.length;
+        report.meanDiff = totalDiff / labels.length;
+        return report;
+    }
+
+    private static String percent( double value )
+    {
+        return String.format( Locale.US, "%.2f%%", value * 100 );
+    }
+
+    /**
+     * Accuracy of the quantized model against the FP32 model on the calibration sample
+     */
+    public static class Report
+    {
+        int samples;
+        double referenceAccuracy;
+        double accuracy;
+        double agreement;
+        double meanDiff;
+        double maxDiff;
+
+        /**
+         * @return the accuracy lost by quantization (negative if the quantized model does better)
+         */
+        public double getAccuracyDelta()
+        {
+            return referenceAccuracy - accuracy;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( Locale.US,
+                    "%d images : FP32 accuracy %s, quantized accuracy %s (delta %s), top-1 agreement %s, probability difference mean %.5f max %.5f",
+                    samples, percent( referenceAccuracy ), percent( accuracy ), percent( getAccuracyDelta() ),
+                    percent( agreement ), meanDiff, maxDiff );
+        }
+    }
+}
@@ -0,0 +1,283 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ModelReloader
+ *
+ * Holds the current classifier of a long-lived prediction process and
+ * replaces it when the model file changes, either detected by polling the
+ * file or requested explicitly. The new model is loaded and warmed up on the
+ * watcher thread while requests keep being served by the current one,
+ * then swapped in atomically. The previous model is closed once the
+ * requests that acquired it are done (see ModelHandle). The prediction
+ * cache, if any, is carried over : the entries of the previous model version
+ * are dropped once the previous model is closed.
+ */
+public class ModelReloader
+{
+    private static final Logger log = LoggerFactory.getLogger( ModelReloader.class );
+
+    private final String modelPath;
+    private final ModelParameters modelParameters;
+    private final ServerParameters serverParameters;
+    private final AtomicReference<ModelHandle> current;
+    private final AtomicInteger reloads = new AtomicInteger();
+    private final AtomicBoolean requested = new AtomicBoolean();
+    private ScheduledExecutorService watcher;
+    private boolean polling;
+    private String stamp;
+    private String pending;
+
+    /**
+     * Constructor for a classifier that is never reloaded
+     * @param classifier The classifier
+     */
+    public ModelReloader( ImageClassifier classifier )
+    {
+        this( classifier , null , null , null );
+    }
+
+    /**
+     * Constructor
+     * @param classifier The classifier loaded from the model file
+     * @param modelPath The model file
+     * @param modelParameters The model parameters
+     * @param serverParameters The server parameters, used to load and warm up the new models
+     */
+    public ModelReloader( ImageClassifier classifier , String modelPath , ModelParameters modelParameters , ServerParameters serverParameters )
+    {
+        this.current = new AtomicReference<>( new ModelHandle( classifier ));
+        this.modelPath = modelPath;
+        this.modelParameters = modelParameters;
+        this.serverParameters = serverParameters;
+        this.stamp = ( modelPath != null ) ? stamp( new File( modelPath )) : null;
+    }
+
+    /**
+     * Take a reference on the current classifier, to be released when the request is done
+     * @return The handle of the current classifier
+     */
+    public ModelHandle acquire()
+    {
+        while( true )
+        {
+            ModelHandle handle = current.get();
+            if( handle.acquire() )
+            {
+                return handle;
+            }
+            // Retired and closed in between : the next one is current then, unless the reloader is closed
+            if( handle == current.get() )
+            {
+                throw new IllegalStateException( "The model is closed" );
+            }
+        }
+    }
+
+    /**
+     * @return the current classifier, for statistics only : it may be closed by a reload at any time
+     */
+    public ImageClassifier getClassifier()
+    {
+        return current.get().getClassifier();
+    }
+
+    /**
+     * Poll the model file and reload it when it has changed. The file must be
+     * unchanged between two polls before it is loaded, so a model still being
+     * written by the trainer is not picked up.
+     * @param intervalSeconds The polling interval
+     */
+    public synchronized void watch( int intervalSeconds )
+    {
+        if( modelPath == null || intervalSeconds <= 0 || polling )
+        {
+            return;
+        }
+        watcher().scheduleWithFixedDelay( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                poll();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS );
+        polling = true;
+        log.info( "Watching " + modelPath + " every " + intervalSeconds + "s" );
+    }
+
+    private synchronized ScheduledExecutorService watcher()
+    {
+        if( watcher == null )
+        {
+            watcher = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( Runnable r )
+                {
+                    Thread thread = new Thread( r, "model-watcher" );
+                    thread.setDaemon( true );
+                    // Loading and warming up must not slow down the request threads
+                    thread.setPriority( Thread.MIN_PRIORITY );
+                    return thread;
+                }
+            });
+        }
+        return watcher;
+    }
+
+    /**
+     * Reload the model file on the watcher thread. Requests made while a
+     * reload is queued are merged into it.
+     * @return false if a reload was already queued
+     */
+    public boolean requestReload()
+    {
+        if( modelPath == null )
+        {
+            throw new IllegalStateException( "No model file to reload from" );
+        }
+        if( !requested.compareAndSet( false, true ))
+        {
+            return false;
+        }
+        watcher().execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                requested.set( false );
+                try
+                {
+                    reload();
+                }
+                catch( IOException | RuntimeException e )
+                {
+                    log.error( "Unable to reload " + modelPath + " : " + e.getMessage() );
+                }
+            }
+        });
+        return true;
+    }
+
+    private void poll()
+    {
+        try
+        {
+            String now = stamp( new File( modelPath ));
+            synchronized( this )
+            {
+                if( now == null || now.equals( stamp ))
+                {
+                    pending = null;
+                    return;
+                }
+                if( !now.equals( pending ))
+                {
+                    // Changed since the last poll : wait for the writer to be done
+                    pending = now;
+                    return;
+                }
+            }
+            reload();
+        }
+        catch( IOException | RuntimeException e )
+        {
+            log.error( "Unable to reload " + modelPath + " : " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Load the model file, warm it up and swap it in. Requests are served by
+     * the current model meanwhile.
+     * @return The classifier now current
+     * @throws IOException if the model can't be read, the current model is kept then
+     */
+    public synchronized ImageClassifier reload() throws IOException
+    {
+        if( modelPath == null )
+        {
+            throw new IllegalStateException( "No model file to reload from" );
+        }
+        long start = System.currentTimeMillis();
+        File file = new File( modelPath );
+        String loaded = stamp( file );
+        ImageClassifier classifier = ImageClassifier.load( modelPath, modelParameters, serverParameters );
+        ModelHandle handle;
+        try
+        {
+            classifier.setCache( getClassifier().getCache() );
+            classifier.warmup( serverParameters.getWarmup() );
+            handle = new ModelHandle( classifier );
+        }
+        catch( RuntimeException | Error e )
+        {
+            // Not swapped in : its engine threads would be left running
+            classifier.close();
+            throw e;
+        }
+
+        ModelHandle previous = current.getAndSet( handle );
+        // The same file loaded again keeps the version, and its cached predictions stay valid
+        previous.retire( !previous.getClassifier().getVersion().equals( classifier.getVersion() ));
+        stamp = loaded;
+        pending = null;
+        reloads.incrementAndGet();
+        log.info( "Model " + classifier.getVersion() + " loaded and swapped in " + ( System.currentTimeMillis() - start ) + "ms, "
+                + ( previous.getReferences() ) + " requests still running on the previous model" );
+        return classifier;
+    }
+
+    /**
+     * @return the number of reloads done
+     */
+    public int getReloads()
+    {
+        return reloads.get();
+    }
+
+    /**
+     * Stop watching and close the current classifier once its requests are done
+     */
+    public synchronized void close()
+    {
+        if( watcher != null )
+        {
+            watcher.shutdownNow();
+            watcher = null;
+            polling = false;
+        }
+        current.get().retire();
+    }
+
+    private static String stamp( File file )
+    {
+        return file.isFile() ? file.length() + ":" + file.lastModified() : null;
+    }
+}
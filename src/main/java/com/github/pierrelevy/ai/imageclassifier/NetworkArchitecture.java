@@ -0,0 +1,46 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+/**
+ * NetworkArchitecture
+ *
+ * A network architecture that can be selected by name in model.properties.
+ * Implementations registered in NetworkRegistry, or given by class name,
+ * need a public no-argument constructor.
+ */
+public interface NetworkArchitecture
+{
+    /**
+     * @return the name used to select the architecture
+     */
+    String getName();
+
+    /**
+     * @return a short description
+     */
+    String getDescription();
+
+    /**
+     * Build a new, not initialized, network
+     * @param parameters The model parameters giving the input size
+     * @param numLabels The number of labels
+     * @return The network
+     */
+    MultiLayerNetwork build( ModelParameters parameters , int numLabels );
+}
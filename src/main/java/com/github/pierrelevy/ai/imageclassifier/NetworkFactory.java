@@ -25,19 +25,23 @@ import org.deeplearning4j.nn.conf.distribution.Distribution;
 import org.deeplearning4j.nn.conf.distribution.GaussianDistribution;
 import org.deeplearning4j.nn.conf.distribution.NormalDistribution;
 import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.BatchNormalization;
 import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
 import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.GlobalPoolingLayer;
 import org.deeplearning4j.nn.conf.layers.LocalResponseNormalization;
 import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.PoolingType;
 import org.deeplearning4j.nn.conf.layers.SubsamplingLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 
-/**
 /**
  * NetworkFactory
+ *
+ * Builders of the architectures registered in NetworkRegistry
  */
 public class NetworkFactory 
 {
@@ -46,20 +50,36 @@ public class NetworkFactory
     
     public static MultiLayerNetwork getNetwork( int nNetwork , ModelParameters parameters , int numLabels )
     {
-        MultiLayerNetwork net;
-        switch( nNetwork )
+        return getNetwork( ( nNetwork == NETWORK_LENET ) ? NetworkRegistry.LENET : NetworkRegistry.ALEXNET , parameters , numLabels );
+    }
+
+    /**
+     * Build a network
+     * @param name The architecture name, see NetworkRegistry
+     * @param parameters The model parameters
+     * @param numLabels The number of labels
+     * @return The network, not initialized
+     */
+    public static MultiLayerNetwork getNetwork( String name , ModelParameters parameters , int numLabels )
+    {
+        return NetworkRegistry.get( name ).build( parameters, numLabels );
+    }
+
+    static MultiLayerNetwork build( String name , ModelParameters parameters , int numLabels )
+    {
+        switch( name )
         {
-            case NETWORK_LENET: 
-                net = lenetModel( parameters, numLabels );
-                break;
-                
-            case NETWORK_AXELNET:
+            case NetworkRegistry.LENET:
+                return lenetModel( parameters, numLabels );
+            case NetworkRegistry.ALEXNET:
+                return alexnetModel( parameters, numLabels );
+            case NetworkRegistry.ALEXNET_GAP:
+                return alexnetGapModel( parameters, numLabels );
+            case NetworkRegistry.COMPACT:
+                return compactModel( parameters, numLabels );
             default:
-                net = alexnetModel( parameters, numLabels );
-                break;
+                throw new IllegalArgumentException( "No builder for " + name );
         }
-        
-        return net;
     }
     
 
@@ -71,9 +91,9 @@ public class NetworkFactory
         MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
             .seed( parameters.getSeed() )
             .iterations(parameters.getIterations() )
-            .regularization(false).l2(0.005) // tried 0.0001, 0.0005
+            .regularization(false).l2(orDefault(parameters.getL2(), 0.005)) // tried 0.0001, 0.0005, see "tune"
             .activation(Activation.RELU)
-            .learningRate(0.0001) // tried 0.00001, 0.00005, 0.000001
+            .learningRate(orDefault(parameters.getLearningRate(), 0.0001)) // tried 0.00001, 0.00005, 0.000001, see "tune"
             .weightInit(WeightInit.XAVIER)
             .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
             .updater(Updater.RMSPROP).momentum(0.9)
@@ -82,7 +102,7 @@ public class NetworkFactory
             .layer(1, maxPool("maxpool1", new int[]{2,2}))
             .layer(2, conv5x5("cnn2", 100, new int[]{5, 5}, new int[]{1, 1}, 0))
             .layer(3, maxPool("maxool2", new int[]{2,2}))
-            .layer(4, new DenseLayer.Builder().nOut(500).build())
+            .layer(4, new DenseLayer.Builder().nOut(orDefault(parameters.getDenseSize(), 500)).build())
             .layer(5, new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
                 .nOut( numLabels )
                 .activation(Activation.SOFTMAX)
@@ -107,8 +127,54 @@ public class NetworkFactory
 
         double nonZeroBias = 1;
         double dropOut = 0.5;
+        int denseSize = orDefault(parameters.getDenseSize(), 4096);
 
-        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+        MultiLayerConfiguration conf = alexnetConvolutions( parameters )
+            .layer(9, maxPool("maxpool3", new int[]{3,3}))
+            .layer(10, fullyConnected("ffn1", denseSize, nonZeroBias, dropOut, new GaussianDistribution(0, 0.005)))
+            .layer(11, fullyConnected("ffn2", denseSize, nonZeroBias, dropOut, new GaussianDistribution(0, 0.005)))
+            .layer(12, new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
+                .name("output")
+                .nOut( numLabels )
+                .activation(Activation.SOFTMAX)
+                .build())
+            .backprop(true)
+            .pretrain(false)
+            .setInputType(InputType.convolutional( parameters.getHeight(), parameters.getWidth(), parameters.getChannels() ))
+            .build();
+        
+        return new MultiLayerNetwork(conf);
+
+    }
+
+    private static MultiLayerNetwork alexnetGapModel( ModelParameters parameters, int numLabels )
+    {
+        /**
+         * AlexNet convolutions with the two 4096 dense layers, which hold most
+         * of the parameters, replaced by a global average pooling of cnn5
+         * (as in Network In Network, https://arxiv.org/abs/1312.4400)
+         **/
+        MultiLayerConfiguration conf = alexnetConvolutions( parameters )
+            .layer(9, new GlobalPoolingLayer.Builder(PoolingType.AVG).name("gap").build())
+            .layer(10, new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
+                .name("output")
+                .nOut( numLabels )
+                .activation(Activation.SOFTMAX)
+                .build())
+            .backprop(true)
+            .pretrain(false)
+            .setInputType(InputType.convolutional( parameters.getHeight(), parameters.getWidth(), parameters.getChannels() ))
+            .build();
+
+        return new MultiLayerNetwork(conf);
+    }
+
+    private static NeuralNetConfiguration.ListBuilder alexnetConvolutions( ModelParameters parameters )
+    {
+        double nonZeroBias = 1;
+        double learningRate = orDefault(parameters.getLearningRate(), 1e-2);
+
+        return new NeuralNetConfiguration.Builder()
             .seed( parameters.getSeed() )
             .weightInit(WeightInit.DISTRIBUTION)
             .dist(new NormalDistribution(0.0, 0.01))
@@ -117,13 +183,13 @@ public class NetworkFactory
             .iterations( parameters.getIterations() )
             .gradientNormalization(GradientNormalization.RenormalizeL2PerLayer) // normalize to prevent vanishing or exploding gradients
             .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
-            .learningRate(1e-2)
-            .biasLearningRate(1e-2*2)
+            .learningRate(learningRate)
+            .biasLearningRate(learningRate*2)
             .learningRateDecayPolicy(LearningRatePolicy.Step)
             .lrPolicyDecayRate(0.1)
             .lrPolicySteps(100000)
             .regularization(true)
-            .l2(5 * 1e-4)
+            .l2(orDefault(parameters.getL2(), 5 * 1e-4))
             .momentum(0.9)
             .miniBatch(false)
             .list()
@@ -135,11 +201,48 @@ public class NetworkFactory
             .layer(5, maxPool("maxpool2", new int[]{3,3}))
             .layer(6,conv3x3("cnn3", 384, 0))
             .layer(7,conv3x3("cnn4", 384, nonZeroBias))
-            .layer(8,conv3x3("cnn5", 256, nonZeroBias))
-            .layer(9, maxPool("maxpool3", new int[]{3,3}))
-            .layer(10, fullyConnected("ffn1", 4096, nonZeroBias, dropOut, new GaussianDistribution(0, 0.005)))
-            .layer(11, fullyConnected("ffn2", 4096, nonZeroBias, dropOut, new GaussianDistribution(0, 0.005)))
-            .layer(12, new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
+            .layer(8,conv3x3("cnn5", 256, nonZeroBias));
+    }
+
+    private static MultiLayerNetwork compactModel( ModelParameters parameters, int numLabels )
+    {
+        /**
+         * MobileNet style network (https://arxiv.org/abs/1704.04861) : each
+         * block is a narrow 3x3 convolution, strided to downsample, followed by
+         * a 1x1 pointwise convolution widening the channels, with batch
+         * normalization, and a global average pooling instead of dense layers.
+         * The 3x3 convolutions are full ones, depthwise convolutions are not
+         * available in this DL4J version, so they are kept at half width.
+         **/
+        int[] widths = { 64, 128, 128, 256, 256 };
+        int[] strides = { 2, 2, 1, 2, 1 };
+
+        NeuralNetConfiguration.ListBuilder builder = new NeuralNetConfiguration.Builder()
+            .seed( parameters.getSeed() )
+            .iterations( parameters.getIterations() )
+            .activation(Activation.RELU)
+            .weightInit(WeightInit.RELU)
+            .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
+            .updater(Updater.NESTEROVS).momentum(0.9)
+            .learningRate(orDefault(parameters.getLearningRate(), 1e-2))
+            .regularization(true).l2(orDefault(parameters.getL2(), 5 * 1e-4))
+            .list()
+            .layer(0, convInit("cnn1", parameters.getChannels(), 32, new int[]{3, 3}, new int[]{2, 2}, new int[]{1, 1}, 0))
+            .layer(1, batchNorm("bn1"));
+
+        int layer = 2;
+        for( int i = 0 ; i < widths.length ; i++ )
+        {
+            int block = i + 2;
+            builder.layer(layer++, conv("cnn" + block + "a", widths[i] / 2, new int[]{3, 3}, new int[]{strides[i], strides[i]}, new int[]{1, 1}));
+            builder.layer(layer++, batchNorm("bn" + block + "a"));
+            builder.layer(layer++, conv("cnn" + block + "b", widths[i], new int[]{1, 1}, new int[]{1, 1}, new int[]{0, 0}));
+            builder.layer(layer++, batchNorm("bn" + block + "b"));
+        }
+
+        MultiLayerConfiguration conf = builder
+            .layer(layer++, new GlobalPoolingLayer.Builder(PoolingType.AVG).name("gap").build())
+            .layer(layer, new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
                 .name("output")
                 .nOut( numLabels )
                 .activation(Activation.SOFTMAX)
@@ -148,9 +251,20 @@ public class NetworkFactory
             .pretrain(false)
             .setInputType(InputType.convolutional( parameters.getHeight(), parameters.getWidth(), parameters.getChannels() ))
             .build();
-        
+
         return new MultiLayerNetwork(conf);
+    }
+
+    /**
+     * Hyperparameters set in ModelParameters (model.properties or a "tune"
+     * trial) override the architecture defaults
+     */
+    private static double orDefault(double value, double defaultValue) {
+        return ( value > 0 ) ? value : defaultValue;
+    }
 
+    private static int orDefault(int value, int defaultValue) {
+        return ( value > 0 ) ? value : defaultValue;
     }
 
     private static ConvolutionLayer convInit(String name, int in, int out, int[] kernel, int[] stride, int[] pad, double bias) {
@@ -165,6 +279,14 @@ public class NetworkFactory
         return new ConvolutionLayer.Builder(new int[]{5,5}, stride, pad).name(name).nOut(out).biasInit(bias).build();
     }
 
+    private static ConvolutionLayer conv(String name, int out, int[] kernel, int[] stride, int[] pad) {
+        return new ConvolutionLayer.Builder(kernel, stride, pad).name(name).nOut(out).build();
+    }
+
+    private static BatchNormalization batchNorm(String name) {
+        return new BatchNormalization.Builder().name(name).build();
+    }
+
     private static SubsamplingLayer maxPool(String name,  int[] kernel) {
         return new SubsamplingLayer.Builder(kernel, new int[]{2,2}).name(name).build();
     }
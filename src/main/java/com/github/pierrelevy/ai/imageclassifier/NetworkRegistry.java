@@ -0,0 +1,119 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+/**
+ * NetworkRegistry
+ *
+ * Architectures by name. The built-in ones come from NetworkFactory, others
+ * can be registered at startup or selected by the class name of a
+ * NetworkArchitecture implementation.
+ */
+public class NetworkRegistry
+{
+    public static final String LENET = "lenet";
+    public static final String ALEXNET = "alexnet";
+    public static final String ALEXNET_GAP = "alexnet-gap";
+    public static final String COMPACT = "compact";
+
+    private static final Map<String, NetworkArchitecture> architectures = new LinkedHashMap<>();
+
+    static
+    {
+        register( new Builtin( LENET, "LeNet style, 2 convolutions and a 500 units dense layer" ));
+        register( new Builtin( ALEXNET, "AlexNet, 5 convolutions and two 4096 units dense layers" ));
+        register( new Builtin( ALEXNET_GAP, "AlexNet convolutions, global average pooling instead of the dense layers" ));
+        register( new Builtin( COMPACT, "MobileNet style stack of narrow 3x3 and 1x1 pointwise convolutions, batch norm, global average pooling" ));
+    }
+
+    /**
+     * Register an architecture, replacing any architecture with the same name
+     * @param architecture The architecture
+     */
+    public static synchronized void register( NetworkArchitecture architecture )
+    {
+        architectures.put( architecture.getName(), architecture );
+    }
+
+    /**
+     * Get an architecture
+     * @param name A registered name or the class name of a NetworkArchitecture
+     * @return The architecture
+     * @throws IllegalArgumentException if the architecture is unknown
+     */
+    public static synchronized NetworkArchitecture get( String name )
+    {
+        NetworkArchitecture architecture = architectures.get( name );
+        if( architecture != null )
+        {
+            return architecture;
+        }
+        try
+        {
+            architecture = (NetworkArchitecture) Class.forName( name ).newInstance();
+        }
+        catch( ClassNotFoundException | InstantiationException | IllegalAccessException | ClassCastException e )
+        {
+            throw new IllegalArgumentException( "Unknown network architecture '" + name + "', available : " + architectures.keySet(), e );
+        }
+        register( architecture );
+        return architecture;
+    }
+
+    /**
+     * @return the registered architectures
+     */
+    public static synchronized List<NetworkArchitecture> list()
+    {
+        return new ArrayList<>( architectures.values() );
+    }
+
+    private static class Builtin implements NetworkArchitecture
+    {
+        private final String name;
+        private final String description;
+
+        Builtin( String name , String description )
+        {
+            this.name = name;
+            this.description = description;
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+
+        @Override
+        public String getDescription()
+        {
+            return description;
+        }
+
+        @Override
+        public MultiLayerNetwork build( ModelParameters parameters , int numLabels )
+        {
+            return NetworkFactory.build( name, parameters, numLabels );
+        }
+    }
+}
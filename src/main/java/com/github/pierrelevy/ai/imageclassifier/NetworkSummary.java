@@ -0,0 +1,156 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * NetworkSummary
+ *
+ * Parameter count and inference cost of a network, per layer. FLOPs count the
+ * multiply-adds (2 FLOPs each) of the convolution and dense layers for one
+ * image; pooling, normalization and activations are not counted. Output
+ * shapes come from a forward pass of a blank image.
+ */
+public class NetworkSummary
+{
+    private final String name;
+    private final List<String> layers = new ArrayList<>();
+    private final List<String> types = new ArrayList<>();
+    private final List<String> shapes = new ArrayList<>();
+    private final List<Long> params = new ArrayList<>();
+    private final List<Long> flops = new ArrayList<>();
+
+    /**
+     * Summarize a network
+     * @param name The architecture name
+     * @param network The network, initialized
+     * @param parameters The model parameters giving the input size
+     * @return The summary
+     */
+    public static NetworkSummary of( String name , MultiLayerNetwork network , ModelParameters parameters )
+    {
+        NetworkSummary summary = new NetworkSummary( name );
+        INDArray input = Nd4j.zeros( new int[] { 1, parameters.getChannels(), parameters.getHeight(), parameters.getWidth() } );
+        List<INDArray> activations = network.feedForward( input, false );
+        for( int i = 0 ; i < network.getnLayers() ; i++ )
+        {
+            Layer layer = network.getLayer( i );
+            org.deeplearning4j.nn.conf.layers.Layer conf = layer.conf().getLayer();
+            int[] shape = activations.get( i + 1 ).shape();
+            long outputs = 1;
+            for( int d = 1 ; d < shape.length ; d++ )
+            {
+                outputs *= shape[d];
+            }
+            long multiplyAdds = 0;
+            if( conf instanceof ConvolutionLayer )
+            {
+                int[] kernel = ((ConvolutionLayer) conf).getKernelSize();
+                multiplyAdds = outputs * kernel[0] * kernel[1] * ((ConvolutionLayer) conf).getNIn();
+            }
+            else if( conf instanceof FeedForwardLayer )
+            {
+                multiplyAdds = (long) ((FeedForwardLayer) conf).getNIn() * ((FeedForwardLayer) conf).getNOut();
+            }
+            summary.layers.add( conf.getLayerName() );
+            summary.types.add( conf.getClass().getSimpleName() );
+            summary.shapes.add( shapeString( shape ));
+            summary.params.add( (long) layer.numParams() );
+            summary.flops.add( 2 * multiplyAdds );
+        }
+        return summary;
+    }
+
+    private NetworkSummary( String name )
+    {
+        this.name = name;
+    }
+
+    private static String shapeString( int[] shape )
+    {
+        StringBuilder sb = new StringBuilder();
+        for( int d = 1 ; d < shape.length ; d++ )
+        {
+            sb.append( ( d > 1 ) ? "x" : "" ).append( shape[d] );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the architecture name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the total number of parameters
+     */
+    public long getParams()
+    {
+        long total = 0;
+        for( long p : params )
+        {
+            total += p;
+        }
+        return total;
+    }
+
+    /**
+     * @return the FLOPs of a forward pass for one image
+     */
+    public long getFlops()
+    {
+        long total = 0;
+        for( long f : flops )
+        {
+            total += f;
+        }
+        return total;
+    }
+
+    /**
+     * @return a one line summary
+     */
+    public String toLine()
+    {
+        return String.format( Locale.US, "%-14s %12d params %10.1f MFLOPs/image", name, getParams(), getFlops() / 1e6 );
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder( "Network " + name + "\n" );
+        sb.append( String.format( Locale.US, "%-12s %-28s %-14s %12s %12s%n", "Layer", "Type", "Output", "Params", "MFLOPs" ));
+        for( int i = 0 ; i < layers.size() ; i++ )
+        {
+            sb.append( String.format( Locale.US, "%-12s %-28s %-14s %12d %12.1f%n",
+                    layers.get( i ), types.get( i ), shapes.get( i ), params.get( i ), flops.get( i ) / 1e6 ));
+        }
+        sb.append( String.format( Locale.US, "%-12s %-28s %-14s %12d %12.1f", "Total", "", "", getParams(), getFlops() / 1e6 ));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,285 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * PackedDataSetIterator
+ *
+ * Reads minibatches straight from a memory mapped file written by
+ * DatasetPacker. Records are visited in a new random order at each reset when
+ * shuffling is enabled.
+ */
+public class PackedDataSetIterator implements DataSetIterator
+{
+    private static final long serialVersionUID = 1L;
+
+    private final File file;
+    private final int batchSize;
+    private final int count;
+    private final int height;
+    private final int width;
+    private final int channels;
+    private final List<String> labels = new ArrayList<>();
+    private final int imageSize;
+    private final int recordSize;
+    private final int recordsPerSegment;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final int[] order;
+    private final Random rng;
+    private final byte[] pixels;
+    private int cursor;
+    private DataSetPreProcessor preProcessor;
+
+    /**
+     * Constructor
+     * @param file The packed file
+     * @param batchSize The minibatch size
+     * @param rng The random generator used to shuffle records at each reset, or null to keep the file order
+     * @throws IOException if the file can't be mapped
+     */
+    public PackedDataSetIterator( File file , int batchSize , Random rng ) throws IOException
+    {
+        this.file = file;
+        this.batchSize = batchSize;
+        this.rng = rng;
+
+        try( RandomAccessFile raf = new RandomAccessFile( file, "r" ); FileChannel channel = raf.getChannel() )
+        {
+            if( raf.readInt() != DatasetPacker.MAGIC || raf.readInt() != DatasetPacker.VERSION )
+            {
+                throw new IOException( "Not a packed dataset : " + file );
+            }
+            count = raf.readInt();
+            raf.readUTF();
+            height = raf.readInt();
+            width = raf.readInt();
+            channels = raf.readInt();
+            int numLabels = raf.readInt();
+            for( int i = 0 ; i < numLabels ; i++ )
+            {
+                labels.add( raf.readUTF() );
+            }
+            long dataOffset = raf.getFilePointer();
+
+            imageSize = channels * height * width;
+            recordSize = 4 + imageSize;
+            // A mapping is limited to 2GB, so records are mapped in segments
+            recordsPerSegment = Integer.MAX_VALUE / recordSize;
+            for( int first = 0 ; first < count ; first += recordsPerSegment )
+            {
+                int records = Math.min( recordsPerSegment, count - first );
+                segments.add( channel.map( FileChannel.MapMode.READ_ONLY, dataOffset + (long) first * recordSize, (long) records * recordSize ));
+            }
+        }
+
+        pixels = new byte[imageSize];
+        order = new int[count];
+        for( int i = 0 ; i < count ; i++ )
+        {
+            order[i] = i;
+        }
+        shuffle();
+    }
+
+    /**
+     * Check that the packed file matches the model input size
+     * @param parameters The model parameters
+     * @return true if height, width and channels match
+     */
+    public boolean matches( ModelParameters parameters )
+    {
+        return height == parameters.getHeight() && width == parameters.getWidth() && channels == parameters.getChannels();
+    }
+
+    private void shuffle()
+    {
+        if( rng == null )
+        {
+            return;
+        }
+        for( int i = count - 1 ; i > 0 ; i-- )
+        {
+            int j = rng.nextInt( i + 1 );
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+    }
+
+    /**
+     * Move to a minibatch of a later epoch as if the previous ones had been
+     * iterated : the shuffles of the skipped epochs are replayed, so the
+     * random generator ends in the same state.
+     * @param epochs The number of epochs to skip
+     * @param batches The number of minibatches to skip in the next epoch
+     */
+    public void seek( int epochs , int batches )
+    {
+        for( int e = 0 ; e < epochs ; e++ )
+        {
+            shuffle();
+        }
+        cursor = Math.min( batches * batchSize, count );
+    }
+
+    @Override
+    public DataSet next( int num )
+    {
+        if( !hasNext() )
+        {
+            throw new NoSuchElementException();
+        }
+        int n = Math.min( num, count - cursor );
+        float[] features = new float[n * imageSize];
+        INDArray labelArray = Nd4j.zeros( n, labels.size() );
+
+        for( int i = 0 ; i < n ; i++ )
+        {
+            int record = order[cursor + i];
+            ByteBuffer segment = segments.get( record / recordsPerSegment ).duplicate();
+            segment.position( ( record % recordsPerSegment ) * recordSize );
+            int label = segment.getInt();
+            segment.get( pixels );
+            int offset = i * imageSize;
+            for( int j = 0 ; j < imageSize ; j++ )
+            {
+                features[offset + j] = pixels[j] & 0xFF;
+            }
+            labelArray.putScalar( i, label, 1.0 );
+        }
+        cursor += n;
+
+        DataSet dataSet = new DataSet( Nd4j.create( features, new int[] { n, channels, height, width }, 'c' ), labelArray );
+        if( preProcessor != null )
+        {
+            preProcessor.preProcess( dataSet );
+        }
+        return dataSet;
+    }
+
+    @Override
+    public int totalExamples()
+    {
+        return count;
+    }
+
+    @Override
+    public int inputColumns()
+    {
+        return imageSize;
+    }
+
+    @Override
+    public int totalOutcomes()
+    {
+        return labels.size();
+    }
+
+    @Override
+    public boolean resetSupported()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported()
+    {
+        return true;
+    }
+
+    @Override
+    public void reset()
+    {
+        cursor = 0;
+        shuffle();
+    }
+
+    @Override
+    public int batch()
+    {
+        return batchSize;
+    }
+
+    @Override
+    public int cursor()
+    {
+        return cursor;
+    }
+
+    @Override
+    public int numExamples()
+    {
+        return count;
+    }
+
+    @Override
+    public void setPreProcessor( DataSetPreProcessor preProcessor )
+    {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor()
+    {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels()
+    {
+        return labels;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return cursor < count;
+    }
+
+    @Override
+    public DataSet next()
+    {
+        return next( batchSize );
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PackedDataSetIterator[" + file + ", " + count + " images]";
+    }
+}
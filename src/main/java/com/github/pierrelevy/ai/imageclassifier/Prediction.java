@@ -0,0 +1,137 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Prediction
+ *
+ * A label of a classified image with its probability. The best predictions
+ * of an output row are selected with a bounded heap of k entries, in
+ * O(n log k) without sorting the whole row, so large label sets stay cheap.
+ */
+public class Prediction implements Comparable<Prediction>
+{
+    private final int index;
+    private final String label;
+    private final float probability;
+
+    /**
+     * Constructor
+     * @param index The label index, i.e. the network output
+     * @param label The label name
+     * @param probability The probability
+     */
+    public Prediction( int index , String label , float probability )
+    {
+        this.index = index;
+        this.label = label;
+        this.probability = probability;
+    }
+
+    /**
+     * Select the k most probable labels of an output row
+     * @param row The probabilities per label
+     * @param labels The label names, index i is the label of output i, or null to name labels by their index
+     * @param k The number of predictions
+     * @return The predictions, most probable first
+     */
+    public static List<Prediction> topK( INDArray row , List<String> labels , int k )
+    {
+        int n = row.length();
+        k = Math.min( Math.max( 1, k ), n );
+        // Min-heap : its head is the least probable of the k best so far
+        PriorityQueue<Prediction> heap = new PriorityQueue<>( k );
+        for( int i = 0 ; i < n ; i++ )
+        {
+            float probability = row.getFloat( i );
+            if( heap.size() < k )
+            {
+                heap.add( new Prediction( i, null, probability ));
+            }
+            else if( probability > heap.peek().probability )
+            {
+                heap.poll();
+                heap.add( new Prediction( i, null, probability ));
+            }
+        }
+        List<Prediction> predictions = new ArrayList<>( k );
+        for( Prediction prediction : heap )
+        {
+            predictions.add( new Prediction( prediction.index, name( labels, prediction.index ), prediction.probability ));
+        }
+        Collections.sort( predictions, Collections.reverseOrder() );
+        return predictions;
+    }
+
+    private static String name( List<String> labels , int index )
+    {
+        return ( labels != null && index < labels.size() ) ? labels.get( index ) : String.valueOf( index );
+    }
+
+    /**
+     * @return the label index, i.e. the network output
+     */
+    public int getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * @return the label name
+     */
+    public String getLabel()
+    {
+        return label;
+    }
+
+    /**
+     * @return the probability
+     */
+    public float getProbability()
+    {
+        return probability;
+    }
+
+    @Override
+    public int compareTo( Prediction other )
+    {
+        int result = Float.compare( probability, other.probability );
+        // On a tie, the lowest index ranks first
+        return ( result != 0 ) ? result : Integer.compare( other.index, index );
+    }
+
+    /**
+     * @return the prediction as a JSON object
+     */
+    public String toJson()
+    {
+        return "{\"label\":\"" + label.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) + "\",\"index\":" + index
+                + ",\"probability\":" + String.format( Locale.US, "%.6f", probability ) + "}";
+    }
+
+    @Override
+    public String toString()
+    {
+        return label + " : " + String.format( Locale.US, "%.4f", probability );
+    }
+}
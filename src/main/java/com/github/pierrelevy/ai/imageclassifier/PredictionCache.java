@@ -0,0 +1,328 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PredictionCache
+ *
+ * Probabilities of already classified images, keyed by a 128 bit
+ * MurmurHash3 of the encoded image bytes and the version of the model that
+ * computed them. A hit skips both the decoding and the forward pass. The
+ * cache is bounded by an entry count and by an estimate of the memory used,
+ * the least recently used entries being evicted first. Entries of a previous
+ * model version are dropped once the requests still served by that model
+ * during a reload are done, the entries of the new version being kept.
+ */
+public class PredictionCache
+{
+    // Key, map entry and array headers
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, float[]> entries = new LinkedHashMap<>( 16, 0.75f, true );
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private long bytes;
+
+    /**
+     * Constructor
+     * @param maxEntries The max number of cached predictions
+     * @param maxBytes The max memory used by the cached predictions
+     */
+    public PredictionCache( int maxEntries , long maxBytes )
+    {
+        this.maxEntries = Math.max( 1, maxEntries );
+        this.maxBytes = Math.max( 1, maxBytes );
+    }
+
+    /**
+     * Get the probabilities of an image
+     * @param encoded The encoded image bytes
+     * @param version The version of the model
+     * @return The probabilities per label, or null if not cached
+     */
+    public float[] get( byte[] encoded , String version )
+    {
+        Key key = new Key( encoded, version );
+        float[] probabilities;
+        synchronized( this )
+        {
+            probabilities = entries.get( key );
+        }
+        ( ( probabilities != null ) ? hits : misses ).incrementAndGet();
+        return probabilities;
+    }
+
+    /**
+     * Store the probabilities of an image
+     * @param encoded The encoded image bytes
+     * @param version The version of the model that computed the probabilities
+     * @param probabilities The probabilities per label
+     */
+    public void put( byte[] encoded , String version , float[] probabilities )
+    {
+        Key key = new Key( encoded, version );
+        synchronized( this )
+        {
+            float[] previous = entries.put( key, probabilities );
+            if( previous != null )
+            {
+                bytes -= size( previous );
+            }
+            bytes += size( probabilities );
+            Iterator<float[]> eldest = entries.values().iterator();
+            while( ( entries.size() > maxEntries || bytes > maxBytes ) && eldest.hasNext() )
+            {
+                bytes -= size( eldest.next() );
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static long size( float[] probabilities )
+    {
+        return ENTRY_OVERHEAD + 4L * probabilities.length;
+    }
+
+    /**
+     * Drop the entries of a model version, e.g. once a reloaded model is closed
+     * @param version The version of the model
+     */
+    public synchronized void invalidate( String version )
+    {
+        int removed = 0;
+        Iterator<Map.Entry<Key, float[]>> iterator = entries.entrySet().iterator();
+        while( iterator.hasNext() )
+        {
+            Map.Entry<Key, float[]> entry = iterator.next();
+            if( entry.getKey().version.equals( version ))
+            {
+                bytes -= size( entry.getValue() );
+                iterator.remove();
+                removed++;
+            }
+        }
+        if( removed > 0 )
+        {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of cached predictions
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated memory used by the cached predictions
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups not answered from the cache
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries evicted to stay within the bounds
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * @return the share of lookups answered from the cache
+     */
+    public double getHitRate()
+    {
+        long lookups = hits.get() + misses.get();
+        return ( lookups > 0 ) ? (double) hits.get() / lookups : 0.0;
+    }
+
+    /**
+     * @return the counters as a JSON object
+     */
+    public String toJson()
+    {
+        return "{\"entries\":" + size() + ",\"bytes\":" + getBytes() + ",\"hits\":" + hits.get() + ",\"misses\":" + misses.get()
+                + ",\"evictions\":" + evictions.get() + ",\"invalidations\":" + invalidations.get()
+                + ",\"hitRate\":" + String.format( Locale.US, "%.4f", getHitRate() ) + "}";
+    }
+
+    @Override
+    public String toString()
+    {
+        return size() + " entries (" + ( getBytes() / 1024 ) + "KB), hits=" + hits.get() + " misses=" + misses.get()
+                + " evictions=" + evictions.get() + " invalidations=" + invalidations.get();
+    }
+
+    /**
+     * MurmurHash3 x64 128 bit of a byte array (seed 0)
+     * @param data The bytes
+     * @return The two 64 bit halves of the hash
+     */
+    static long[] murmur3( byte[] data )
+    {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        int length = data.length;
+        int blocks = length / 16;
+        long h1 = 0;
+        long h2 = 0;
+
+        for( int i = 0 ; i < blocks ; i++ )
+        {
+            long k1 = getLong( data, i * 16 );
+            long k2 = getLong( data, i * 16 + 8 );
+            k1 *= c1;
+            k1 = Long.rotateLeft( k1, 31 );
+            k1 *= c2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft( h1, 27 );
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            k2 *= c2;
+            k2 = Long.rotateLeft( k2, 33 );
+            k2 *= c1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft( h2, 31 );
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        for( int i = length - tail - 1 ; i >= 0 ; i-- )
+        {
+            long b = data[tail + i] & 0xFFL;
+            if( i >= 8 )
+            {
+                k2 ^= b << ( ( i - 8 ) * 8 );
+            }
+            else
+            {
+                k1 ^= b << ( i * 8 );
+            }
+        }
+        if( length - tail > 8 )
+        {
+            k2 *= c2;
+            k2 = Long.rotateLeft( k2, 33 );
+            k2 *= c1;
+            h2 ^= k2;
+        }
+        if( length - tail > 0 )
+        {
+            k1 *= c1;
+            k1 = Long.rotateLeft( k1, 31 );
+            k1 *= c2;
+            h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix( h1 );
+        h2 = fmix( h2 );
+        h1 += h2;
+        h2 += h1;
+        return new long[] { h1, h2 };
+    }
+
+    private static long getLong( byte[] data , int offset )
+    {
+        long value = 0;
+        for( int i = 7 ; i >= 0 ; i-- )
+        {
+            value = ( value << 8 ) | ( data[offset + i] & 0xFFL );
+        }
+        return value;
+    }
+
+    private static long fmix( long k )
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static final class Key
+    {
+        private final long h1;
+        private final long h2;
+        private final int length;
+        private final String version;
+
+        Key( byte[] encoded , String version )
+        {
+            long[] hash = murmur3( encoded );
+            this.h1 = hash[0];
+            this.h2 = hash[1];
+            this.length = encoded.length;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if( !( o instanceof Key ))
+            {
+                return false;
+            }
+            Key other = (Key) o;
+            return h1 == other.h1 && h2 == other.h2 && length == other.length && version.equals( other.version );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) ( h1 ^ ( h1 >>> 32 ));
+        }
+    }
+}
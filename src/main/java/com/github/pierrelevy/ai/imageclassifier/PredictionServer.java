@@ -0,0 +1,259 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PredictionServer
+ *
+ * Local HTTP endpoint answering classification requests with a classifier
+ * kept in memory, swapped by a ModelReloader when the model file changes :
+ *  - POST /classify      with the encoded image as request body, answers the top k
+ *                        labels with their probability and the probability per label
+ *  - GET  /stats         latency percentiles, requests/sec and prediction cache counters
+ *  - POST /admin/reload  queue a reload of the model file (202 Accepted), swapped in
+ *                        once warmed up
+ */
+public class PredictionServer
+{
+    private static final Logger log = LoggerFactory.getLogger( PredictionServer.class );
+
+    private final ModelReloader reloader;
+    private final ServerParameters parameters;
+    private final Histogram latency = new Histogram();
+    private HttpServer server;
+    private ExecutorService executor;
+    private ScheduledExecutorService reporter;
+
+    public PredictionServer( ImageClassifier classifier , ServerParameters parameters )
+    {
+        this( new ModelReloader( classifier ) , parameters );
+    }
+
+    /**
+     * Constructor
+     * @param reloader The reloader holding the current classifier
+     * @param parameters The server parameters
+     */
+    public PredictionServer( ModelReloader reloader , ServerParameters parameters )
+    {
+        this.reloader = reloader;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Start the server
+     * @throws IOException if the port can't be bound
+     */
+    public void start() throws IOException
+    {
+        server = HttpServer.create( new InetSocketAddress( parameters.getHost(), parameters.getPort() ), 0 );
+        executor = Executors.newFixedThreadPool( parameters.getThreads() );
+        server.setExecutor( executor );
+        server.createContext( "/classify", new ClassifyHandler() );
+        server.createContext( "/stats", new StatsHandler() );
+        server.createContext( "/admin/reload", new ReloadHandler() );
+        server.start();
+
+        if( parameters.getStatsInterval() > 0 )
+        {
+            reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    ImageClassifier classifier = reloader.getClassifier();
+                    PredictionCache cache = classifier.getCache();
+                    log.info( "Stats : " + latency.toString() + " - average batch size : " + classifier.getEngine().getAverageBatchSize()
+                            + ( ( cache != null ) ? " - cache : " + cache : "" ));
+                }
+            }, parameters.getStatsInterval(), parameters.getStatsInterval(), TimeUnit.SECONDS );
+        }
+        reloader.watch( parameters.getReloadInterval() );
+        log.info( "Prediction server listening on " + parameters.getHost() + ":" + parameters.getPort() );
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop()
+    {
+        if( server != null )
+        {
+            server.stop( 1 );
+            executor.shutdown();
+            reloader.close();
+        }
+        if( reporter != null )
+        {
+            reporter.shutdown();
+        }
+    }
+
+    /**
+     * @return the request latency histogram
+     */
+    public Histogram getLatency()
+    {
+        return latency;
+    }
+
+    private static void send( HttpExchange exchange , int status , String body ) throws IOException
+    {
+        byte[] bytes = body.getBytes( StandardCharsets.UTF_8 );
+        exchange.getResponseHeaders().set( "Content-Type", "application/json" );
+        exchange.sendResponseHeaders( status, bytes.length );
+        try( OutputStream os = exchange.getResponseBody() )
+        {
+            os.write( bytes );
+        }
+    }
+
+    private static String error( Exception e )
+    {
+        return "{\"error\":\"" + String.valueOf( e.getMessage() ).replace( '"', '\'' ) + "\"}";
+    }
+
+    static String toJson( INDArray output , List<Prediction> predictions )
+    {
+        StringBuilder sb = new StringBuilder( "{\"predictions\":[" );
+        for( int i = 0 ; i < predictions.size() ; i++ )
+        {
+            sb.append( ( i > 0 ) ? "," : "" ).append( predictions.get( i ).toJson() );
+        }
+        sb.append( "],\"probabilities\":[" );
+        for( int i = 0 ; i < output.length() ; i++ )
+        {
+            if( i > 0 )
+            {
+                sb.append( ',' );
+            }
+            sb.append( output.getFloat( i ) );
+        }
+        return sb.append( "]}" ).toString();
+    }
+
+    private class ClassifyHandler implements HttpHandler
+    {
+        @Override
+        public void handle( HttpExchange exchange ) throws IOException
+        {
+            if( !"POST".equals( exchange.getRequestMethod() ) )
+            {
+                send( exchange, 405, "{\"error\":\"POST an image\"}" );
+                return;
+            }
+            long start = System.nanoTime();
+            ModelHandle handle = null;
+            int status;
+            String body;
+            try
+            {
+                byte[] image = IOUtils.toByteArray( exchange.getRequestBody() );
+                // The model of this request stays open until it is answered, even if a reload swaps it meanwhile
+                handle = reloader.acquire();
+                ImageClassifier classifier = handle.getClassifier();
+                INDArray output = classifier.classify( image );
+                status = 200;
+                body = toJson( output, Prediction.topK( output, classifier.getLabels(), parameters.getTopK() ));
+            }
+            catch( IOException e )
+            {
+                // The request body can't be read or decoded as an image
+                log.warn( "Invalid request : " + e.getMessage() );
+                status = 400;
+                body = error( e );
+            }
+            catch( RuntimeException e )
+            {
+                log.error( "Classification failed : " + e.getMessage() );
+                status = 500;
+                body = error( e );
+            }
+            // Answered once : a failure to write the response only propagates
+            try
+            {
+                send( exchange, status, body );
+                if( status == 200 )
+                {
+                    latency.record( System.nanoTime() - start );
+                }
+            }
+            finally
+            {
+                if( handle != null )
+                {
+                    handle.release();
+                }
+            }
+        }
+    }
+
+    private class StatsHandler implements HttpHandler
+    {
+        @Override
+        public void handle( HttpExchange exchange ) throws IOException
+        {
+            ImageClassifier classifier = reloader.getClassifier();
+            PredictionCache cache = classifier.getCache();
+            send( exchange, 200, "{\"model\":\"" + classifier.getVersion().replace( "\\", "\\\\" ).replace( "\"", "\\\"" )
+                    + "\",\"reloads\":" + reloader.getReloads() + ",\"latency\":" + latency.toJson() + ",\"batching\":" + classifier.getEngine().toJson()
+                    + ( ( cache != null ) ? ",\"cache\":" + cache.toJson() : "" ) + "}" );
+        }
+    }
+
+    private class ReloadHandler implements HttpHandler
+    {
+        @Override
+        public void handle( HttpExchange exchange ) throws IOException
+        {
+            if( !"POST".equals( exchange.getRequestMethod() ) )
+            {
+                send( exchange, 405, "{\"error\":\"POST to reload the model\"}" );
+                return;
+            }
+            try
+            {
+                // Loaded and warmed up on the watcher thread, GET /stats tells when it serves the requests
+                boolean queued = reloader.requestReload();
+                send( exchange, 202, "{\"queued\":" + queued + ",\"reloads\":" + reloader.getReloads() + "}" );
+                log.info( "Reload requested" + ( queued ? "" : ", already queued" ));
+            }
+            catch( RuntimeException e )
+            {
+                log.error( "Reload failed : " + e.getMessage() );
+                send( exchange, 500, error( e ));
+            }
+        }
+    }
+}
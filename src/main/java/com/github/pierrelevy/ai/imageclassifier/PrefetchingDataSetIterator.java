@@ -0,0 +1,491 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.datavec.image.data.ImageWritable;
+import org.datavec.image.loader.NativeImageLoader;
+import org.datavec.image.transform.ImageTransform;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PrefetchingDataSetIterator
+ *
+ * Decodes images on a pool of worker threads that fill a bounded queue of
+ * ready minibatches ahead of the training loop. Augmentation (a transform
+ * sampled per image from an AugmentationPolicy) and the preprocessor are
+ * applied by the workers too, so a single pass over the data yields augmented
+ * minibatches. Images are decoded by an ImagePreprocessor straight into the
+ * minibatch tensor. Each time the training loop has
+ * to wait for a minibatch is recorded, to tell when training is input-bound.
+ */
+public class PrefetchingDataSetIterator implements DataSetIterator
+{
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggerFactory.getLogger( PrefetchingDataSetIterator.class );
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    private final URI[] locations;
+    private final List<String> labels;
+    private final ModelParameters parameters;
+    private final int batchSize;
+    private final int workers;
+    private final AugmentationPolicy augmentation;
+    private final ImagePreprocessor preprocessor;
+    private final Random rng;
+    private final int[] order;
+    private final int numBatches;
+    private final BlockingQueue<Batch> queue;
+    private final ExecutorService executor;
+    private final Histogram waits = new Histogram();
+    private volatile DataSetPreProcessor preProcessor;
+    private volatile int generation;
+    private boolean started;
+    private int consumed;
+    private int cursor;
+    private int starved;
+    private int skip;
+    private DataSet pending;
+
+    /**
+     * Constructor
+     * @param locations The image locations, the label is the parent directory name
+     * @param labels The label names, the index in this list is the label index
+     * @param parameters The model parameters giving the image size
+     * @param batchSize The minibatch size
+     * @param workers The number of decode workers
+     * @param queueDepth The max number of minibatches prepared ahead
+     * @param augmentation The augmentation policy, or null
+     * @param rng The random generator used to shuffle images at each epoch, or null to keep the order
+     */
+    public PrefetchingDataSetIterator( URI[] locations , List<String> labels , ModelParameters parameters , int batchSize ,
+            int workers , int queueDepth , AugmentationPolicy augmentation , Random rng )
+    {
+        this.locations = Arrays.copyOf( locations, locations.length );
+        this.labels = labels;
+        this.parameters = parameters;
+        this.batchSize = batchSize;
+        this.workers = Math.max( 1, workers );
+        this.augmentation = ( augmentation == null || augmentation.isEmpty() ) ? null : augmentation;
+        // Raw pixels : the normalizer is applied by the preprocessor set on this iterator
+        this.preprocessor = new ImagePreprocessor( parameters, null );
+        this.rng = rng;
+        this.order = new int[locations.length];
+        for( int i = 0 ; i < order.length ; i++ )
+        {
+            order[i] = i;
+        }
+        this.numBatches = ( locations.length + batchSize - 1 ) / batchSize;
+        this.queue = new ArrayBlockingQueue<>( Math.max( 1, queueDepth ));
+        this.executor = Executors.newFixedThreadPool( this.workers, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "prefetch-worker-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        });
+    }
+
+    private void shuffle()
+    {
+        if( rng != null )
+        {
+            for( int i = order.length - 1 ; i > 0 ; i-- )
+            {
+                int j = rng.nextInt( i + 1 );
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }
+    }
+
+    private long workerSeed( int worker )
+    {
+        return ( rng != null ) ? rng.nextLong() : worker;
+    }
+
+    /**
+     * Move to a minibatch of a later epoch as if the previous ones had been
+     * iterated : the shuffles of the skipped epochs are replayed without
+     * decoding any image, so the random generator ends in the same state.
+     * @param epochs The number of epochs to skip
+     * @param batches The number of minibatches to skip in the next epoch
+     */
+    public void seek( int epochs , int batches )
+    {
+        for( int e = 0 ; e < epochs ; e++ )
+        {
+            shuffle();
+            for( int i = 0 ; i < workers ; i++ )
+            {
+                workerSeed( i );
+            }
+        }
+        skip = Math.min( batches, numBatches );
+    }
+
+    private void start()
+    {
+        shuffle();
+        // Each epoch has its own order and minibatch counter : a worker of the previous
+        // epoch still running can neither take a minibatch of this one nor see it reshuffled
+        final int[] epochOrder = Arrays.copyOf( order, order.length );
+        final AtomicInteger nextBatch = new AtomicInteger( skip );
+        consumed = skip;
+        cursor = Math.min( skip * batchSize, locations.length );
+        skip = 0;
+        final int epoch = generation;
+        for( int i = 0 ; i < workers ; i++ )
+        {
+            final long seed = workerSeed( i );
+            executor.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    work( epoch, seed, epochOrder, nextBatch );
+                }
+            });
+        }
+        started = true;
+    }
+
+    private void work( int epoch , long seed , int[] epochOrder , AtomicInteger nextBatch )
+    {
+        try
+        {
+            // Augmented images only, the others go through the preprocessor fast path
+            NativeImageLoader loader = ( augmentation != null )
+                    ? new NativeImageLoader( parameters.getHeight(), parameters.getWidth(), parameters.getChannels() ) : null;
+            AugmentationPolicy.Augmenter augmenter = ( augmentation != null ) ? augmentation.newAugmenter( seed ) : null;
+            int batch;
+            while( epoch == generation && ( batch = nextBatch.getAndIncrement() ) < numBatches )
+            {
+                if( !offer( new Batch( epoch, load( loader, augmenter, epochOrder, batch ), null ), epoch ))
+                {
+                    return;
+                }
+            }
+        }
+        catch( Throwable t )
+        {
+            // Handed to the training loop, which would otherwise wait forever for the minibatches of this worker
+            log.error( "Decode worker failed", t );
+            offer( new Batch( epoch, null, t ), epoch );
+        }
+    }
+
+    private boolean offer( Batch batch , int epoch )
+    {
+        try
+        {
+            while( !queue.offer( batch, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS ))
+            {
+                if( epoch != generation )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private DataSet load( NativeImageLoader loader , AugmentationPolicy.Augmenter augmenter , int[] epochOrder , int batch )
+    {
+        int first = batch * batchSize;
+        int last = Math.min( first + batchSize, epochOrder.length );
+        // Images are decoded straight into the minibatch, the failed ones leave no gap
+        INDArray features = preprocessor.createBatch( last - first );
+        List<Integer> indices = new ArrayList<>( last - first );
+        for( int i = first ; i < last ; i++ )
+        {
+            URI location = locations[epochOrder[i]];
+            try
+            {
+                ImageTransform transform = ( augmenter != null ) ? augmenter.sample() : null;
+                decode( loader, transform, new File( location ), features, indices.size() );
+                indices.add( labels.indexOf( DatasetPacker.label( location )));
+            }
+            catch( IOException | RuntimeException e )
+            {
+                log.warn( "Skipping " + location + " : " + e.getMessage() );
+            }
+        }
+        if( indices.isEmpty() )
+        {
+            return null;
+        }
+        if( indices.size() < last - first )
+        {
+            features = features.get( NDArrayIndex.interval( 0, indices.size() ), NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.all() ).dup();
+        }
+
+        INDArray labelArray = Nd4j.zeros( indices.size(), labels.size() );
+        for( int i = 0 ; i < indices.size() ; i++ )
+        {
+            labelArray.putScalar( i, indices.get( i ), 1.0 );
+        }
+        DataSet dataSet = new DataSet( features, labelArray );
+        DataSetPreProcessor processor = preProcessor;
+        if( processor != null )
+        {
+            processor.preProcess( dataSet );
+        }
+        return dataSet;
+    }
+
+    private void decode( NativeImageLoader loader , ImageTransform transform , File file , INDArray features , int slot ) throws IOException
+    {
+        if( transform == null )
+        {
+            preprocessor.load( file, features, slot );
+            return;
+        }
+        // Transforms work on the decoded image of NativeImageLoader
+        ImageWritable writable = transform.transform( loader.asWritable( file ));
+        preprocessor.put( loader.asMatrix( writable ), features, slot );
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if( !started )
+        {
+            start();
+        }
+        while( pending == null && consumed < numBatches )
+        {
+            Batch batch = queue.poll();
+            if( batch == null )
+            {
+                starved++;
+                long start = System.nanoTime();
+                try
+                {
+                    batch = queue.take();
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException( "Interrupted while waiting for a minibatch", e );
+                }
+                waits.record( System.nanoTime() - start );
+            }
+            if( batch.generation != generation )
+            {
+                // Late minibatch of a worker of the previous epoch
+                continue;
+            }
+            if( batch.failure != null )
+            {
+                if( batch.failure instanceof Error )
+                {
+                    throw (Error) batch.failure;
+                }
+                throw new IllegalStateException( "Decode worker failed", batch.failure );
+            }
+            consumed++;
+            pending = batch.dataSet;
+        }
+        return pending != null;
+    }
+
+    @Override
+    public DataSet next()
+    {
+        if( !hasNext() )
+        {
+            throw new NoSuchElementException();
+        }
+        DataSet dataSet = pending;
+        pending = null;
+        cursor += dataSet.numExamples();
+        if( consumed == numBatches )
+        {
+            logStats();
+        }
+        return dataSet;
+    }
+
+    @Override
+    public DataSet next( int num )
+    {
+        return next();
+    }
+
+    @Override
+    public void reset()
+    {
+        generation++;
+        queue.clear();
+        pending = null;
+        consumed = 0;
+        cursor = 0;
+        started = false;
+    }
+
+    /**
+     * Stop the decode workers
+     */
+    public void shutdown()
+    {
+        generation++;
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the number of minibatches the training loop had to wait for since the last reset
+     */
+    public int getStarvedCount()
+    {
+        return starved;
+    }
+
+    /**
+     * @return the histogram of the training loop waits for a minibatch
+     */
+    public Histogram getWaits()
+    {
+        return waits;
+    }
+
+    private void logStats()
+    {
+        log.info( "Input pipeline : waited for " + starved + "/" + numBatches + " minibatches, total wait "
+                + ( waits.getTotal() / 1000000 ) + "ms, " + waits.toString() );
+        starved = 0;
+        waits.reset();
+    }
+
+    @Override
+    public int totalExamples()
+    {
+        return locations.length;
+    }
+
+    @Override
+    public int inputColumns()
+    {
+        return parameters.getChannels() * parameters.getHeight() * parameters.getWidth();
+    }
+
+    @Override
+    public int totalOutcomes()
+    {
+        return labels.size();
+    }
+
+    @Override
+    public boolean resetSupported()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported()
+    {
+        // Already prefetching, no need to be wrapped in an AsyncDataSetIterator
+        return false;
+    }
+
+    @Override
+    public int batch()
+    {
+        return batchSize;
+    }
+
+    @Override
+    public int cursor()
+    {
+        return cursor;
+    }
+
+    @Override
+    public int numExamples()
+    {
+        return locations.length;
+    }
+
+    @Override
+    public void setPreProcessor( DataSetPreProcessor preProcessor )
+    {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor()
+    {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels()
+    {
+        return labels;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    private static class Batch
+    {
+        private final int generation;
+        private final DataSet dataSet;
+        private final Throwable failure;
+
+        Batch( int generation , DataSet dataSet , Throwable failure )
+        {
+            this.generation = generation;
+            this.dataSet = dataSet;
+            this.failure = failure;
+        }
+    }
+}
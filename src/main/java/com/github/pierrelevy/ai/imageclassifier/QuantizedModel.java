@@ -0,0 +1,503 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.params.DefaultParamInitializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * QuantizedModel
+ *
+ * Inference model file with reduced precision weights : the configuration,
+ * the normalizer, the labels and the parameters, without updater state. Weight matrices
+ * are stored as FP16 or as int8 with a symmetric scale per output channel;
+ * biases and batch norm statistics stay FP32. Weights are dequantized to FP32
+ * at load time, the forward pass itself runs in FP32.
+ *
+ * File layout (big endian) :
+ *  - magic, version
+ *  - configuration JSON, normalizer (Java serialization), each prefixed by its length
+ *  - label count, then the label names (since version 2)
+ *  - parameter count, then for each : key, rank, shape, precision, data
+ *    (FP32 : floats, FP16 : halves, INT8 : channel count, scales, bytes)
+ */
+public class QuantizedModel
+{
+    static final int MAGIC = 0x494D514D;  // "IMQM"
+    static final int VERSION = 2;
+    private static final String TMP_EXTENSION = ".tmp";
+
+    /**
+     * Storage precision of a parameter
+     */
+    public enum Precision
+    {
+        FP32, FP16, INT8
+    }
+
+    private final MultiLayerNetwork network;
+    private final DataNormalization normalizer;
+    private final List<String> labels;
+
+    private QuantizedModel( MultiLayerNetwork network , DataNormalization normalizer , List<String> labels )
+    {
+        this.network = network;
+        this.normalizer = normalizer;
+        this.labels = labels;
+    }
+
+    /**
+     * @return the network with dequantized parameters
+     */
+    public MultiLayerNetwork getNetwork()
+    {
+        return network;
+    }
+
+    /**
+     * @return the normalizer
+     */
+    public DataNormalization getNormalizer()
+    {
+        return normalizer;
+    }
+
+    /**
+     * @return the label names, index i is the label of output i, or null if not stored
+     */
+    public List<String> getLabels()
+    {
+        return labels;
+    }
+
+    /**
+     * Precision of each parameter : weights at the given precision, others FP32
+     * @param network The network
+     * @param precision The weights precision
+     * @return The precision by parameter key
+     */
+    public static Map<String, Precision> precisions( MultiLayerNetwork network , Precision precision )
+    {
+        Map<String, Precision> precisions = new LinkedHashMap<>();
+        for( String key : network.paramTable().keySet() )
+        {
+            precisions.put( key, isWeight( key ) ? precision : Precision.FP32 );
+        }
+        return precisions;
+    }
+
+    static boolean isWeight( String key )
+    {
+        return key.endsWith( "_" + DefaultParamInitializer.WEIGHT_KEY );
+    }
+
+    /**
+     * Write a model
+     * @param file The file
+     * @param network The network
+     * @param normalizer The normalizer
+     * @param labels The label names, or null if unknown
+     * @param precisions The precision by parameter key
+     * @throws IOException if the file can't be written
+     */
+    public static void write( File file , MultiLayerNetwork network , DataNormalization normalizer , List<String> labels ,
+            Map<String, Precision> precisions ) throws IOException
+    {
+        File tmp = new File( file.getPath() + TMP_EXTENSION );
+        try( DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ))))
+        {
+            dos.writeInt( MAGIC );
+            dos.writeInt( VERSION );
+            writeBytes( dos, network.getLayerWiseConfigurations().toJson().getBytes( StandardCharsets.UTF_8 ));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try( ObjectOutputStream oos = new ObjectOutputStream( baos ))
+            {
+                oos.writeObject( normalizer );
+            }
+            writeBytes( dos, baos.toByteArray() );
+            dos.writeInt( ( labels != null ) ? labels.size() : 0 );
+            if( labels != null )
+            {
+                for( String label : labels )
+                {
+                    dos.writeUTF( label );
+                }
+            }
+
+            Map<String, INDArray> params = network.paramTable();
+            dos.writeInt( params.size() );
+            for( Map.Entry<String, INDArray> entry : params.entrySet() )
+            {
+                Precision precision = precisions.get( entry.getKey() );
+                writeParam( dos, entry.getKey(), entry.getValue(), ( precision != null ) ? precision : Precision.FP32 );
+            }
+        }
+        AtomicFiles.move( tmp, file );
+    }
+
+    private static void writeBytes( DataOutputStream dos , byte[] bytes ) throws IOException
+    {
+        dos.writeInt( bytes.length );
+        dos.write( bytes );
+    }
+
+    private static void writeParam( DataOutputStream dos , String key , INDArray param , Precision precision ) throws IOException
+    {
+        int[] shape = param.shape();
+        float[] values = param.dup( 'c' ).data().asFloat();
+        dos.writeUTF( key );
+        dos.writeInt( shape.length );
+        for( int d : shape )
+        {
+            dos.writeInt( d );
+        }
+        dos.writeByte( precision.ordinal() );
+        ByteBuffer buffer;
+        switch( precision )
+        {
+            case FP16:
+                buffer = ByteBuffer.allocate( values.length * 2 );
+                for( float value : values )
+                {
+                    buffer.putShort( toHalf( value ));
+                }
+                break;
+            case INT8:
+                Int8 int8 = Int8.quantize( values, shape );
+                dos.writeInt( int8.scales.length );
+                buffer = ByteBuffer.allocate( int8.scales.length * 4 + values.length );
+                buffer.asFloatBuffer().put( int8.scales );
+                buffer.position( int8.scales.length * 4 );
+                buffer.put( int8.data );
+                break;
+            default:
+                buffer = ByteBuffer.allocate( values.length * 4 );
+                buffer.asFloatBuffer().put( values );
+                break;
+        }
+        dos.write( buffer.array() );
+    }
+
+    /**
+     * Read a model
+     * @param file The file
+     * @return The model
+     * @throws IOException if the file can't be read
+     */
+    public static QuantizedModel read( File file ) throws IOException
+    {
+        try( DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file ))))
+        {
+            int version;
+            if( dis.readInt() != MAGIC || ( version = dis.readInt() ) < 1 || version > VERSION )
+            {
+                throw new IOException( "Not a quantized model : " + file );
+            }
+            MultiLayerConfiguration conf = MultiLayerConfiguration.fromJson( new String( readBytes( dis ), StandardCharsets.UTF_8 ));
+            DataNormalization normalizer;
+            try( ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( readBytes( dis ))))
+            {
+                normalizer = (DataNormalization) ois.readObject();
+            }
+            catch( ClassNotFoundException e )
+            {
+                throw new IOException( "Unable to read the normalizer of " + file, e );
+            }
+            List<String> labels = null;
+            int numLabels = ( version >= 2 ) ? dis.readInt() : 0;
+            if( numLabels > 0 )
+            {
+                labels = new ArrayList<>( numLabels );
+                for( int i = 0 ; i < numLabels ; i++ )
+                {
+                    labels.add( dis.readUTF() );
+                }
+            }
+
+            MultiLayerNetwork network = new MultiLayerNetwork( conf );
+            network.init();
+            int count = dis.readInt();
+            for( int i = 0 ; i < count ; i++ )
+            {
+                String key = dis.readUTF();
+                network.setParam( key, readParam( dis ));
+            }
+            return new QuantizedModel( network, normalizer, labels );
+        }
+    }
+
+    private static byte[] readBytes( DataInputStream dis ) throws IOException
+    {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully( bytes );
+        return bytes;
+    }
+
+    private static INDArray readParam( DataInputStream dis ) throws IOException
+    {
+        int[] shape = new int[dis.readInt()];
+        int length = 1;
+        for( int d = 0 ; d < shape.length ; d++ )
+        {
+            shape[d] = dis.readInt();
+            length *= shape[d];
+        }
+        Precision precision = Precision.values()[dis.readByte()];
+        float[] values = new float[length];
+        switch( precision )
+        {
+            case FP16:
+            {
+                byte[] bytes = new byte[length * 2];
+                dis.readFully( bytes );
+                ByteBuffer buffer = ByteBuffer.wrap( bytes );
+                for( int i = 0 ; i < length ; i++ )
+                {
+                    values[i] = fromHalf( buffer.getShort() );
+                }
+                break;
+            }
+            case INT8:
+            {
+                float[] scales = new float[dis.readInt()];
+                byte[] bytes = new byte[scales.length * 4 + length];
+                dis.readFully( bytes );
+                ByteBuffer.wrap( bytes, 0, scales.length * 4 ).asFloatBuffer().get( scales );
+                Int8 int8 = new Int8( scales, new byte[length] );
+                System.arraycopy( bytes, scales.length * 4, int8.data, 0, length );
+                int8.dequantize( values, shape );
+                break;
+            }
+            default:
+            {
+                byte[] bytes = new byte[length * 4];
+                dis.readFully( bytes );
+                ByteBuffer.wrap( bytes ).asFloatBuffer().get( values );
+                break;
+            }
+        }
+        return Nd4j.create( values, shape, 'c' );
+    }
+
+    /**
+     * Values of a parameter after being stored at a precision and read back,
+     * to measure the effect of quantization without writing a file
+     * @param param The parameter
+     * @param precision The precision
+     * @return The dequantized parameter
+     */
+    public static INDArray roundTrip( INDArray param , Precision precision )
+    {
+        int[] shape = param.shape();
+        float[] values = param.dup( 'c' ).data().asFloat();
+        switch( precision )
+        {
+            case FP16:
+                for( int i = 0 ; i < values.length ; i++ )
+                {
+                    values[i] = fromHalf( toHalf( values[i] ));
+                }
+                break;
+            case INT8:
+                Int8.quantize( values, shape ).dequantize( values, shape );
+                break;
+            default:
+                break;
+        }
+        return Nd4j.create( values, shape, 'c' );
+    }
+
+    /**
+     * @param file The file
+     * @return true if the file is a quantized model
+     */
+    public static boolean isQuantized( File file )
+    {
+        if( !file.isFile() )
+        {
+            return false;
+        }
+        try( DataInputStream dis = new DataInputStream( new FileInputStream( file )))
+        {
+            return file.length() >= 8 && dis.readInt() == MAGIC;
+        }
+        catch( IOException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * IEEE 754 half precision conversion, round to nearest even
+     */
+    static short toHalf( float value )
+    {
+        int bits = Float.floatToIntBits( value );
+        int sign = ( bits >>> 16 ) & 0x8000;
+        int exponent = ( bits >>> 23 ) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+        if( exponent == 0xFF )
+        {
+            // Infinity or NaN
+            return (short) ( sign | 0x7C00 | ( mantissa != 0 ? 0x200 : 0 ));
+        }
+        int halfExponent = exponent - 127 + 15;
+        if( halfExponent >= 0x1F )
+        {
+            return (short) ( sign | 0x7C00 );
+        }
+        if( halfExponent <= 0 )
+        {
+            if( halfExponent < -10 )
+            {
+                return (short) sign;
+            }
+            // Subnormal
+            mantissa |= 0x800000;
+            int shift = 14 - halfExponent;
+            int half = mantissa >> shift;
+            int remainder = mantissa & ( ( 1 << shift ) - 1 );
+            int halfway = 1 << ( shift - 1 );
+            if( remainder > halfway || ( remainder == halfway && ( half & 1 ) != 0 ))
+            {
+                half++;
+            }
+            return (short) ( sign | half );
+        }
+        int half = ( halfExponent << 10 ) | ( mantissa >> 13 );
+        int remainder = mantissa & 0x1FFF;
+        if( remainder > 0x1000 || ( remainder == 0x1000 && ( half & 1 ) != 0 ))
+        {
+            // May carry into the exponent, up to infinity, which is correct
+            half++;
+        }
+        return (short) ( sign | half );
+    }
+
+    static float fromHalf( short half )
+    {
+        int sign = ( half & 0x8000 ) << 16;
+        int exponent = ( half >>> 10 ) & 0x1F;
+        int mantissa = half & 0x3FF;
+        if( exponent == 0x1F )
+        {
+            return Float.intBitsToFloat( sign | 0x7F800000 | ( mantissa << 13 ));
+        }
+        if( exponent == 0 )
+        {
+            if( mantissa == 0 )
+            {
+                return Float.intBitsToFloat( sign );
+            }
+            // Subnormal : normalize
+            exponent = 1;
+            while( ( mantissa & 0x400 ) == 0 )
+            {
+                mantissa <<= 1;
+                exponent--;
+            }
+            mantissa &= 0x3FF;
+        }
+        return Float.intBitsToFloat( sign | ( ( exponent - 15 + 127 ) << 23 ) | ( mantissa << 13 ));
+    }
+
+    /**
+     * Symmetric int8 quantization with a scale per output channel : the first
+     * dimension of convolution weights [out, in, h, w], the second one of
+     * dense weights [in, out], a single scale otherwise
+     */
+    static class Int8
+    {
+        final float[] scales;
+        final byte[] data;
+
+        Int8( float[] scales , byte[] data )
+        {
+            this.scales = scales;
+            this.data = data;
+        }
+
+        private static int channels( int[] shape )
+        {
+            if( shape.length == 4 )
+            {
+                return shape[0];
+            }
+            return ( shape.length == 2 ) ? shape[1] : 1;
+        }
+
+        private static int channel( int index , int[] shape , int length )
+        {
+            if( shape.length == 4 )
+            {
+                return index / ( length / shape[0] );
+            }
+            return ( shape.length == 2 ) ? index % shape[1] : 0;
+        }
+
+        static Int8 quantize( float[] values , int[] shape )
+        {
+            float[] max = new float[channels( shape )];
+            for( int i = 0 ; i < values.length ; i++ )
+            {
+                int c = channel( i, shape, values.length );
+                max[c] = Math.max( max[c], Math.abs( values[i] ));
+            }
+            float[] scales = new float[max.length];
+            for( int c = 0 ; c < max.length ; c++ )
+            {
+                scales[c] = ( max[c] > 0 ) ? max[c] / 127f : 1f;
+            }
+            byte[] data = new byte[values.length];
+            for( int i = 0 ; i < values.length ; i++ )
+            {
+                int q = Math.round( values[i] / scales[channel( i, shape, values.length )] );
+                data[i] = (byte) Math.max( -127, Math.min( 127, q ));
+            }
+            return new Int8( scales, data );
+        }
+
+        void dequantize( float[] values , int[] shape )
+        {
+            for( int i = 0 ; i < values.length ; i++ )
+            {
+                values[i] = data[i] * scales[channel( i, shape, values.length )];
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ScalingReport
+ *
+ * Throughput of the distributed training rounds grouped by the number of
+ * workers taking part in them. The scaling efficiency of N workers is their
+ * throughput divided by N times the single worker one : measured on the rounds
+ * run by one worker when there are some, otherwise estimated from the fit time
+ * reported by the workers, which leaves out the communication and waits.
+ */
+public class ScalingReport
+{
+    private final Map<Integer, Stats> stats = new TreeMap<>();
+
+    /**
+     * Record a round
+     * @param workers The number of workers whose results were averaged
+     * @param images The number of images fitted
+     * @param wallNanos The duration of the round, from sending the parameters to averaging them
+     * @param fitNanos The sum of the fit times reported by the workers
+     */
+    public synchronized void record( int workers , long images , long wallNanos , long fitNanos )
+    {
+        Stats s = stats.get( workers );
+        if( s == null )
+        {
+            s = new Stats();
+            stats.put( workers, s );
+        }
+        s.rounds++;
+        s.images += images;
+        s.wallNanos += wallNanos;
+        s.fitNanos += fitNanos;
+    }
+
+    /**
+     * @param workers The number of workers
+     * @return the images per second of the rounds run by this number of workers, 0 if none
+     */
+    public synchronized double throughput( int workers )
+    {
+        Stats s = stats.get( workers );
+        return ( s == null || s.wallNanos == 0 ) ? 0.0 : s.images * 1e9 / s.wallNanos;
+    }
+
+    /**
+     * @return the images per second of a single worker
+     */
+    public synchronized double singleWorkerThroughput()
+    {
+        double measured = throughput( 1 );
+        if( measured > 0 )
+        {
+            return measured;
+        }
+        long images = 0;
+        long fitNanos = 0;
+        for( Stats s : stats.values() )
+        {
+            images += s.images;
+            fitNanos += s.fitNanos;
+        }
+        return ( fitNanos == 0 ) ? 0.0 : images * 1e9 / fitNanos;
+    }
+
+    /**
+     * @param workers The number of workers
+     * @return the throughput of this number of workers over N times the single worker one
+     */
+    public synchronized double efficiency( int workers )
+    {
+        double single = singleWorkerThroughput();
+        return ( single == 0 ) ? 0.0 : throughput( workers ) / ( workers * single );
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append( String.format( "%8s %8s %10s %12s %10s%n", "workers", "rounds", "images", "images/s", "efficiency" ));
+        for( Map.Entry<Integer, Stats> entry : stats.entrySet() )
+        {
+            int workers = entry.getKey();
+            sb.append( String.format( "%8d %8d %10d %12.1f %9.1f%%%n", workers, entry.getValue().rounds, entry.getValue().images,
+                    throughput( workers ), 100.0 * efficiency( workers )));
+        }
+        sb.append( "single worker : " ).append( String.format( "%.1f", singleWorkerThroughput() )).append( " images/s (" )
+                .append( stats.containsKey( 1 ) ? "measured" : "fit time only" ).append( ")" );
+        return sb.toString();
+    }
+
+    private static class Stats
+    {
+        private int rounds;
+        private long images;
+        private long wallNanos;
+        private long fitNanos;
+    }
+}
@@ -0,0 +1,228 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+/**
+ * ServerParameters
+ */
+public class ServerParameters
+{
+
+    private String host;
+    private int port;
+    private int threads;
+    private int warmup;
+    private int statsInterval;
+    private int maxBatchSize;
+    private int maxWait;
+    private int topK;
+    private int replicas;
+    private int cacheEntries;
+    private int cacheMemory;
+    private int reloadInterval;
+
+    /**
+     * @return the host
+     */
+    public String getHost()
+    {
+        return host;
+    }
+
+    /**
+     * @param host the host to set
+     */
+    public void setHost(String host)
+    {
+        this.host = host;
+    }
+
+    /**
+     * @return the port
+     */
+    public int getPort()
+    {
+        return port;
+    }
+
+    /**
+     * @param port the port to set
+     */
+    public void setPort(int port)
+    {
+        this.port = port;
+    }
+
+    /**
+     * @return the threads
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @param threads the threads to set
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * @return the warmup
+     */
+    public int getWarmup()
+    {
+        return warmup;
+    }
+
+    /**
+     * @param warmup the warmup to set
+     */
+    public void setWarmup(int warmup)
+    {
+        this.warmup = warmup;
+    }
+
+    /**
+     * @return the statsInterval
+     */
+    public int getStatsInterval()
+    {
+        return statsInterval;
+    }
+
+    /**
+     * @param statsInterval the statsInterval to set
+     */
+    public void setStatsInterval(int statsInterval)
+    {
+        this.statsInterval = statsInterval;
+    }
+
+    /**
+     * @return the maxBatchSize
+     */
+    public int getMaxBatchSize()
+    {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize the maxBatchSize to set
+     */
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return the maxWait in milliseconds
+     */
+    public int getMaxWait()
+    {
+        return maxWait;
+    }
+
+    /**
+     * @param maxWait the maxWait in milliseconds to set
+     */
+    public void setMaxWait(int maxWait)
+    {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @return the topK
+     */
+    public int getTopK()
+    {
+        return topK;
+    }
+
+    /**
+     * @param topK the topK to set
+     */
+    public void setTopK(int topK)
+    {
+        this.topK = topK;
+    }
+
+    /**
+     * @return the replicas
+     */
+    public int getReplicas()
+    {
+        return replicas;
+    }
+
+    /**
+     * @param replicas the replicas to set
+     */
+    public void setReplicas(int replicas)
+    {
+        this.replicas = replicas;
+    }
+
+    /**
+     * @return the cacheEntries
+     */
+    public int getCacheEntries()
+    {
+        return cacheEntries;
+    }
+
+    /**
+     * @param cacheEntries the cacheEntries to set
+     */
+    public void setCacheEntries(int cacheEntries)
+    {
+        this.cacheEntries = cacheEntries;
+    }
+
+    /**
+     * @return the cacheMemory in MB
+     */
+    public int getCacheMemory()
+    {
+        return cacheMemory;
+    }
+
+    /**
+     * @param cacheMemory the cacheMemory in MB to set
+     */
+    public void setCacheMemory(int cacheMemory)
+    {
+        this.cacheMemory = cacheMemory;
+    }
+
+    /**
+     * @return the reloadInterval in seconds
+     */
+    public int getReloadInterval()
+    {
+        return reloadInterval;
+    }
+
+    /**
+     * @param reloadInterval the reloadInterval in seconds to set
+     */
+    public void setReloadInterval(int reloadInterval)
+    {
+        this.reloadInterval = reloadInterval;
+    }
+}
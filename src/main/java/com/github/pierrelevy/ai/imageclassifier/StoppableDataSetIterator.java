@@ -0,0 +1,156 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.List;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+/**
+ * StoppableDataSetIterator
+ *
+ * Ends the iteration as soon as stop() is called, so that a listener can end
+ * a fit( iterator ) call (early stopping) after the current minibatch.
+ */
+public class StoppableDataSetIterator implements DataSetIterator
+{
+    private static final long serialVersionUID = 1L;
+
+    private final DataSetIterator iterator;
+    private volatile boolean stopped;
+
+    /**
+     * Constructor
+     * @param iterator The wrapped iterator
+     */
+    public StoppableDataSetIterator( DataSetIterator iterator )
+    {
+        this.iterator = iterator;
+    }
+
+    /**
+     * End the iteration, hasNext() returns false from now on
+     */
+    public void stop()
+    {
+        stopped = true;
+    }
+
+    /**
+     * @return true if stop() was called
+     */
+    public boolean isStopped()
+    {
+        return stopped;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return !stopped && iterator.hasNext();
+    }
+
+    @Override
+    public DataSet next()
+    {
+        return iterator.next();
+    }
+
+    @Override
+    public DataSet next( int num )
+    {
+        return iterator.next( num );
+    }
+
+    @Override
+    public int totalExamples()
+    {
+        return iterator.totalExamples();
+    }
+
+    @Override
+    public int inputColumns()
+    {
+        return iterator.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes()
+    {
+        return iterator.totalOutcomes();
+    }
+
+    @Override
+    public boolean resetSupported()
+    {
+        return iterator.resetSupported();
+    }
+
+    @Override
+    public boolean asyncSupported()
+    {
+        return iterator.asyncSupported();
+    }
+
+    @Override
+    public void reset()
+    {
+        iterator.reset();
+    }
+
+    @Override
+    public int batch()
+    {
+        return iterator.batch();
+    }
+
+    @Override
+    public int cursor()
+    {
+        return iterator.cursor();
+    }
+
+    @Override
+    public int numExamples()
+    {
+        return iterator.numExamples();
+    }
+
+    @Override
+    public void setPreProcessor( DataSetPreProcessor preProcessor )
+    {
+        iterator.setPreProcessor( preProcessor );
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor()
+    {
+        return iterator.getPreProcessor();
+    }
+
+    @Override
+    public List<String> getLabels()
+    {
+        return iterator.getLabels();
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
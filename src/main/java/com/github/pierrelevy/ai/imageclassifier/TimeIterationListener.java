@@ -24,22 +24,42 @@ import org.slf4j.LoggerFactory;
 
 /**
  * TimeIterationListener
+ *
+ * Estimates the remaining time from the duration of the most recent
+ * iterations, so that the estimate follows the current speed rather than the
+ * average since the start (first iterations are slower, input or evaluation
+ * stalls don't weigh forever).
  */
 public class TimeIterationListener implements IterationListener
 {
 
     private static final long serialVersionUID = 1L;
+    private static final int DEFAULT_WINDOW = 20;
     private boolean invoked;
     private long start;
     private int iterationCount;
+    private final long[] window;
+    private int position;
+    private int size;
     private static final Logger log = LoggerFactory.getLogger(TimeIterationListener.class );
-    
+
     public TimeIterationListener( int iterationCount )
+    {
+        this( iterationCount , DEFAULT_WINDOW );
+    }
+
+    /**
+     * Constructor
+     * @param iterationCount The expected number of iterations
+     * @param windowSize The number of recent iterations used for the estimate
+     */
+    public TimeIterationListener( int iterationCount , int windowSize )
     {
         this.iterationCount = iterationCount;
+        this.window = new long[Math.max( 2, windowSize )];
         start = System.currentTimeMillis();
     }
-    
+
     @Override
     public boolean invoked()
     {
@@ -56,10 +76,17 @@ public class TimeIterationListener implements IterationListener
     public void iterationDone(Model model, int iteration)
     {
         int currentIteration = iteration + 1;
-        long elapsed = System.currentTimeMillis() - start;
-        long remaining = (iterationCount - currentIteration) * elapsed / currentIteration;
+        long now = System.currentTimeMillis();
+        window[position] = now;
+        position = ( position + 1 ) % window.length;
+        size = Math.min( size + 1, window.length );
+
+        // Duration of an iteration over the window, or since the start for the first one
+        long oldest = ( size > 1 ) ? window[( position + window.length - size ) % window.length] : start;
+        double perIteration = (double) ( now - oldest ) / Math.max( 1, size - 1 );
+        long remaining = (long) ( Math.max( 0, iterationCount - currentIteration ) * perIteration );
         long minutes = remaining / ( 1000 * 60 );
-        Date date = new Date( start + elapsed + remaining );
+        Date date = new Date( now + remaining );
         log.info( "Remaining time : " + minutes + "mn - End expected : " + date.toString() );
     }
 
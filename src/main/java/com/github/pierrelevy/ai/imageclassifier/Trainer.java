@@ -18,32 +18,25 @@ package com.github.pierrelevy.ai.imageclassifier;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
-import org.datavec.api.io.filters.BalancedPathFilter;
-import org.datavec.api.io.labels.ParentPathLabelGenerator;
-import org.datavec.api.split.FileSplit;
+import org.datavec.api.split.CollectionInputSplit;
 import org.datavec.api.split.InputSplit;
-import org.datavec.image.loader.NativeImageLoader;
-import org.datavec.image.recordreader.ImageRecordReader;
-import org.datavec.image.transform.FlipImageTransform;
-import org.datavec.image.transform.ImageTransform;
-import org.datavec.image.transform.WarpImageTransform;
 import org.deeplearning4j.api.storage.StatsStorage;
-import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
 import org.deeplearning4j.datasets.iterator.MultipleEpochsIterator;
 import org.deeplearning4j.eval.Evaluation;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.optimize.api.IterationListener;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.deeplearning4j.parallelism.ParallelWrapper;
 import org.deeplearning4j.ui.api.UIServer;
 import org.deeplearning4j.ui.stats.StatsListener;
 import org.deeplearning4j.ui.storage.InMemoryStatsStorage;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
-import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,69 +46,260 @@ import org.slf4j.LoggerFactory;
 public class Trainer 
 {
     protected static final Logger log = LoggerFactory.getLogger( Trainer.class );
+    private static final String PACK_TRAIN = ".train";
+    private static final String PACK_TEST = ".test";
 
-    public static MultiLayerNetwork train( int nModel, TrainerParameters trainerParams, ModelParameters modelParams ) throws IOException
+    /**
+     * Data Setup -> organize and limit data file paths and split them between train and test
+     * @param trainerParams The trainer parameters
+     * @param rng The random generator
+     * @param withValidation true to hold a validation slice of validationSplit out of the training data,
+     * false for the paths that don't use it, so they train on all of it
+     * @return The train, test and validation splits, the validation one is a slice of the
+     * training data (empty unless withValidation and validationSplit is set). The test split
+     * doesn't depend on withValidation.
+     * @throws IOException if the data directory can't be scanned
+     */
+    static InputSplit[] split( TrainerParameters trainerParams , Random rng , boolean withValidation ) throws IOException
     {
-        log.info("Load data....");
         /**
-         * cd Data Setup -> organize and limit data file paths: - mainPath =
-         * path to image files - fileSplit = define basic dataset split with
-         * limits on format - pathFilter = define additional file load filter to
-         * limit size and balance batch content
+         * Data Setup -> organize and limit data file paths: the data directory
+         * index (scanned in parallel, only the changed directories when the
+         * index file exists) gives the images per label, balanced and limited
+         * in number as BalancedPathFilter does
          *
          */
-        Random rng = new Random( modelParams.getSeed() );
-
-        
-        ParentPathLabelGenerator labelMaker = new ParentPathLabelGenerator();
-//        File mainPath = new File(System.getProperty("user.dir"), "data/guitars/");
-        File mainPath = new File( trainerParams.getPathData() );
-        FileSplit fileSplit = new FileSplit( mainPath, NativeImageLoader.ALLOWED_FORMATS, rng );
-//        BalancedPathFilter pathFilter = new BalancedPathFilter( rng, labelMaker, trainerParams.getNumExamples() , trainerParams.getNumLabels(), trainerParams.getBatchSize() );
-        BalancedPathFilter pathFilter = new BalancedPathFilter( rng, labelMaker, trainerParams.getNumExamples() );
+        String indexPath = trainerParams.getIndexPath();
+        DatasetIndex index = DatasetIndex.scan( new File( trainerParams.getPathData() ), ( indexPath == null || indexPath.isEmpty() ) ? null : new File( indexPath ));
 
         /**
          * Data Setup -> train test split - inputSplit = define train and test
-         * split
+         * split, the held-out validation slice is taken from the train part
          *
          */
-        InputSplit[] inputSplit = fileSplit.sample(pathFilter, trainerParams.getSplitTrainTest(), 1.0 - trainerParams.getSplitTrainTest() );
+        double train = trainerParams.getSplitTrainTest();
+        double validation = withValidation ? Math.max( 0.0, Math.min( 1.0, trainerParams.getValidationSplit() )) : 0.0;
+        URI[][] splits = index.sample( rng, trainerParams.getNumExamples(), train * ( 1.0 - validation ), train * validation, 1.0 - train );
+        return new InputSplit[] { new CollectionInputSplit( Arrays.asList( splits[0] )), new CollectionInputSplit( Arrays.asList( splits[2] )),
+            new CollectionInputSplit( Arrays.asList( splits[1] )) };
+    }
+
+    /**
+     * Decode the train and test splits once into packed files read by PackedDataSetIterator
+     * @param trainerParams The trainer parameters
+     * @param modelParams The model parameters
+     * @throws IOException if the packed files can't be written
+     */
+    public static void pack( TrainerParameters trainerParams, ModelParameters modelParams ) throws IOException
+    {
+        Random rng = new Random( modelParams.getSeed() );
+        // The packed train data is the one the train command reads
+        InputSplit[] inputSplit = split( trainerParams , rng , isEarlyStopping( trainerParams ) );
+        pack( inputSplit[0] , inputSplit[1] , trainerParams , modelParams );
+    }
+
+    /**
+     * @return true if the train command evaluates a validation slice : early stopping
+     * evaluates a single network, so not with data parallel training
+     */
+    private static boolean isEarlyStopping( TrainerParameters trainerParams )
+    {
+        return trainerParams.getValidationFrequency() > 0 && trainerParams.getParallelWorkers() <= 1;
+    }
+
+    private static void pack( InputSplit trainData , InputSplit testData , TrainerParameters trainerParams, ModelParameters modelParams ) throws IOException
+    {
+        log.info("Pack data....");
+        List<String> labels = DatasetPacker.labels( trainData , testData );
+        DatasetPacker.pack( trainData , labels , modelParams , packKey( trainData , labels , modelParams ) , packFile( trainerParams , PACK_TRAIN ) );
+        DatasetPacker.pack( testData , labels , modelParams , packKey( testData , labels , modelParams ) , packFile( trainerParams , PACK_TEST ) );
+    }
+
+    private static boolean isPacked( InputSplit trainData , InputSplit testData , List<String> labels , TrainerParameters trainerParams, ModelParameters modelParams )
+    {
+        return DatasetPacker.isPacked( packFile( trainerParams , PACK_TRAIN ), packKey( trainData , labels , modelParams ))
+                && DatasetPacker.isPacked( packFile( trainerParams , PACK_TEST ), packKey( testData , labels , modelParams ));
+    }
+
+    /**
+     * The identity of a packed split : a packed file is reused only if the seed, the
+     * split and the labels it was built from are unchanged
+     */
+    private static String packKey( InputSplit split , List<String> labels , ModelParameters modelParams )
+    {
+        return modelParams.getSeed() + ":" + split.length() + ":" + Arrays.hashCode( split.locations() ) + ":" + labels;
+    }
+
+    private static File packFile( TrainerParameters trainerParams , String suffix )
+    {
+        return new File( trainerParams.getPackPath() + suffix );
+    }
+
+    private static boolean isPackEnabled( TrainerParameters trainerParams )
+    {
+        return trainerParams.getPackPath() != null && !trainerParams.getPackPath().isEmpty();
+    }
+
+    private static PackedDataSetIterator packedIterator( TrainerParameters trainerParams, ModelParameters modelParams , String suffix , Random rng ) throws IOException
+    {
+        PackedDataSetIterator iterator = new PackedDataSetIterator( packFile( trainerParams , suffix ), trainerParams.getBatchSize(), rng );
+        if( !iterator.matches( modelParams ) )
+        {
+            throw new IOException( "Packed data " + packFile( trainerParams , suffix ) + " doesn't match the model image size, delete it to rebuild it" );
+        }
+        return iterator;
+    }
+
+    private static PrefetchingDataSetIterator prefetchingIterator( InputSplit split , List<String> labels , TrainerParameters trainerParams,
+            ModelParameters modelParams , AugmentationPolicy augmentation , Random rng )
+    {
+        return new PrefetchingDataSetIterator( split.locations(), labels, modelParams, trainerParams.getBatchSize(),
+                trainerParams.getWorkers(), trainerParams.getPrefetchDepth(), augmentation, rng );
+    }
+
+    /**
+     * Data parallel training : the network is replicated on each worker, each
+     * fitting its own minibatches, and parameters are averaged back into the
+     * network every averaging frequency iterations
+     */
+    private static void fitParallel( MultiLayerNetwork network , List<IterationListener> listeners , DataSetIterator trainIter , TrainerParameters trainerParams )
+    {
+        log.info( "Data parallel training on " + trainerParams.getParallelWorkers() + " workers, averaging every "
+                + trainerParams.getAveragingFrequency() + " iterations" );
+        ParallelWrapper wrapper = new ParallelWrapper.Builder<>( network )
+                .workers( trainerParams.getParallelWorkers() )
+                .averagingFrequency( trainerParams.getAveragingFrequency() )
+                .prefetchBuffer( trainerParams.getPrefetchDepth() )
+                .reportScoreAfterAveraging( true )
+                .useLegacyAveraging( false )
+                .build();
+        wrapper.setListeners( listeners );
+        try
+        {
+            wrapper.fit( trainIter );
+        }
+        finally
+        {
+            wrapper.shutdown();
+        }
+    }
+
+    private static void seek( DataSetIterator iterator , int epochs , int batches )
+    {
+        if( iterator instanceof PrefetchingDataSetIterator )
+        {
+            ((PrefetchingDataSetIterator) iterator).seek( epochs , batches );
+        }
+        else if( iterator instanceof PackedDataSetIterator )
+        {
+            ((PackedDataSetIterator) iterator).seek( epochs , batches );
+        }
+    }
+
+    private static boolean isCheckpointEnabled( TrainerParameters trainerParams )
+    {
+        return trainerParams.getCheckpointPath() != null && !trainerParams.getCheckpointPath().isEmpty();
+    }
+
+    /**
+     * @param trainerParams The trainer parameters
+     * @return the most recent checkpoint of the checkpoint directory, or null if none
+     * @throws IOException if a checkpoint can't be read
+     */
+    public static Checkpoint latestCheckpoint( TrainerParameters trainerParams ) throws IOException
+    {
+        return isCheckpointEnabled( trainerParams ) ? Checkpoint.latest( new File( trainerParams.getCheckpointPath() )) : null;
+    }
+
+    private static void shutdown( DataSetIterator iterator )
+    {
+        if( iterator instanceof PrefetchingDataSetIterator )
+        {
+            ((PrefetchingDataSetIterator) iterator).shutdown();
+        }
+    }
+
+    public static MultiLayerNetwork train( String network, TrainerParameters trainerParams, ModelParameters modelParams ) throws IOException
+    {
+        return train( network , trainerParams , modelParams , ModelNormalizer.create() );
+    }
+
+    /**
+     * Train a network
+     * @param network The network architecture name (see NetworkRegistry)
+     * @param trainerParams The trainer parameters
+     * @param modelParams The model parameters
+     * @param scaler The normalizer, fitted here if it needs statistics, to be saved with the model
+     * @return The trained network
+     * @throws IOException if the data can't be read
+     */
+    public static MultiLayerNetwork train( String network, TrainerParameters trainerParams, ModelParameters modelParams , DataNormalization scaler ) throws IOException
+    {
+        return train( network , trainerParams , modelParams , scaler , new ArrayList<String>() , null );
+    }
+
+    /**
+     * Train a network, or resume its training from a checkpoint. The data split
+     * and shuffles are replayed from the same seed so that training continues
+     * with the minibatch following the checkpoint.
+     * @param architecture The network architecture name (see NetworkRegistry)
+     * @param trainerParams The trainer parameters
+     * @param modelParams The model parameters
+     * @param scaler The normalizer, fitted here if it needs statistics (the checkpoint one when resuming)
+     * @param labels Filled with the label names, index i is the label of output i, to be saved with the model
+     * @param resume The checkpoint to resume from, or null to start a new training
+     * @return The trained network
+     * @throws IOException if the data or the checkpoint can't be read
+     */
+    public static MultiLayerNetwork train( String architecture, TrainerParameters trainerParams, ModelParameters modelParams , DataNormalization scaler ,
+            List<String> labels , Checkpoint resume ) throws IOException
+    {
+        log.info("Load data....");
+        Random rng = new Random( modelParams.getSeed() );
+
+        InputSplit[] inputSplit = split( trainerParams , rng , isEarlyStopping( trainerParams ) );
         InputSplit trainData = inputSplit[0];
         InputSplit testData = inputSplit[1];
+        InputSplit validationData = inputSplit[2];
 
         System.out.println( "Number of images in the trainData dataset : " + trainData.length() );
         System.out.println( "Number of images in the testData dataset : " + testData.length() );
+        System.out.println( "Number of images in the validationData dataset : " + validationData.length() );
 
         /**
          * Data Setup -> transformation - Transform = how to tranform images and
-         * generate large dataset to train on
-         *
-         */
-        ImageTransform flipTransform1 = new FlipImageTransform(rng);
-        ImageTransform flipTransform2 = new FlipImageTransform(new Random(123));
-        ImageTransform warpTransform = new WarpImageTransform(rng, 42);
-//        ImageTransform colorTransform = new ColorConversionTransform(new Random(seed), COLOR_BGR2YCrCb);
-        List<ImageTransform> transforms = Arrays.asList(new ImageTransform[]
-        {
-            flipTransform1, warpTransform, flipTransform2
-        });
-
-        /**
-         * Data Setup -> normalization - how to normalize images and generate
-         * large dataset to train on
+         * generate large dataset to train on. A transform is sampled per image
+         * by the decode workers, so a single pass yields augmented data.
          *
          */
-        DataNormalization scaler = new ImagePreProcessingScaler(0, 1);
+        AugmentationPolicy augmentation = AugmentationPolicy.parse( trainerParams.getAugmentation() );
+        log.info( "Augmentation : " + augmentation );
 
-        log.info("Build model....");
-        
-        MultiLayerNetwork network = NetworkFactory.getNetwork( NetworkFactory.NETWORK_AXELNET , modelParams , trainerParams.getNumLabels() );
-        network.init();
+        MultiLayerNetwork network;
+        if( resume != null )
+        {
+            log.info( "Resume from checkpoint " + resume );
+            if( resume.getSeed() != modelParams.getSeed() || resume.getBatchSize() != trainerParams.getBatchSize() )
+            {
+                log.warn( "Seed or batch size changed since the checkpoint, the data order won't be the same" );
+            }
+            network = resume.restoreNetwork();
+        }
+        else
+        {
+            log.info("Build model " + architecture + "....");
+            network = NetworkFactory.getNetwork( architecture , modelParams , trainerParams.getNumLabels() );
+            network.init();
+        }
+        log.info( NetworkSummary.of( architecture , network , modelParams ).toString() );
         
         List<IterationListener> listeners = new ArrayList<>();
+        // First listener, its tail() is added last to measure the listeners overhead
+        TrainingMetricsListener metrics = new TrainingMetricsListener( new MetricsRegistry() , trainerParams.getListenerFreq() , trainerParams.getMetricsPath() );
+        listeners.add( metrics );
         listeners.add( new ScoreIterationListener( trainerParams.getListenerFreq() ));
         
-        int numIterations = (int) ((trainerParams.getEpochs() * trainerParams.getNumExamples() * 4 * trainerParams.getNumLabels() / trainerParams.getBatchSize()) * trainerParams.getSplitTrainTest());
+        int numIterations = (int) ((trainerParams.getEpochs() * trainerParams.getNumExamples() * trainerParams.getNumLabels() / trainerParams.getBatchSize()) * trainerParams.getSplitTrainTest());
         listeners.add( new TimeIterationListener( numIterations ) );
         
         if( trainerParams.isUIServerEnabled() )
@@ -133,56 +317,203 @@ public class Trainer
             listeners.add( new StatsListener(statsStorage) );
         }
 
-        network.setListeners( listeners );
-
         /**
          * Data Setup -> define how to load data into net:
-         *  - recordReader = the reader that loads and converts image data pass in inputSplit to initialize
-         *  - dataIter = a generator that only loads one batch at a time into memory to save memory
+         *  - dataIter = a generator that loads batches ahead on decode workers (or reads them from the packed file)
          *  - trainIter = uses MultipleEpochsIterator to ensure model runs through the data for all epochs
          **/
-        ImageRecordReader recordReader = new ImageRecordReader( modelParams.getHeight(), modelParams.getWidth(), modelParams.getChannels(), labelMaker);
+        labels.clear();
+        labels.addAll( DatasetPacker.labels( trainData , testData ));
         DataSetIterator dataIter;
         MultipleEpochsIterator trainIter;
 
 
+        boolean packed = isPackEnabled( trainerParams );
+        if( packed && !isPacked( trainData , testData , labels , trainerParams , modelParams ) )
+        {
+            pack( trainData , testData , trainerParams , modelParams );
+        }
+
         log.info("Train model....");
-        // Train without transformations
-        recordReader.initialize( trainData , null );
-        int nNumLabels = recordReader.getLabels().size();
+        int nNumLabels = labels.size();
         System.out.println("nNumLabels : " + nNumLabels );
         for( int i = 0 ; i < nNumLabels ; i++ )
         {
-            log.info( recordReader.getLabels().get(i) );
+            log.info( labels.get(i) );
         }
 
 
-        dataIter = new RecordReaderDataSetIterator(recordReader, trainerParams.getBatchSize(), 1, trainerParams.getNumLabels() );
-        scaler.fit(dataIter);
+        if( packed )
+        {
+            // Pixels are read from the packed file, no image decoding
+            if( !augmentation.isEmpty() )
+            {
+                log.warn( "Augmentation applies to decoded images only, it is disabled with packed data" );
+            }
+            dataIter = packedIterator( trainerParams , modelParams , PACK_TRAIN , rng );
+        }
+        else
+        {
+            dataIter = prefetchingIterator( trainData , labels , trainerParams , modelParams , augmentation , rng );
+        }
+        /**
+         * Data Setup -> normalization - statistics, if any, are computed once
+         * here and reused for the evaluation and saved with the model
+         *
+         */
+        int epochs = trainerParams.getEpochs();
+        if( resume == null )
+        {
+            ModelNormalizer.fit( scaler , dataIter );
+        }
+        else
+        {
+            seek( dataIter , resume.getEpoch() , resume.getBatchInEpoch() );
+            epochs -= resume.getEpoch();
+        }
         dataIter.setPreProcessor(scaler);
-        trainIter = new MultipleEpochsIterator( trainerParams.getEpochs(), dataIter, trainerParams.getNumCores());
-        
-        network.fit(trainIter);
+        trainIter = new MultipleEpochsIterator( epochs, dataIter, trainerParams.getNumCores());
 
-        // Train with transformations
-        for (ImageTransform transform : transforms ) {
-            System.out.print("\nTraining on transformation: " + transform.getClass().toString() + "\n\n");
-            recordReader.initialize( trainData, transform);
-            dataIter = new RecordReaderDataSetIterator(recordReader, trainerParams.getBatchSize(), 1, trainerParams.getNumLabels() );
-            scaler.fit(dataIter);
-            dataIter.setPreProcessor(scaler);
-            trainIter = new MultipleEpochsIterator(trainerParams.getEpochs(), dataIter, trainerParams.getNumCores() );
-            network.fit(trainIter);
+        CheckpointListener checkpoints = null;
+        if( isCheckpointEnabled( trainerParams ) )
+        {
+            int batchesPerEpoch = ( dataIter.numExamples() + trainerParams.getBatchSize() - 1 ) / trainerParams.getBatchSize();
+            int callsPerBatch = modelParams.getIterations() * Math.max( 1, trainerParams.getParallelWorkers() );
+            checkpoints = new CheckpointListener( network , scaler , trainerParams , callsPerBatch , batchesPerEpoch ,
+                    modelParams.getSeed() , ( resume != null ) ? resume.getBatches() : 0 );
+            listeners.add( checkpoints );
+        }
+        StoppableDataSetIterator stoppable = new StoppableDataSetIterator( trainIter );
+        EarlyStoppingListener earlyStopping = null;
+        DataSetIterator validationIter = null;
+        if( trainerParams.getValidationFrequency() > 0 )
+        {
+            if( trainerParams.getParallelWorkers() > 1 )
+            {
+                log.warn( "Early stopping evaluates a single network, it is disabled with data parallel training" );
+            }
+            else if( validationData.length() == 0 )
+            {
+                log.warn( "No validation data (validationSplit), early stopping is disabled" );
+            }
+            else
+            {
+                validationIter = prefetchingIterator( validationData , labels , trainerParams , modelParams , null , null );
+                validationIter.setPreProcessor( scaler );
+                String bestPath = trainerParams.getBestModelPath();
+                int scheduled = epochs * modelParams.getIterations() * ( ( dataIter.numExamples() + trainerParams.getBatchSize() - 1 ) / trainerParams.getBatchSize() );
+                earlyStopping = new EarlyStoppingListener( validationIter , stoppable , trainerParams.getValidationFrequency() ,
+                        trainerParams.getPatience() , trainerParams.getLearningRateCut() , trainerParams.getMaxLearningRateCuts() ,
+                        ( bestPath == null || bestPath.isEmpty() ) ? null : new File( bestPath ) , scheduled );
+                listeners.add( earlyStopping );
+            }
+        }
+        listeners.add( metrics.tail() );
+        if( trainerParams.getMetricsPort() > 0 )
+        {
+            metrics.getRegistry().serve( trainerParams.getMetricsPort() );
+        }
+        network.setListeners( listeners );
+
+        try
+        {
+            if( epochs <= 0 )
+            {
+                log.info( "Training already completed by the checkpoint" );
+            }
+            else if( trainerParams.getParallelWorkers() > 1 )
+            {
+                fitParallel( network , listeners , metrics.instrument( trainIter ) , trainerParams );
+            }
+            else
+            {
+                network.fit( metrics.instrument( stoppable ));
+            }
+        }
+        finally
+        {
+            shutdown( dataIter );
+            if( validationIter != null )
+            {
+                shutdown( validationIter );
+            }
+            if( checkpoints != null )
+            {
+                checkpoints.close();
+            }
+            metrics.dump();
+            metrics.getRegistry().stop();
+        }
+        log.info( "Training metrics : " + metrics.summary() );
+        if( earlyStopping != null )
+        {
+            earlyStopping.restoreBest( network );
+            log.info( "Early stopping : " + earlyStopping.summary() );
         }
 
         log.info("Evaluate model....");
-        recordReader.initialize( testData );
-        dataIter = new RecordReaderDataSetIterator(recordReader, trainerParams.getBatchSize(), 1, trainerParams.getNumLabels() );
-        scaler.fit(dataIter);
+        if( packed )
+        {
+            dataIter = packedIterator( trainerParams , modelParams , PACK_TEST , null );
+        }
+        else
+        {
+            dataIter = prefetchingIterator( testData , labels , trainerParams , modelParams , null , null );
+        }
+        evaluate( network , dataIter , scaler );
+
+        return network;
+    }
+
+    private static void evaluate( MultiLayerNetwork network , DataSetIterator dataIter , DataNormalization scaler )
+    {
         dataIter.setPreProcessor(scaler);
         Evaluation eval = network.evaluate(dataIter);
         log.info(eval.stats(true));
+        shutdown( dataIter );
+    }
+
+    /**
+     * Train a network on several JVMs : this process is the coordinator (see
+     * TrainingCoordinator), TrainingWorker processes fit the minibatches. The
+     * network is then evaluated here on the test split.
+     * @param architecture The network architecture name (see NetworkRegistry)
+     * @param trainerParams The trainer parameters
+     * @param modelParams The model parameters
+     * @param scaler The normalizer, fitted here if it needs statistics, to be saved with the model
+     * @param labels Filled with the label names, index i is the label of output i, to be saved with the model
+     * @return The trained network
+     * @throws IOException if the data can't be read or the coordinator port can't be bound
+     */
+    public static MultiLayerNetwork trainDistributed( String architecture, TrainerParameters trainerParams, ModelParameters modelParams ,
+            DataNormalization scaler , List<String> labels ) throws IOException
+    {
+        log.info("Load data....");
+        Random rng = new Random( modelParams.getSeed() );
+        InputSplit[] inputSplit = split( trainerParams , rng , false );
+        System.out.println( "Number of images in the trainData dataset : " + inputSplit[0].length() );
+        System.out.println( "Number of images in the testData dataset : " + inputSplit[1].length() );
+        labels.clear();
+        labels.addAll( DatasetPacker.labels( inputSplit[0] , inputSplit[1] ));
 
+        log.info("Build model " + architecture + "....");
+        MultiLayerNetwork network = NetworkFactory.getNetwork( architecture , modelParams , trainerParams.getNumLabels() );
+        network.init();
+        log.info( NetworkSummary.of( architecture , network , modelParams ).toString() );
+
+        DataSetIterator dataIter = prefetchingIterator( inputSplit[0] , labels , trainerParams , modelParams , null , null );
+        ModelNormalizer.fit( scaler , dataIter );
+        shutdown( dataIter );
+
+        log.info("Train model....");
+        try( TrainingCoordinator coordinator = new TrainingCoordinator( network , scaler , labels , modelParams , trainerParams ) )
+        {
+            coordinator.start( trainerParams.getCoordinatorPort() );
+            coordinator.train( inputSplit[0].locations() );
+        }
+
+        log.info("Evaluate model....");
+        evaluate( network , prefetchingIterator( inputSplit[1] , labels , trainerParams , modelParams , null , null ) , scaler );
         return network;
     }
 
@@ -30,6 +30,29 @@ public class TrainerParameters
     private int listenerFreq;
     private int nCores;
     private boolean enableUIServer;
+    private String packPath;
+    private int workers;
+    private int prefetchDepth;
+    private String augmentation;
+    private int parallelWorkers;
+    private int averagingFrequency;
+    private String metricsPath;
+    private int metricsPort;
+    private String checkpointPath;
+    private int checkpointFrequency;
+    private int checkpointInterval;
+    private int checkpointKeep;
+    private String indexPath;
+    private int coordinatorPort;
+    private int minWorkers;
+    private int workerTimeout;
+    private double validationSplit;
+    private int validationFrequency;
+    private int patience;
+    private double learningRateCut;
+    private int maxLearningRateCuts;
+    private String bestModelPath;
+    private String featureCachePath;
 
     /**
      * @return the pathData
@@ -167,5 +190,373 @@ public class TrainerParameters
     {
         this.enableUIServer = enabled;
     }
+
+    /**
+     * @return the packPath, prefix of the packed train and test files (empty to decode images at each pass)
+     */
+    public String getPackPath()
+    {
+        return packPath;
+    }
+
+    /**
+     * @param packPath the packPath to set
+     */
+    public void setPackPath(String packPath)
+    {
+        this.packPath = packPath;
+    }
+
+    /**
+     * @return the number of image decode workers
+     */
+    public int getWorkers()
+    {
+        return workers;
+    }
+
+    /**
+     * @param workers the workers to set
+     */
+    public void setWorkers(int workers)
+    {
+        this.workers = workers;
+    }
+
+    /**
+     * @return the max number of minibatches prepared ahead of the training loop
+     */
+    public int getPrefetchDepth()
+    {
+        return prefetchDepth;
+    }
+
+    /**
+     * @param prefetchDepth the prefetchDepth to set
+     */
+    public void setPrefetchDepth(int prefetchDepth)
+    {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    /**
+     * @return the augmentation policy specification (transform:probability list)
+     */
+    public String getAugmentation()
+    {
+        return augmentation;
+    }
+
+    /**
+     * @param augmentation the augmentation to set
+     */
+    public void setAugmentation(String augmentation)
+    {
+        this.augmentation = augmentation;
+    }
+
+    /**
+     * @return the number of network replicas trained in parallel (1 or less to train a single network)
+     */
+    public int getParallelWorkers()
+    {
+        return parallelWorkers;
+    }
+
+    /**
+     * @param parallelWorkers the parallelWorkers to set
+     */
+    public void setParallelWorkers(int parallelWorkers)
+    {
+        this.parallelWorkers = parallelWorkers;
+    }
+
+    /**
+     * @return the number of iterations between two parameter averagings of the replicas
+     */
+    public int getAveragingFrequency()
+    {
+        return averagingFrequency;
+    }
+
+    /**
+     * @param averagingFrequency the averagingFrequency to set
+     */
+    public void setAveragingFrequency(int averagingFrequency)
+    {
+        this.averagingFrequency = averagingFrequency;
+    }
+ 
+    /**
+     * @return the path prefix of the training metrics files (.json and .csv), empty for none
+     */
+    public String getMetricsPath()
+    {
+        return metricsPath;
+    }
+
+    /**
+     * @param metricsPath the metricsPath to set
+     */
+    public void setMetricsPath(String metricsPath)
+    {
+        this.metricsPath = metricsPath;
+    }
+
+    /**
+     * @return the port of the local training metrics endpoint (0 or less to disable it)
+     */
+    public int getMetricsPort()
+    {
+        return metricsPort;
+    }
+
+    /**
+     * @param metricsPort the metricsPort to set
+     */
+    public void setMetricsPort(int metricsPort)
+    {
+        this.metricsPort = metricsPort;
+    }
+ 
+    /**
+     * @return the checkpoint directory, empty to disable checkpoints
+     */
+    public String getCheckpointPath()
+    {
+        return checkpointPath;
+    }
+
+    /**
+     * @param checkpointPath the checkpointPath to set
+     */
+    public void setCheckpointPath(String checkpointPath)
+    {
+        this.checkpointPath = checkpointPath;
+    }
+
+    /**
+     * @return the number of minibatches between two checkpoints (0 or less for none)
+     */
+    public int getCheckpointFrequency()
+    {
+        return checkpointFrequency;
+    }
+
+    /**
+     * @param checkpointFrequency the checkpointFrequency to set
+     */
+    public void setCheckpointFrequency(int checkpointFrequency)
+    {
+        this.checkpointFrequency = checkpointFrequency;
+    }
+
+    /**
+     * @return the max number of minutes between two checkpoints (0 or less for none)
+     */
+    public int getCheckpointInterval()
+    {
+        return checkpointInterval;
+    }
+
+    /**
+     * @param checkpointInterval the checkpointInterval to set
+     */
+    public void setCheckpointInterval(int checkpointInterval)
+    {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * @return the number of most recent checkpoints kept
+     */
+    public int getCheckpointKeep()
+    {
+        return checkpointKeep;
+    }
+
+    /**
+     * @param checkpointKeep the checkpointKeep to set
+     */
+    public void setCheckpointKeep(int checkpointKeep)
+    {
+        this.checkpointKeep = checkpointKeep;
+    }
+
+    /**
+     * @return the indexPath, file of the data directory index (empty to scan the whole tree at each run)
+     */
+    public String getIndexPath()
+    {
+        return indexPath;
+    }
+
+    /**
+     * @param indexPath the indexPath to set
+     */
+    public void setIndexPath(String indexPath)
+    {
+        this.indexPath = indexPath;
+    }
+
+    /**
+     * @return the coordinatorPort, TCP port of the distributed training coordinator
+     */
+    public int getCoordinatorPort()
+    {
+        return coordinatorPort;
+    }
+
+    /**
+     * @param coordinatorPort the coordinatorPort to set
+     */
+    public void setCoordinatorPort(int coordinatorPort)
+    {
+        this.coordinatorPort = coordinatorPort;
+    }
+
+    /**
+     * @return the minWorkers, number of workers awaited before the distributed training starts
+     */
+    public int getMinWorkers()
+    {
+        return minWorkers;
+    }
+
+    /**
+     * @param minWorkers the minWorkers to set
+     */
+    public void setMinWorkers(int minWorkers)
+    {
+        this.minWorkers = minWorkers;
+    }
+
+    /**
+     * @return the workerTimeout, seconds after which a silent worker is dropped
+     */
+    public int getWorkerTimeout()
+    {
+        return workerTimeout;
+    }
+
+    /**
+     * @param workerTimeout the workerTimeout to set
+     */
+    public void setWorkerTimeout(int workerTimeout)
+    {
+        this.workerTimeout = workerTimeout;
+    }
+
+    /**
+     * @return the validationSplit, share of the training data held out for early stopping
+     */
+    public double getValidationSplit()
+    {
+        return validationSplit;
+    }
+
+    /**
+     * @param validationSplit the validationSplit to set
+     */
+    public void setValidationSplit(double validationSplit)
+    {
+        this.validationSplit = validationSplit;
+    }
+
+    /**
+     * @return the validationFrequency, iterations between two validations (0 disables early stopping)
+     */
+    public int getValidationFrequency()
+    {
+        return validationFrequency;
+    }
+
+    /**
+     * @param validationFrequency the validationFrequency to set
+     */
+    public void setValidationFrequency(int validationFrequency)
+    {
+        this.validationFrequency = validationFrequency;
+    }
+
+    /**
+     * @return the patience, validations without improvement before a learning rate cut or the stop
+     */
+    public int getPatience()
+    {
+        return patience;
+    }
+
+    /**
+     * @param patience the patience to set
+     */
+    public void setPatience(int patience)
+    {
+        this.patience = patience;
+    }
+
+    /**
+     * @return the learningRateCut, learning rate multiplier applied on a plateau
+     */
+    public double getLearningRateCut()
+    {
+        return learningRateCut;
+    }
+
+    /**
+     * @param learningRateCut the learningRateCut to set
+     */
+    public void setLearningRateCut(double learningRateCut)
+    {
+        this.learningRateCut = learningRateCut;
+    }
+
+    /**
+     * @return the maxLearningRateCuts, cuts before a plateau stops the training
+     */
+    public int getMaxLearningRateCuts()
+    {
+        return maxLearningRateCuts;
+    }
+
+    /**
+     * @param maxLearningRateCuts the maxLearningRateCuts to set
+     */
+    public void setMaxLearningRateCuts(int maxLearningRateCuts)
+    {
+        this.maxLearningRateCuts = maxLearningRateCuts;
+    }
+
+    /**
+     * @return the bestModelPath, file of the best model during training (empty to keep it in memory)
+     */
+    public String getBestModelPath()
+    {
+        return bestModelPath;
+    }
+
+    /**
+     * @param bestModelPath the bestModelPath to set
+     */
+    public void setBestModelPath(String bestModelPath)
+    {
+        this.bestModelPath = bestModelPath;
+    }
+
+    /**
+     * @return the featureCachePath, prefix of the fine tuning feature files (empty for temporary files)
+     */
+    public String getFeatureCachePath()
+    {
+        return featureCachePath;
+    }
+
+    /**
+     * @param featureCachePath the featureCachePath to set
+     */
+    public void setFeatureCachePath(String featureCachePath)
+    {
+        this.featureCachePath = featureCachePath;
+    }
  
 }
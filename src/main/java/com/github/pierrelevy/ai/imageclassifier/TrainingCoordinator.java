@@ -0,0 +1,505 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TrainingCoordinator
+ *
+ * Parameter server of the multi-node training. Workers (TrainingWorker, one
+ * per JVM) connect over TCP and receive the network configuration. Training
+ * runs in rounds : each connected worker gets the current parameters and the
+ * next averagingFrequency minibatches of image locations, fits them and sends
+ * its parameters back, which are averaged weighted by the number of images.
+ *
+ * A worker connecting during training takes part from the next round. A
+ * worker failing or not answering within the timeout is dropped and its
+ * images are handed out again in the next round, so a replacement can join
+ * at any time. Workers read the images by their location, so the data
+ * directory must be reachable with the same path by every worker.
+ */
+public class TrainingCoordinator implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger( TrainingCoordinator.class );
+    private static final long WAIT_LOG_INTERVAL = 10000L;
+    // A worker answers the handshake at once, unlike a round
+    private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+    private final MultiLayerNetwork network;
+    private final DataNormalization normalizer;
+    private final List<String> labels;
+    private final ModelParameters modelParams;
+    private final TrainerParameters trainerParams;
+    private final List<WorkerConnection> workers = new ArrayList<>();
+    private final ScalingReport report = new ScalingReport();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private ServerSocket server;
+    private int round;
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     * @param network The initialized network, holding the averaged parameters
+     * @param normalizer The normalizer, sent to the workers
+     * @param labels The label names, index i is the label of output i
+     * @param modelParams The model parameters
+     * @param trainerParams The trainer parameters
+     */
+    public TrainingCoordinator( MultiLayerNetwork network , DataNormalization normalizer , List<String> labels ,
+            ModelParameters modelParams , TrainerParameters trainerParams )
+    {
+        this.network = network;
+        this.normalizer = normalizer;
+        this.labels = labels;
+        this.modelParams = modelParams;
+        this.trainerParams = trainerParams;
+    }
+
+    /**
+     * Start accepting workers
+     * @param port The TCP port, 0 for any free port
+     * @throws IOException if the port can't be bound
+     */
+    public void start( int port ) throws IOException
+    {
+        server = new ServerSocket( port );
+        Thread acceptor = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                accept();
+            }
+        }, "coordinator-accept" );
+        acceptor.setDaemon( true );
+        acceptor.start();
+        log.info( "Coordinator listening on port " + server.getLocalPort() + ", waiting for " + trainerParams.getMinWorkers() + " workers" );
+    }
+
+    /**
+     * @return the bound port
+     */
+    public int getPort()
+    {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return the throughput and scaling efficiency per number of workers
+     */
+    public ScalingReport getReport()
+    {
+        return report;
+    }
+
+    private void accept()
+    {
+        while( !closed )
+        {
+            final Socket socket;
+            try
+            {
+                socket = server.accept();
+            }
+            catch( IOException e )
+            {
+                if( !closed )
+                {
+                    log.warn( "Unable to accept a worker : " + e.getMessage() );
+                }
+                continue;
+            }
+            // The handshake runs aside, so a slow or silent client doesn't hold back the next workers
+            try
+            {
+                executor.execute( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        join( socket );
+                    }
+                });
+            }
+            catch( RejectedExecutionException e )
+            {
+                close( socket );
+            }
+        }
+    }
+
+    private void join( Socket socket )
+    {
+        WorkerConnection worker;
+        try
+        {
+            worker = new WorkerConnection( socket );
+        }
+        catch( IOException e )
+        {
+            if( !closed )
+            {
+                log.warn( "Worker handshake failed with " + socket.getRemoteSocketAddress() + " : " + e.getMessage() );
+            }
+            return;
+        }
+        synchronized( workers )
+        {
+            if( closed )
+            {
+                worker.stop();
+                return;
+            }
+            workers.add( worker );
+            workers.notifyAll();
+            log.info( "Worker " + worker + " joined, " + workers.size() + " workers" );
+        }
+    }
+
+    private static void close( Socket socket )
+    {
+        try
+        {
+            socket.close();
+        }
+        catch( IOException e )
+        {
+            log.debug( "Error closing socket : " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Train over the images for the configured number of epochs, shuffled at
+     * each epoch. The first round waits for minWorkers workers, later rounds
+     * for at least one.
+     * @param locations The training image locations
+     * @throws IOException if interrupted or closed while waiting for workers
+     */
+    public void train( URI[] locations ) throws IOException
+    {
+        int chunkSize = trainerParams.getBatchSize() * Math.max( 1, trainerParams.getAveragingFrequency() );
+        Random rng = new Random( modelParams.getSeed() );
+        List<URI> order = new ArrayList<>( Arrays.asList( locations ));
+        for( int epoch = 0 ; epoch < trainerParams.getEpochs() ; epoch++ )
+        {
+            Collections.shuffle( order, rng );
+            Deque<URI> pending = new ArrayDeque<>( order );
+            while( !pending.isEmpty() )
+            {
+                round( awaitWorkers(), pending, chunkSize );
+            }
+            log.info( "Epoch " + ( epoch + 1 ) + " done after " + round + " rounds" );
+        }
+        log.info( "Scaling efficiency :\n" + report );
+    }
+
+    private List<WorkerConnection> awaitWorkers() throws IOException
+    {
+        int needed = ( round == 0 ) ? Math.max( 1, trainerParams.getMinWorkers() ) : 1;
+        synchronized( workers )
+        {
+            while( workers.size() < needed )
+            {
+                if( closed )
+                {
+                    throw new IOException( "Coordinator closed" );
+                }
+                log.info( "Waiting for workers : " + workers.size() + "/" + needed + " connected" );
+                try
+                {
+                    workers.wait( WAIT_LOG_INTERVAL );
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException( "Interrupted while waiting for workers" );
+                }
+            }
+            return new ArrayList<>( workers );
+        }
+    }
+
+    private void round( List<WorkerConnection> participants , Deque<URI> pending , int chunkSize ) throws IOException
+    {
+        final int current = round;
+        final float[] params = network.params().dup().data().asFloat();
+        long start = System.nanoTime();
+
+        List<WorkerConnection> assigned = new ArrayList<>();
+        List<List<URI>> chunks = new ArrayList<>();
+        List<Future<Result>> futures = new ArrayList<>();
+        for( final WorkerConnection worker : participants )
+        {
+            if( pending.isEmpty() )
+            {
+                break;
+            }
+            final List<URI> chunk = new ArrayList<>();
+            while( chunk.size() < chunkSize && !pending.isEmpty() )
+            {
+                chunk.add( pending.poll() );
+            }
+            assigned.add( worker );
+            chunks.add( chunk );
+            futures.add( executor.submit( new Callable<Result>()
+            {
+                @Override
+                public Result call() throws IOException
+                {
+                    return worker.work( current, params, chunk );
+                }
+            }));
+        }
+
+        INDArray sum = null;
+        long images = 0;
+        long fitNanos = 0;
+        double score = 0;
+        int succeeded = 0;
+        for( int i = 0 ; i < futures.size() ; i++ )
+        {
+            try
+            {
+                Result result = futures.get( i ).get();
+                INDArray weighted = Nd4j.create( result.params ).muli( result.examples );
+                sum = ( sum == null ) ? weighted : sum.addi( weighted );
+                images += result.examples;
+                fitNanos += result.fitNanos;
+                score += result.score;
+                succeeded++;
+            }
+            catch( ExecutionException e )
+            {
+                WorkerConnection worker = assigned.get( i );
+                log.warn( "Worker " + worker + " failed in round " + current + " : " + e.getCause() + ", its " + chunks.get( i ).size() + " images are handed out again" );
+                drop( worker );
+                List<URI> chunk = chunks.get( i );
+                for( int j = chunk.size() - 1 ; j >= 0 ; j-- )
+                {
+                    pending.addFirst( chunk.get( j ));
+                }
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted in round " + current );
+            }
+        }
+
+        if( images > 0 )
+        {
+            network.setParams( sum.divi( images ));
+            report.record( succeeded, images, System.nanoTime() - start, fitNanos );
+        }
+        round++;
+        if( succeeded > 0 && round % Math.max( 1, trainerParams.getListenerFreq() ) == 0 )
+        {
+            log.info( "Round " + round + " : " + succeeded + " workers, " + images + " images, score " + ( score / succeeded )
+                    + ", " + pending.size() + " images left in the epoch" );
+        }
+    }
+
+    private void drop( WorkerConnection worker )
+    {
+        synchronized( workers )
+        {
+            workers.remove( worker );
+            log.info( "Worker " + worker + " left, " + workers.size() + " workers" );
+        }
+        worker.close();
+    }
+
+    /**
+     * Stop the workers and close the connections
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        List<WorkerConnection> connected;
+        synchronized( workers )
+        {
+            connected = new ArrayList<>( workers );
+            workers.clear();
+            workers.notifyAll();
+        }
+        for( WorkerConnection worker : connected )
+        {
+            worker.stop();
+        }
+        executor.shutdownNow();
+        if( server != null )
+        {
+            try
+            {
+                server.close();
+            }
+            catch( IOException e )
+            {
+                log.warn( "Error closing the coordinator socket : " + e.getMessage() );
+            }
+        }
+    }
+
+    private static class Result
+    {
+        private float[] params;
+        private int examples;
+        private long fitNanos;
+        private double score;
+    }
+
+    /**
+     * Connection to a worker, used by one round at a time
+     */
+    private class WorkerConnection
+    {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final String name;
+
+        WorkerConnection( Socket socket ) throws IOException
+        {
+            this.socket = socket;
+            try
+            {
+                socket.setSoTimeout( HANDSHAKE_TIMEOUT_MS );
+                socket.setTcpNoDelay( true );
+                in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ));
+                out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ));
+
+                DistributedProtocol.expect( in.readInt(), DistributedProtocol.HELLO );
+                if( in.readInt() != DistributedProtocol.MAGIC || in.readInt() != DistributedProtocol.VERSION )
+                {
+                    throw new IOException( "Not a compatible worker : " + socket.getRemoteSocketAddress() );
+                }
+                name = in.readUTF() + "@" + socket.getRemoteSocketAddress();
+
+                out.writeInt( DistributedProtocol.CONFIG );
+                DistributedProtocol.writeText( out, network.getLayerWiseConfigurations().toJson() );
+                DistributedProtocol.writeObject( out, normalizer );
+                DistributedProtocol.writeStrings( out, labels );
+                out.writeInt( modelParams.getHeight() );
+                out.writeInt( modelParams.getWidth() );
+                out.writeInt( modelParams.getChannels() );
+                out.writeLong( modelParams.getSeed() );
+                out.writeInt( trainerParams.getBatchSize() );
+                out.writeInt( trainerParams.getWorkers() );
+                out.writeInt( trainerParams.getPrefetchDepth() );
+                out.writeUTF( trainerParams.getAugmentation() );
+                out.flush();
+                socket.setSoTimeout( trainerParams.getWorkerTimeout() * 1000 );
+            }
+            catch( IOException e )
+            {
+                socket.close();
+                throw e;
+            }
+        }
+
+        Result work( int round , float[] params , List<URI> chunk ) throws IOException
+        {
+            out.writeInt( DistributedProtocol.WORK );
+            out.writeInt( round );
+            DistributedProtocol.writeFloats( out, params );
+            List<String> locations = new ArrayList<>( chunk.size() );
+            for( URI location : chunk )
+            {
+                locations.add( location.toString() );
+            }
+            DistributedProtocol.writeStrings( out, locations );
+            out.flush();
+
+            DistributedProtocol.expect( in.readInt(), DistributedProtocol.RESULT );
+            if( in.readInt() != round )
+            {
+                throw new IOException( "Result of another round" );
+            }
+            Result result = new Result();
+            result.params = DistributedProtocol.readFloats( in );
+            result.examples = in.readInt();
+            result.fitNanos = in.readLong();
+            result.score = in.readDouble();
+            if( result.params.length != params.length )
+            {
+                throw new IOException( "Expecting " + params.length + " parameters, got " + result.params.length );
+            }
+            return result;
+        }
+
+        void stop()
+        {
+            try
+            {
+                out.writeInt( DistributedProtocol.STOP );
+                out.flush();
+            }
+            catch( IOException e )
+            {
+                log.debug( "Unable to stop worker " + name + " : " + e.getMessage() );
+            }
+            close();
+        }
+
+        void close()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch( IOException e )
+            {
+                log.debug( "Error closing worker " + name + " : " + e.getMessage() );
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+}
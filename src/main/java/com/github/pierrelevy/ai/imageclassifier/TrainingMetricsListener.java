@@ -0,0 +1,331 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TrainingMetricsListener
+ *
+ * Splits each training iteration into stages recorded in a MetricsRegistry :
+ *  - data      : wait for the next minibatch (iterator wrapped with instrument())
+ *  - forward   : from the minibatch (or the end of the previous iteration) to the end of the forward pass
+ *  - backward  : backpropagation and parameters update, up to iterationDone
+ *  - listeners : the other listeners, up to the tail() marker
+ *  - iteration : time between two iterations
+ * plus images/sec, heap and off-heap (JavaCPP allocations, which hold the ND4J
+ * buffers) memory gauges.
+ *
+ * This listener must be the first of the listeners and its tail() the last.
+ * With data parallel training the stages of each replica are recorded from its
+ * own thread, data is then the wait of the thread feeding the replicas.
+ */
+public class TrainingMetricsListener implements TrainingListener
+{
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggerFactory.getLogger( TrainingMetricsListener.class );
+    private static final long MB = 1024 * 1024;
+    private static final int DUMP_FREQUENCY = 50;
+    private static final int MARK_START = 0;
+    private static final int MARK_FORWARD = 1;
+    private static final int MARK_DONE = 2;
+    private static final int MARK_COUNT = 3;
+
+    public static final String DATA = "data";
+    public static final String FORWARD = "forward";
+    public static final String BACKWARD = "backward";
+    public static final String LISTENERS = "listeners";
+    public static final String ITERATION = "iteration";
+    public static final String IMAGES_PER_SEC = "imagesPerSec";
+    public static final String HEAP_USED_MB = "heapUsedMB";
+    public static final String HEAP_MAX_MB = "heapMaxMB";
+    public static final String OFF_HEAP_MB = "offHeapMB";
+    public static final String OFF_HEAP_MAX_MB = "offHeapMaxMB";
+
+    private final MetricsRegistry registry;
+    private final int logFrequency;
+    private final String dumpPrefix;
+    private final Histogram data;
+    private final Histogram forward;
+    private final Histogram backward;
+    private final Histogram listeners;
+    private final Histogram iteration;
+    private final ThroughputWindow throughput = new ThroughputWindow();
+    private final transient ThreadLocal<long[]> marks = new ThreadLocal<long[]>()
+    {
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[MARK_COUNT];
+        }
+    };
+    private volatile int lastExamples;
+    private int count;
+    private boolean invoked;
+
+    /**
+     * Constructor
+     * @param registry The registry receiving the metrics
+     * @param logFrequency The number of iterations between two log lines (0 for none)
+     * @param dumpPrefix The path prefix of the JSON/CSV files written periodically, or null
+     */
+    public TrainingMetricsListener( MetricsRegistry registry , int logFrequency , String dumpPrefix )
+    {
+        this.registry = registry;
+        this.logFrequency = logFrequency;
+        this.dumpPrefix = ( dumpPrefix == null || dumpPrefix.isEmpty() ) ? null : dumpPrefix;
+        this.data = registry.histogram( DATA );
+        this.forward = registry.histogram( FORWARD );
+        this.backward = registry.histogram( BACKWARD );
+        this.listeners = registry.histogram( LISTENERS );
+        this.iteration = registry.histogram( ITERATION );
+    }
+
+    /**
+     * Wrap the training iterator to record the data waits and minibatch sizes
+     * @param iterator The training iterator
+     * @return The iterator to fit
+     */
+    public DataSetIterator instrument( DataSetIterator iterator )
+    {
+        return new InstrumentedDataSetIterator( iterator, this );
+    }
+
+    /**
+     * @return the listener to put last in the listeners, marking the end of an iteration
+     */
+    public IterationListener tail()
+    {
+        return new Tail();
+    }
+
+    /**
+     * @return the metrics registry
+     */
+    public MetricsRegistry getRegistry()
+    {
+        return registry;
+    }
+
+    void onData( long nanos , int examples )
+    {
+        data.record( nanos );
+        lastExamples = examples;
+        marks.get()[MARK_START] = System.nanoTime();
+    }
+
+    @Override
+    public boolean invoked()
+    {
+        return invoked;
+    }
+
+    @Override
+    public void invoke()
+    {
+        invoked = true;
+    }
+
+    @Override
+    public void onForwardPass( Model model , List<INDArray> activations )
+    {
+        forwardDone();
+    }
+
+    @Override
+    public void onForwardPass( Model model , Map<String, INDArray> activations )
+    {
+        forwardDone();
+    }
+
+    private void forwardDone()
+    {
+        long[] m = marks.get();
+        m[MARK_FORWARD] = System.nanoTime();
+        if( m[MARK_START] > 0 )
+        {
+            forward.record( m[MARK_FORWARD] - m[MARK_START] );
+        }
+    }
+
+    @Override
+    public void onGradientCalculation( Model model )
+    {
+    }
+
+    @Override
+    public void onBackwardPass( Model model )
+    {
+    }
+
+    @Override
+    public void onEpochStart( Model model )
+    {
+    }
+
+    @Override
+    public void onEpochEnd( Model model )
+    {
+        dump();
+    }
+
+    @Override
+    public void iterationDone( Model model , int iteration )
+    {
+        long[] m = marks.get();
+        long now = System.nanoTime();
+        if( m[MARK_FORWARD] > 0 )
+        {
+            backward.record( now - m[MARK_FORWARD] );
+        }
+        if( m[MARK_DONE] > 0 )
+        {
+            this.iteration.record( now - m[MARK_DONE] );
+        }
+        m[MARK_DONE] = now;
+        m[MARK_FORWARD] = 0;
+        throughput.add( now, lastExamples );
+    }
+
+    private void iterationEnd()
+    {
+        long[] m = marks.get();
+        long now = System.nanoTime();
+        listeners.record( now - m[MARK_DONE] );
+        // Next forward pass measured from here unless a minibatch is fetched on this thread
+        m[MARK_START] = now;
+
+        Runtime runtime = Runtime.getRuntime();
+        registry.gauge( IMAGES_PER_SEC, throughput.getRate() );
+        registry.gauge( HEAP_USED_MB, ( runtime.totalMemory() - runtime.freeMemory() ) / MB );
+        registry.gauge( HEAP_MAX_MB, runtime.maxMemory() / MB );
+        registry.gauge( OFF_HEAP_MB, Pointer.totalBytes() / MB );
+        registry.gauge( OFF_HEAP_MAX_MB, Pointer.maxBytes() / MB );
+
+        int n;
+        synchronized( this )
+        {
+            n = ++count;
+        }
+        if( logFrequency > 0 && n % logFrequency == 0 )
+        {
+            log.info( summary() );
+        }
+        if( n % DUMP_FREQUENCY == 0 )
+        {
+            dump();
+        }
+    }
+
+    /**
+     * @return a one line summary of the recent iterations (median durations)
+     */
+    public String summary()
+    {
+        return String.format( Locale.US,
+                "data %.1fms, forward %.1fms, backward %.1fms, listeners %.1fms, %.1f images/s, heap %.0fMB, off-heap %.0fMB",
+                data.getPercentileMillis( 50 ), forward.getPercentileMillis( 50 ), backward.getPercentileMillis( 50 ),
+                listeners.getPercentileMillis( 50 ), registry.getGauge( IMAGES_PER_SEC ),
+                registry.getGauge( HEAP_USED_MB ), registry.getGauge( OFF_HEAP_MB ));
+    }
+
+    /**
+     * Write the metrics files, if a dump prefix is set
+     */
+    public void dump()
+    {
+        if( dumpPrefix != null )
+        {
+            registry.write( dumpPrefix );
+        }
+    }
+
+    private class Tail implements IterationListener
+    {
+        private static final long serialVersionUID = 1L;
+        private boolean invoked;
+
+        @Override
+        public boolean invoked()
+        {
+            return invoked;
+        }
+
+        @Override
+        public void invoke()
+        {
+            invoked = true;
+        }
+
+        @Override
+        public void iterationDone( Model model , int iteration )
+        {
+            iterationEnd();
+        }
+    }
+
+    /**
+     * Images/sec over the most recent iterations
+     */
+    private static class ThroughputWindow
+    {
+        private static final int SIZE = 50;
+        private final long[] times = new long[SIZE];
+        private final int[] examples = new int[SIZE];
+        private int position;
+        private int size;
+        private long sum;
+
+        synchronized void add( long time , int count )
+        {
+            if( size == SIZE )
+            {
+                sum -= examples[position];
+            }
+            else
+            {
+                size++;
+            }
+            times[position] = time;
+            examples[position] = count;
+            sum += count;
+            position = ( position + 1 ) % SIZE;
+        }
+
+        synchronized double getRate()
+        {
+            if( size < 2 )
+            {
+                return 0.0;
+            }
+            int newest = ( position + SIZE - 1 ) % SIZE;
+            int oldest = ( position + SIZE - size ) % SIZE;
+            long elapsed = times[newest] - times[oldest];
+            // The examples of the oldest iteration were processed before the window starts
+            return ( elapsed <= 0 ) ? 0.0 : ( sum - examples[oldest] ) * 1e9 / elapsed;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.List;
+import java.util.Random;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TrainingWorker
+ *
+ * Worker process of the multi-node training : connects to the
+ * TrainingCoordinator, builds the network from the configuration it sends,
+ * then for each round loads the parameters, fits the given images and sends
+ * the parameters back. The updater state (momentum...) stays local to the
+ * worker, as with ParallelWrapper, only parameters are averaged.
+ */
+public class TrainingWorker
+{
+    private static final Logger log = LoggerFactory.getLogger( TrainingWorker.class );
+    private static final long CONNECT_RETRY_DELAY = 2000L;
+
+    private final String host;
+    private final int port;
+    private final int connectAttempts;
+    private MultiLayerNetwork network;
+    private DataNormalization normalizer;
+    private List<String> labels;
+    private ModelParameters modelParams;
+    private int batchSize;
+    private int decodeWorkers;
+    private int prefetchDepth;
+    private AugmentationPolicy augmentation;
+    private int rounds;
+    private long images;
+
+    /**
+     * Constructor
+     * @param host The coordinator host
+     * @param port The coordinator port
+     * @param connectAttempts The number of connection attempts, 2s apart, so that workers may start before the coordinator
+     */
+    public TrainingWorker( String host , int port , int connectAttempts )
+    {
+        this.host = host;
+        this.port = port;
+        this.connectAttempts = Math.max( 1, connectAttempts );
+    }
+
+    /**
+     * Work until the coordinator stops the training
+     * @throws IOException if the coordinator can't be reached or the connection is lost
+     */
+    public void run() throws IOException
+    {
+        try( Socket socket = connect() )
+        {
+            socket.setTcpNoDelay( true );
+            DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ));
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ));
+
+            out.writeInt( DistributedProtocol.HELLO );
+            out.writeInt( DistributedProtocol.MAGIC );
+            out.writeInt( DistributedProtocol.VERSION );
+            out.writeUTF( InetAddress.getLocalHost().getHostName() );
+            out.flush();
+
+            DistributedProtocol.expect( in.readInt(), DistributedProtocol.CONFIG );
+            configure( in );
+
+            int type;
+            while( ( type = in.readInt() ) == DistributedProtocol.WORK )
+            {
+                work( in, out );
+            }
+            DistributedProtocol.expect( type, DistributedProtocol.STOP );
+        }
+        log.info( "Training done : " + rounds + " rounds, " + images + " images" );
+    }
+
+    private Socket connect() throws IOException
+    {
+        for( int attempt = 1 ; ; attempt++ )
+        {
+            try
+            {
+                return new Socket( host, port );
+            }
+            catch( ConnectException e )
+            {
+                if( attempt >= connectAttempts )
+                {
+                    throw e;
+                }
+                log.info( "Coordinator " + host + ":" + port + " not reachable, retrying (" + attempt + "/" + connectAttempts + ")" );
+                try
+                {
+                    Thread.sleep( CONNECT_RETRY_DELAY );
+                }
+                catch( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void configure( DataInputStream in ) throws IOException
+    {
+        MultiLayerConfiguration conf = MultiLayerConfiguration.fromJson( DistributedProtocol.readText( in ));
+        normalizer = (DataNormalization) DistributedProtocol.readObject( in );
+        labels = DistributedProtocol.readStrings( in );
+        modelParams = new ModelParameters();
+        modelParams.setHeight( in.readInt() );
+        modelParams.setWidth( in.readInt() );
+        modelParams.setChannels( in.readInt() );
+        modelParams.setSeed( in.readLong() );
+        batchSize = in.readInt();
+        decodeWorkers = in.readInt();
+        prefetchDepth = in.readInt();
+        augmentation = AugmentationPolicy.parse( in.readUTF() );
+
+        network = new MultiLayerNetwork( conf );
+        network.init();
+        log.info( "Joined " + host + ":" + port + " : " + network.numParams() + " parameters, " + labels.size() + " labels, augmentation " + augmentation );
+    }
+
+    private void work( DataInputStream in , DataOutputStream out ) throws IOException
+    {
+        int round = in.readInt();
+        float[] params = DistributedProtocol.readFloats( in );
+        List<String> locations = DistributedProtocol.readStrings( in );
+        URI[] uris = new URI[locations.size()];
+        for( int i = 0 ; i < uris.length ; i++ )
+        {
+            uris[i] = URI.create( locations.get( i ));
+        }
+
+        long start = System.nanoTime();
+        network.setParams( Nd4j.create( params ));
+        PrefetchingDataSetIterator iterator = new PrefetchingDataSetIterator( uris, labels, modelParams, batchSize,
+                decodeWorkers, prefetchDepth, augmentation, new Random( modelParams.getSeed() + round ));
+        iterator.setPreProcessor( normalizer );
+        // Images that can't be decoded are skipped, the parameters are weighted by the images fitted
+        int examples = 0;
+        try
+        {
+            while( iterator.hasNext() )
+            {
+                DataSet batch = iterator.next();
+                examples += batch.numExamples();
+                network.fit( batch );
+            }
+        }
+        finally
+        {
+            iterator.shutdown();
+        }
+        long fitNanos = System.nanoTime() - start;
+
+        out.writeInt( DistributedProtocol.RESULT );
+        out.writeInt( round );
+        DistributedProtocol.writeFloats( out, network.params().dup().data().asFloat() );
+        out.writeInt( examples );
+        out.writeLong( fitNanos );
+        out.writeDouble( network.score() );
+        out.flush();
+
+        rounds++;
+        images += examples;
+        log.info( "Round " + round + " : " + examples + "/" + uris.length + " images in " + ( fitNanos / 1000000 ) + "ms, score " + network.score() );
+    }
+}
@@ -0,0 +1,211 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+/**
+ * TunerParameters
+ */
+public class TunerParameters
+{
+
+    private String architectures;
+    private String learningRates;
+    private String l2;
+    private String denseSizes;
+    private int trials;
+    private int concurrency;
+    private int cpuBudget;
+    private int minBudget;
+    private int maxBudget;
+    private int reduction;
+    private String resultsPath;
+
+    /**
+     * @return the architectures, comma separated names sampled by the trials
+     */
+    public String getArchitectures()
+    {
+        return architectures;
+    }
+
+    /**
+     * @param architectures the architectures to set
+     */
+    public void setArchitectures(String architectures)
+    {
+        this.architectures = architectures;
+    }
+
+    /**
+     * @return the learningRates, min:max range sampled log uniformly
+     */
+    public String getLearningRates()
+    {
+        return learningRates;
+    }
+
+    /**
+     * @param learningRates the learningRates to set
+     */
+    public void setLearningRates(String learningRates)
+    {
+        this.learningRates = learningRates;
+    }
+
+    /**
+     * @return the l2 range, min:max sampled log uniformly
+     */
+    public String getL2()
+    {
+        return l2;
+    }
+
+    /**
+     * @param l2 the l2 to set
+     */
+    public void setL2(String l2)
+    {
+        this.l2 = l2;
+    }
+
+    /**
+     * @return the denseSizes, comma separated units of the dense layers
+     */
+    public String getDenseSizes()
+    {
+        return denseSizes;
+    }
+
+    /**
+     * @param denseSizes the denseSizes to set
+     */
+    public void setDenseSizes(String denseSizes)
+    {
+        this.denseSizes = denseSizes;
+    }
+
+    /**
+     * @return the max number of trials
+     */
+    public int getTrials()
+    {
+        return trials;
+    }
+
+    /**
+     * @param trials the trials to set
+     */
+    public void setTrials(int trials)
+    {
+        this.trials = trials;
+    }
+
+    /**
+     * @return the number of trials trained concurrently
+     */
+    public int getConcurrency()
+    {
+        return concurrency;
+    }
+
+    /**
+     * @param concurrency the concurrency to set
+     */
+    public void setConcurrency(int concurrency)
+    {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @return the cpuBudget, cores shared by the concurrent trials (0 for all)
+     */
+    public int getCpuBudget()
+    {
+        return cpuBudget;
+    }
+
+    /**
+     * @param cpuBudget the cpuBudget to set
+     */
+    public void setCpuBudget(int cpuBudget)
+    {
+        this.cpuBudget = cpuBudget;
+    }
+
+    /**
+     * @return the minBudget, minibatches of the first rung
+     */
+    public int getMinBudget()
+    {
+        return minBudget;
+    }
+
+    /**
+     * @param minBudget the minBudget to set
+     */
+    public void setMinBudget(int minBudget)
+    {
+        this.minBudget = minBudget;
+    }
+
+    /**
+     * @return the maxBudget, minibatches of a trial trained to the last rung
+     */
+    public int getMaxBudget()
+    {
+        return maxBudget;
+    }
+
+    /**
+     * @param maxBudget the maxBudget to set
+     */
+    public void setMaxBudget(int maxBudget)
+    {
+        this.maxBudget = maxBudget;
+    }
+
+    /**
+     * @return the reduction factor between rungs
+     */
+    public int getReduction()
+    {
+        return reduction;
+    }
+
+    /**
+     * @param reduction the reduction to set
+     */
+    public void setReduction(int reduction)
+    {
+        this.reduction = reduction;
+    }
+
+    /**
+     * @return the resultsPath, trial results file, trial models are written in its directory
+     */
+    public String getResultsPath()
+    {
+        return resultsPath;
+    }
+
+    /**
+     * @param resultsPath the resultsPath to set
+     */
+    public void setResultsPath(String resultsPath)
+    {
+        this.resultsPath = resultsPath;
+    }
+}
@@ -0,0 +1,197 @@
+ /* Copyright 2017 Pierre Levy
+  *
+  *    Licensed under the Apache License, Version 2.0 (the "License");
+  *    you may not use this file except in compliance with the License.
+  *    You may obtain a copy of the License at
+  *
+  *        http://www.apache.org/licenses/LICENSE-2.0
+  *
+  *    Unless required by applicable law or agreed to in writing, software
+  *    distributed under the License is distributed on an "AS IS" BASIS,
+  *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  *    See the License for the specific language governing permissions and
+  *    limitations under the License.
+  */
+
+package com.github.pierrelevy.ai.imageclassifier;
+
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * QuantizedModelTest
+ *
+ * Half precision conversions and int8 per channel quantization
+ */
+public class QuantizedModelTest extends TestCase
+{
+    private static final float MIN_NORMAL = (float) Math.pow( 2, -14 );
+    private static final float MIN_SUBNORMAL = (float) Math.pow( 2, -24 );
+    private static final float[] NORMALS = { 1f, -1f, 0.5f, 3.140625f, -2048f, 65504f, MIN_NORMAL };
+
+    public void testHalfRoundTripOfEveryHalf()
+    {
+        for( int bits = 0 ; bits <= 0xFFFF ; bits++ )
+        {
+            short half = (short) bits;
+            float value = QuantizedModel.fromHalf( half );
+            if( Float.isNaN( value ))
+            {
+                assertTrue( Float.isNaN( QuantizedModel.fromHalf( QuantizedModel.toHalf( value ))));
+            }
+            else
+            {
+                assertEquals( "half 0x" + Integer.toHexString( bits ), half, QuantizedModel.toHalf( value ));
+            }
+        }
+    }
+
+    public void testNormals()
+    {
+        for( float value : NORMALS )
+        {
+            assertEquals( value, QuantizedModel.fromHalf( QuantizedModel.toHalf( value )), 0f );
+        }
+        assertEquals( (short) 0x3C00, QuantizedModel.toHalf( 1f ));
+        assertEquals( (short) 0x7BFF, QuantizedModel.toHalf( 65504f ));
+        assertEquals( (short) 0x0400, QuantizedModel.toHalf( MIN_NORMAL ));
+
+        Random random = new Random( 42 );
+        for( int i = 0 ; i < 10000 ; i++ )
+        {
+            float value = ( random.nextFloat() * 2f - 1f ) * 60000f;
+            if( Math.abs( value ) < MIN_NORMAL )
+            {
+                continue;
+            }
+            float error = Math.abs( QuantizedModel.fromHalf( QuantizedModel.toHalf( value )) - value );
+            assertTrue( value + " error " + error, error <= Math.abs( value ) / 2048f );
+        }
+    }
+
+    public void testSubnormals()
+    {
+        float smallest = MIN_SUBNORMAL;
+        assertEquals( (short) 0x0001, QuantizedModel.toHalf( smallest ));
+        assertEquals( (short) 0x03FF, QuantizedModel.toHalf( 1023 * smallest ));
+        assertEquals( (short) 0x8001, QuantizedModel.toHalf( -smallest ));
+        assertEquals( smallest, QuantizedModel.fromHalf( (short) 0x0001 ), 0f );
+        assertEquals( 1023 * smallest, QuantizedModel.fromHalf( (short) 0x03FF ), 0f );
+        // Below half the smallest subnormal, flushed to a signed zero
+        assertEquals( (short) 0x0000, QuantizedModel.toHalf( smallest / 4 ));
+        assertEquals( (short) 0x8000, QuantizedModel.toHalf( -smallest / 4 ));
+        assertEquals( (short) 0x8000, QuantizedModel.toHalf( -0f ));
+    }
+
+    public void testInfinityAndNaN()
+    {
+        assertEquals( (short) 0x7C00, QuantizedModel.toHalf( Float.POSITIVE_INFINITY ));
+        assertEquals( (short) 0xFC00, QuantizedModel.toHalf( Float.NEGATIVE_INFINITY ));
+        assertEquals( Float.POSITIVE_INFINITY, QuantizedModel.fromHalf( (short) 0x7C00 ), 0f );
+        assertEquals( Float.NEGATIVE_INFINITY, QuantizedModel.fromHalf( (short) 0xFC00 ), 0f );
+        // Overflow
+        assertEquals( (short) 0x7C00, QuantizedModel.toHalf( 1e6f ));
+        assertEquals( (short) 0xFC00, QuantizedModel.toHalf( -1e6f ));
+        assertTrue( Float.isNaN( QuantizedModel.fromHalf( QuantizedModel.toHalf( Float.NaN ))));
+        assertTrue( Float.isNaN( QuantizedModel.fromHalf( QuantizedModel.toHalf( Float.intBitsToFloat( 0x7F800001 )))));
+    }
+
+    public void testHalfwayRoundsToEven()
+    {
+        float ulp = (float) Math.pow( 2, -10 );
+        // Between 1 (even) and 1 + ulp
+        assertEquals( (short) 0x3C00, QuantizedModel.toHalf( 1f + ulp / 2 ));
+        // Between 1 + ulp (odd) and 1 + 2 ulp
+        assertEquals( (short) 0x3C02, QuantizedModel.toHalf( 1f + 3 * ulp / 2 ));
+        // Just above halfway
+        assertEquals( (short) 0x3C01, QuantizedModel.toHalf( Math.nextUp( 1f + ulp / 2 )));
+        // Between the largest half and infinity
+        assertEquals( (short) 0x7C00, QuantizedModel.toHalf( 65520f ));
+        assertEquals( (short) 0x7BFF, QuantizedModel.toHalf( Math.nextAfter( 65520f, 0 )));
+
+        float smallest = MIN_SUBNORMAL;
+        // Subnormals : between 0 and the smallest, then between 1 and 2 times the smallest
+        assertEquals( (short) 0x0000, QuantizedModel.toHalf( smallest / 2 ));
+        assertEquals( (short) 0x0002, QuantizedModel.toHalf( 3 * smallest / 2 ));
+        assertEquals( (short) 0x0002, QuantizedModel.toHalf( 5 * smallest / 2 ));
+    }
+
+    public void testInt8ConvolutionWeights()
+    {
+        // [out, in, h, w] : channel c spans the c-th block of in * h * w values
+        int[] shape = { 4, 3, 3, 3 };
+        int block = 3 * 3 * 3;
+        float[] values = values( shape, 4 * block );
+        QuantizedModel.Int8 int8 = QuantizedModel.Int8.quantize( values, shape );
+        assertEquals( 4, int8.scales.length );
+
+        float[] max = new float[4];
+        for( int i = 0 ; i < values.length ; i++ )
+        {
+            max[i / block] = Math.max( max[i / block], Math.abs( values[i] ));
+        }
+        assertRoundTrip( int8, values, shape, max, block, true );
+    }
+
+    public void testInt8DenseWeights()
+    {
+        // [in, out] : channel c is the c-th column
+        int[] shape = { 7, 5 };
+        float[] values = values( shape, 7 * 5 );
+        QuantizedModel.Int8 int8 = QuantizedModel.Int8.quantize( values, shape );
+        assertEquals( 5, int8.scales.length );
+
+        float[] max = new float[5];
+        for( int i = 0 ; i < values.length ; i++ )
+        {
+            max[i % 5] = Math.max( max[i % 5], Math.abs( values[i] ));
+        }
+        assertRoundTrip( int8, values, shape, max, 5, false );
+    }
+
+    public void testInt8ZeroChannel()
+    {
+        int[] shape = { 2, 2 };
+        float[] values = { 0f, 1f, 0f, -0.5f };
+        QuantizedModel.Int8 int8 = QuantizedModel.Int8.quantize( values, shape );
+        float[] restored = new float[values.length];
+        int8.dequantize( restored, shape );
+        assertEquals( 0f, restored[0], 0f );
+        assertEquals( 0f, restored[2], 0f );
+        assertEquals( 1f, restored[1], 1e-6f );
+    }
+
+    /**
+     * Random values with a magnitude varying by several orders between
+     * channels, so that a single scale would lose the small channels
+     */
+    private static float[] values( int[] shape , int length )
+    {
+        Random random = new Random( 7 );
+        float[] values = new float[length];
+        for( int i = 0 ; i < length ; i++ )
+        {
+            int channel = ( shape.length == 4 ) ? i / ( length / shape[0] ) : i % shape[1];
+            values[i] = ( random.nextFloat() * 2f - 1f ) * (float) Math.pow( 10, -channel );
+        }
+        return values;
+    }
+
+    private static void assertRoundTrip( QuantizedModel.Int8 int8 , float[] values , int[] shape , float[] max ,
+            int block , boolean blocks )
+    {
+        for( int c = 0 ; c < max.length ; c++ )
+        {
+            assertEquals( max[c] / 127f, int8.scales[c], 0f );
+        }
+        float[] restored = new float[values.length];
+        int8.dequantize( restored, shape );
+        for( int i = 0 ; i < values.length ; i++ )
+        {
+            int c = blocks ? i / block : i % block;
+            // Half a quantization step, plus the float rounding of the scale
+            float bound = int8.scales[c] / 2f * 1.0001f;
+            assertTrue( "value " + i + " channel " + c, Math.abs( restored[i] - values[i] ) <= bound );
+        }
+    }
+}